@@ -0,0 +1,248 @@
+package com.benjaminfaal.ps4remotepkginstaller.emulator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Getter;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// One emulated PS4 running the Remote PKG Installer, serving its API on http://address:12800/api
+@CommonsLog
+public class EmulatedConsole implements Closeable {
+
+    private static final int UNKNOWN_TASK = 0x80990004;
+
+    private static final int INVALID_REQUEST = 0x80990001;
+
+    private static final int INJECTED_ERROR = 0x80990015;
+
+    @Getter
+    private final InetSocketAddress address;
+
+    private final EmulatorSettings settings;
+
+    private final HttpServer server;
+
+    private final ExecutorService handlers;
+
+    private final ExecutorService downloads;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Map<Integer, EmulatedTask> tasks = new ConcurrentHashMap<>();
+
+    private final Set<String> installedTitles = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger taskIds = new AtomicInteger();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    @Getter
+    private final LongAdder requests = new LongAdder();
+
+    @Getter
+    private final LongAdder errors = new LongAdder();
+
+    @Getter
+    private final LongAdder dropped = new LongAdder();
+
+    @Getter
+    private final LongAdder corrupted = new LongAdder();
+
+    @Getter
+    private final LongAdder downloaded = new LongAdder();
+
+    public EmulatedConsole(InetSocketAddress address, EmulatorSettings settings) throws IOException {
+        this.address = address;
+        this.settings = settings;
+        String name = "console-" + address.getAddress().getHostAddress() + "-";
+        handlers = Executors.newFixedThreadPool(settings.getThreads(), new CustomizableThreadFactory(name + "api-"));
+        downloads = Executors.newCachedThreadPool(new CustomizableThreadFactory(name + "download-"));
+        server = HttpServer.create(address, 50);
+        server.setExecutor(handlers);
+        server.createContext("/api/", this::handle);
+        server.start();
+    }
+
+    public int getActiveTasks() {
+        return (int) tasks.values().stream().filter(EmulatedTask::isActive).count();
+    }
+
+    public int getInstalledTasks() {
+        return (int) tasks.values().stream().filter(EmulatedTask::isInstalled).count();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        inFlight.incrementAndGet();
+        try {
+            delay();
+            if (chance(settings.getDropRate())) {
+                // Closing without sending the headers closes the connection
+                dropped.increment();
+                exchange.close();
+                return;
+            }
+            if (chance(settings.getErrorRate())) {
+                respond(exchange, 500, fail(INJECTED_ERROR));
+                return;
+            }
+
+            JsonNode request = objectMapper.readTree(exchange.getRequestBody());
+            String command = exchange.getRequestURI().getPath().substring("/api/".length());
+            switch (command) {
+                case "install":
+                    install(exchange, request);
+                    break;
+                case "is_exists":
+                    // The real API returns it as a string
+                    boolean exists = installedTitles.contains(request.path("title_id").asText());
+                    respond(exchange, 200, "{ \"status\": \"success\", \"exists\": \"" + exists + "\" }");
+                    break;
+                case "get_task_progress":
+                case "stop_task":
+                case "pause_task":
+                case "resume_task":
+                case "unregister_task":
+                    modifyTask(exchange, command, request.path("task_id").asInt(-1));
+                    break;
+                default:
+                    respond(exchange, 404, fail(INVALID_REQUEST));
+            }
+        } catch (Exception e) {
+            log.error("Error handling " + exchange.getRequestURI(), e);
+            respond(exchange, 500, fail(INVALID_REQUEST));
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void install(HttpExchange exchange, JsonNode request) throws IOException {
+        List<URL> urls = new ArrayList<>();
+        String type = request.path("type").asText();
+        if ("direct".equals(type)) {
+            for (JsonNode pkg : request.path("packages")) {
+                urls.add(new URL(pkg.asText()));
+            }
+        } else if ("ref_pkg_url".equals(type)) {
+            // Manifest JSON of a split PKG
+            JsonNode manifest = objectMapper.readTree(new URL(request.path("url").asText()));
+            for (JsonNode piece : manifest.path("pieces")) {
+                urls.add(new URL(piece.path("url").asText()));
+            }
+        }
+        if (urls.isEmpty()) {
+            respond(exchange, 500, fail(INVALID_REQUEST));
+            return;
+        }
+
+        List<EmulatedTask.PKG> pkgs = new ArrayList<>();
+        try {
+            for (URL url : urls) {
+                pkgs.add(EmulatedTask.readHeader(url));
+            }
+        } catch (IOException e) {
+            log.warn("Error reading PKG header: " + e.getMessage());
+            respond(exchange, 500, fail(EmulatedTask.DOWNLOAD_ERROR));
+            return;
+        }
+
+        EmulatedTask task = new EmulatedTask(taskIds.incrementAndGet(), pkgs, settings, downloaded, () -> installedTitles.add(pkgs.get(0).getTitleId()));
+        tasks.put(task.getId(), task);
+        if (task.start()) {
+            downloads.execute(task);
+        }
+        respond(exchange, 200, "{ \"status\": \"success\", \"task_id\": " + task.getId() + ", \"title\": " + objectMapper.writeValueAsString(pkgs.get(0).getContentId()) + " }");
+    }
+
+    private void modifyTask(HttpExchange exchange, String command, int taskId) throws IOException {
+        EmulatedTask task = tasks.get(taskId);
+        if (task == null) {
+            respond(exchange, 500, fail(UNKNOWN_TASK));
+            return;
+        }
+        switch (command) {
+            case "get_task_progress":
+                respond(exchange, 200, task.toJson());
+                return;
+            case "stop_task":
+                task.stop();
+                break;
+            case "pause_task":
+                task.pause();
+                break;
+            case "resume_task":
+                if (task.resume()) {
+                    downloads.execute(task);
+                }
+                break;
+            case "unregister_task":
+                task.unregister();
+                tasks.remove(taskId);
+                break;
+        }
+        respond(exchange, 200, "{ \"status\": \"success\" }");
+    }
+
+    // Errors come with a 500 and a body, the error code as hexadecimal value without quotes
+    private String fail(int errorCode) {
+        errors.increment();
+        return "{ \"status\": \"fail\", \"error_code\": 0x" + Integer.toHexString(errorCode) + " }";
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        if (inFlight.get() > 1 && chance(settings.getCorruptRate())) {
+            corrupted.increment();
+            body = body.substring(0, body.length() / 2);
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void delay() throws InterruptedException {
+        long latency = settings.getLatency().toNanos();
+        long jitter = settings.getJitter().toNanos();
+        if (jitter > 0) {
+            latency += ThreadLocalRandom.current().nextLong(-jitter, jitter + 1);
+        }
+        if (latency > 0) {
+            Thread.sleep(latency / 1_000_000, (int) (latency % 1_000_000));
+        }
+    }
+
+    private static boolean chance(double rate) {
+        return rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        tasks.values().forEach(EmulatedTask::unregister);
+        handlers.shutdownNow();
+        downloads.shutdownNow();
+    }
+
+}
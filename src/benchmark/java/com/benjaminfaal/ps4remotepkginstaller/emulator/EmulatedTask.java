@@ -0,0 +1,314 @@
+package com.benjaminfaal.ps4remotepkginstaller.emulator;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.extern.apachecommons.CommonsLog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// Downloads the PKGs of an install with range requests like the PS4 does, and reports its progress like get_task_progress
+@CommonsLog
+public class EmulatedTask implements Runnable {
+
+    // Bits of the task states, decoded by TaskProgress.Status
+    public static final int DOWNLOADING = 0x18A;
+
+    public static final int INSTALLING = 0x18E;
+
+    public static final int INSTALLED = 0x193;
+
+    public static final int PAUSED = 0x1A8;
+
+    public static final int STOPPED = 0x188;
+
+    public static final int DOWNLOAD_ERROR = 0x80990086;
+
+    private static final int PKG_MAGIC = 0x7F434E54;
+
+    private static final int CONTENT_ID_OFFSET = 0x40;
+
+    private static final int CONTENT_ID_LENGTH = 36;
+
+    private static final int HEADER_SIZE = 0x1000;
+
+    @Getter
+    private final int id;
+
+    @Getter
+    private final String titleId;
+
+    private final List<PKG> pkgs;
+
+    private final EmulatorSettings settings;
+
+    private final LongAdder downloaded;
+
+    private final Runnable onInstalled;
+
+    private final long lengthTotal;
+
+    // Guarded by this, changes are notified to the download thread
+    private int bits = DOWNLOADING;
+
+    private int error;
+
+    private boolean running;
+
+    private boolean unregistered;
+
+    private volatile int index;
+
+    private volatile long transferred;
+
+    private volatile long transferredTotal;
+
+    // Download rate since the download was last started or resumed
+    private long rateStarted;
+
+    private long rateTransferred;
+
+    public EmulatedTask(int id, List<PKG> pkgs, EmulatorSettings settings, LongAdder downloaded, Runnable onInstalled) {
+        this.id = id;
+        this.pkgs = pkgs;
+        this.titleId = pkgs.get(0).getTitleId();
+        this.settings = settings;
+        this.downloaded = downloaded;
+        this.onInstalled = onInstalled;
+        this.lengthTotal = pkgs.stream().mapToLong(PKG::getLength).sum();
+    }
+
+    // Reads the header of a PKG, like the PS4 does before it accepts an install
+    public static PKG readHeader(URL url) throws IOException {
+        HttpURLConnection connection = openRange(url, 0, HEADER_SIZE);
+        try (InputStream in = connection.getInputStream()) {
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (contentRange == null || !contentRange.contains("/")) {
+                throw new IOException("No Content-Range in the response for " + url);
+            }
+            long length = Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+
+            byte[] header = new byte[HEADER_SIZE];
+            int read = 0;
+            int n;
+            while (read < header.length && (n = in.read(header, read, header.length - read)) != -1) {
+                read += n;
+            }
+            int magic = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+            String contentId;
+            if (read >= CONTENT_ID_OFFSET + CONTENT_ID_LENGTH && magic == PKG_MAGIC) {
+                contentId = new String(header, CONTENT_ID_OFFSET, CONTENT_ID_LENGTH, StandardCharsets.US_ASCII).trim();
+            } else {
+                // Load tests may serve any file, it is downloaded all the same
+                String path = url.getPath();
+                contentId = "XX0000-EMUL00000_00-" + path.substring(path.lastIndexOf('/') + 1);
+            }
+            return new PKG(url, length, contentId);
+        }
+    }
+
+    private static HttpURLConnection openRange(URL url, long offset, long length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(30000);
+        connection.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            throw new IOException("Expected 206 for bytes " + offset + "-" + (offset + length - 1) + " of " + url + " but got " + connection.getResponseCode());
+        }
+        return connection;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (index < pkgs.size()) {
+                PKG pkg = pkgs.get(index);
+                while (transferred < pkg.getLength()) {
+                    if (!awaitDownloading()) {
+                        return;
+                    }
+                    if (ThreadLocalRandom.current().nextDouble() < settings.getDownloadErrorRate()) {
+                        throw new IOException("Injected download error");
+                    }
+                    downloadChunk(pkg);
+                }
+                synchronized (this) {
+                    index++;
+                    transferred = 0;
+                }
+            }
+            synchronized (this) {
+                bits = INSTALLING;
+            }
+            Thread.sleep(settings.getInstallTime().toMillis());
+            synchronized (this) {
+                running = false;
+                if (unregistered) {
+                    return;
+                }
+                bits = INSTALLED;
+            }
+            onInstalled.run();
+        } catch (IOException e) {
+            log.warn("Task " + id + " failed: " + e.getMessage());
+            synchronized (this) {
+                running = false;
+                bits = STOPPED;
+                error = DOWNLOAD_ERROR;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Stopping ends the download thread, in the same lock as resuming checks whether it has to start a new one
+    private synchronized boolean awaitDownloading() throws InterruptedException {
+        while (bits == PAUSED && !unregistered) {
+            wait();
+        }
+        if (bits != DOWNLOADING || unregistered) {
+            running = false;
+            return false;
+        }
+        return true;
+    }
+
+    private void downloadChunk(PKG pkg) throws IOException, InterruptedException {
+        long length = Math.min(settings.getChunkSize().toBytes(), pkg.getLength() - transferred);
+        HttpURLConnection connection = openRange(pkg.getUrl(), transferred, length);
+        byte[] buffer = new byte[64 * 1024];
+        long read = 0;
+        try (InputStream in = connection.getInputStream()) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                read += n;
+                synchronized (this) {
+                    transferred += n;
+                    transferredTotal += n;
+                    rateTransferred += n;
+                }
+                downloaded.add(n);
+                throttle();
+            }
+        }
+        if (read != length) {
+            throw new IOException("Expected " + length + " bytes from " + pkg.getUrl() + " but got " + read);
+        }
+    }
+
+    private void throttle() throws InterruptedException {
+        long speed = settings.getSpeed().toBytes();
+        if (speed <= 0) {
+            return;
+        }
+        long sleepNanos;
+        synchronized (this) {
+            sleepNanos = rateTransferred * 1_000_000_000L / speed - (System.nanoTime() - rateStarted);
+        }
+        if (sleepNanos > 0) {
+            Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+        }
+    }
+
+    // Returns true when the download thread has to be started
+    public synchronized boolean start() {
+        if (unregistered || error != 0 || bits == INSTALLED || bits == INSTALLING) {
+            return false;
+        }
+        bits = DOWNLOADING;
+        rateStarted = System.nanoTime();
+        rateTransferred = 0;
+        notifyAll();
+        if (running) {
+            return false;
+        }
+        running = true;
+        return true;
+    }
+
+    public synchronized void pause() {
+        if (bits == DOWNLOADING) {
+            bits = PAUSED;
+        }
+    }
+
+    // Returns true when the download thread has to be started again, after the task was stopped
+    public synchronized boolean resume() {
+        return (bits == PAUSED || bits == STOPPED) && start();
+    }
+
+    public synchronized void stop() {
+        if (bits == DOWNLOADING || bits == PAUSED) {
+            bits = STOPPED;
+            notifyAll();
+        }
+    }
+
+    public synchronized void unregister() {
+        unregistered = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isActive() {
+        return running;
+    }
+
+    public synchronized boolean isInstalled() {
+        return bits == INSTALLED;
+    }
+
+    // Hexadecimal values without quotes like the real API, which is invalid JSON
+    public synchronized String toJson() {
+        PKG pkg = pkgs.get(Math.min(index, pkgs.size() - 1));
+        long rate = getRate();
+        long remaining = pkg.getLength() - Math.min(transferred, pkg.getLength());
+        return "{ \"status\": \"success\""
+                + ", \"bits\": 0x" + Integer.toHexString(bits)
+                + ", \"error\": " + (error == 0 ? "0" : "0x" + Integer.toHexString(error))
+                + ", \"length\": 0x" + Long.toHexString(pkg.getLength())
+                + ", \"transferred\": 0x" + Long.toHexString(index < pkgs.size() ? transferred : pkg.getLength())
+                + ", \"length_total\": 0x" + Long.toHexString(lengthTotal)
+                + ", \"transferred_total\": 0x" + Long.toHexString(transferredTotal)
+                + ", \"num_index\": " + Math.min(index + 1, pkgs.size())
+                + ", \"num_total\": " + pkgs.size()
+                + ", \"rest_sec\": " + (rate > 0 ? remaining / rate : 0)
+                + ", \"rest_sec_total\": " + (rate > 0 ? (lengthTotal - transferredTotal) / rate : 0)
+                + ", \"preparing_percent\": 100"
+                + ", \"local_copy_percent\": -1 }";
+    }
+
+    private long getRate() {
+        long speed = settings.getSpeed().toBytes();
+        if (speed > 0) {
+            return speed;
+        }
+        long elapsed = System.nanoTime() - rateStarted;
+        return elapsed > 0 ? rateTransferred * 1_000_000_000L / elapsed : 0;
+    }
+
+    @Data
+    public static class PKG {
+
+        private final URL url;
+
+        private final long length;
+
+        private final String contentId;
+
+        // Like CUSA00001 from UP0000-CUSA00001_00-...
+        public String getTitleId() {
+            int start = contentId.indexOf('-') + 1;
+            int end = contentId.indexOf('_', start);
+            return start > 0 && end > start ? contentId.substring(start, end) : contentId;
+        }
+
+    }
+
+}
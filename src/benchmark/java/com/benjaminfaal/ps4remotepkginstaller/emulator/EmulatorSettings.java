@@ -0,0 +1,110 @@
+package com.benjaminfaal.ps4remotepkginstaller.emulator;
+
+import lombok.Data;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+// Parsed from --name=value arguments, like --consoles=8 --speed=20MB --latency=30ms --corrupt-rate=0.5
+@Data
+public class EmulatorSettings {
+
+    // Consoles listen on consecutive addresses from this one, all of 127.0.0.0/8 is loopback on Linux
+    private String address = "127.0.0.1";
+
+    private int port = 12800;
+
+    private int consoles = 1;
+
+    // Requests a console handles at the same time
+    private int threads = 4;
+
+    // Download speed of each task, 0 is unlimited
+    private DataSize speed = DataSize.ofMegabytes(10);
+
+    // Size of the range requests the tasks download with
+    private DataSize chunkSize = DataSize.ofMegabytes(1);
+
+    // Added to every API request, plus or minus the jitter
+    private Duration latency = Duration.ZERO;
+
+    private Duration jitter = Duration.ZERO;
+
+    // Time between a task finishing its download and being installed
+    private Duration installTime = Duration.ofSeconds(2);
+
+    // Chance of an API request failing with a 500 and a fail body
+    private double errorRate;
+
+    // Chance of the connection being closed without any response
+    private double dropRate;
+
+    // Chance of a response being cut off while another request is handled, like https://github.com/flatz/ps4_remote_pkg_installer/issues/3
+    private double corruptRate;
+
+    // Chance of a range request failing the task
+    private double downloadErrorRate;
+
+    // Time between printing statistics, 0 disables them
+    private Duration statsInterval = Duration.ofSeconds(5);
+
+    public static EmulatorSettings parse(String... args) {
+        EmulatorSettings settings = new EmulatorSettings();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Invalid argument: " + arg + ", expected --name=value");
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "address":
+                    settings.setAddress(value);
+                    break;
+                case "port":
+                    settings.setPort(Integer.parseInt(value));
+                    break;
+                case "consoles":
+                    settings.setConsoles(Integer.parseInt(value));
+                    break;
+                case "threads":
+                    settings.setThreads(Integer.parseInt(value));
+                    break;
+                case "speed":
+                    settings.setSpeed(DataSize.parse(value));
+                    break;
+                case "chunk-size":
+                    settings.setChunkSize(DataSize.parse(value));
+                    break;
+                case "latency":
+                    settings.setLatency(DurationStyle.detectAndParse(value));
+                    break;
+                case "jitter":
+                    settings.setJitter(DurationStyle.detectAndParse(value));
+                    break;
+                case "install-time":
+                    settings.setInstallTime(DurationStyle.detectAndParse(value));
+                    break;
+                case "error-rate":
+                    settings.setErrorRate(Double.parseDouble(value));
+                    break;
+                case "drop-rate":
+                    settings.setDropRate(Double.parseDouble(value));
+                    break;
+                case "corrupt-rate":
+                    settings.setCorruptRate(Double.parseDouble(value));
+                    break;
+                case "download-error-rate":
+                    settings.setDownloadErrorRate(Double.parseDouble(value));
+                    break;
+                case "stats-interval":
+                    settings.setStatsInterval(DurationStyle.detectAndParse(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        return settings;
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.benjaminfaal.ps4remotepkginstaller.emulator;
+
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Stand-in for one or more PS4s running the Remote PKG Installer, for load testing without a console:
+// mvn -Pbenchmark test-compile exec:java -Dexec.mainClass=com.benjaminfaal.ps4remotepkginstaller.emulator.PS4Emulator -Dexec.args="--consoles=8 --speed=20MB"
+@CommonsLog
+public class PS4Emulator {
+
+    public static void main(String[] args) throws IOException {
+        EmulatorSettings settings = EmulatorSettings.parse(args);
+        List<EmulatedConsole> consoles = start(settings);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> consoles.forEach(EmulatedConsole::close)));
+
+        if (!settings.getStatsInterval().isZero()) {
+            ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("emulator-stats-"));
+            long interval = settings.getStatsInterval().toMillis();
+            long[] lastDownloaded = new long[1];
+            stats.scheduleAtFixedRate(() -> {
+                long downloaded = consoles.stream().mapToLong(console -> console.getDownloaded().sum()).sum();
+                log.info(String.format("requests=%d errors=%d dropped=%d corrupted=%d active=%d installed=%d downloaded=%dMB %.1fMB/s",
+                        consoles.stream().mapToLong(console -> console.getRequests().sum()).sum(),
+                        consoles.stream().mapToLong(console -> console.getErrors().sum()).sum(),
+                        consoles.stream().mapToLong(console -> console.getDropped().sum()).sum(),
+                        consoles.stream().mapToLong(console -> console.getCorrupted().sum()).sum(),
+                        consoles.stream().mapToInt(EmulatedConsole::getActiveTasks).sum(),
+                        consoles.stream().mapToInt(EmulatedConsole::getInstalledTasks).sum(),
+                        downloaded / 1024 / 1024,
+                        (downloaded - lastDownloaded[0]) * 1000.0 / interval / 1024 / 1024));
+                lastDownloaded[0] = downloaded;
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Consoles get consecutive addresses, so each has its own API on the same port like real consoles
+    public static List<EmulatedConsole> start(EmulatorSettings settings) throws IOException {
+        int first = ByteBuffer.wrap(InetAddress.getByName(settings.getAddress()).getAddress()).getInt();
+        List<EmulatedConsole> consoles = new ArrayList<>();
+        try {
+            for (int i = 0; i < settings.getConsoles(); i++) {
+                InetAddress address = InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(first + i).array());
+                EmulatedConsole console = new EmulatedConsole(new InetSocketAddress(address, settings.getPort()), settings);
+                consoles.add(console);
+                log.info("Emulating PS4 on http://" + address.getHostAddress() + ":" + settings.getPort() + "/api");
+            }
+        } catch (IOException e) {
+            consoles.forEach(EmulatedConsole::close);
+            throw e;
+        }
+        return consoles;
+    }
+
+}
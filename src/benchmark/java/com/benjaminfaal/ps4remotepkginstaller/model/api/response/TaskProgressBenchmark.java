@@ -0,0 +1,58 @@
+package com.benjaminfaal.ps4remotepkginstaller.model.api.response;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Percentage, remaining bytes and status decoding of polled tasks, over tasks in every state
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskProgressBenchmark {
+
+    private static final int[] BITS = {0x18A, 0x18E, 0x193, 0x1A8, 0x188, 0x100};
+
+    private TaskProgress[] tasks;
+
+    private int index;
+
+    @Setup
+    public void setup() {
+        tasks = new TaskProgress[BITS.length];
+        for (int i = 0; i < BITS.length; i++) {
+            TaskProgress task = new TaskProgress();
+            task.setBits(BITS[i]);
+            task.setLengthTotal(32L * 1024 * 1024 * 1024);
+            task.setTransferredTotal(i * 5L * 1024 * 1024 * 1024);
+            tasks[i] = task;
+        }
+    }
+
+    private int next() {
+        index = index == BITS.length - 1 ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public TaskProgress resolve() {
+        return tasks[next()].resolve();
+    }
+
+    @Benchmark
+    public TaskProgress.Status status() {
+        return TaskProgress.Status.of(BITS[next()]);
+    }
+
+}
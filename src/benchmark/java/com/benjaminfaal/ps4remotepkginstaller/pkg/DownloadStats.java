@@ -0,0 +1,43 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Chunks downloaded by the simulated consoles while measuring
+@Getter
+public class DownloadStats {
+
+    private final LongAdder bytes = new LongAdder();
+
+    private final LongAdder chunks = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    // CPU time of the consoles themselves, which run in the same process as the server
+    private final LongAdder clientCpuNanos = new LongAdder();
+
+    private final Timer chunkLatency = Timer.builder("pkg.download.chunk")
+            .publishPercentiles(0.5, 0.99)
+            .percentilePrecision(2)
+            // Percentiles over the whole measurement instead of a rotating window
+            .distributionStatisticExpiry(Duration.ofDays(1))
+            .distributionStatisticBufferLength(1)
+            .register(new SimpleMeterRegistry());
+
+    @Setter
+    private volatile boolean measuring;
+
+    public void record(long length, long latencyNanos, long cpuNanos) {
+        bytes.add(length);
+        chunks.increment();
+        clientCpuNanos.add(cpuNanos);
+        chunkLatency.record(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+}
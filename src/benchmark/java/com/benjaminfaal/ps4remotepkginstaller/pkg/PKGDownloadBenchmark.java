@@ -0,0 +1,211 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import com.benjaminfaal.ps4remotepkginstaller.PS4RemotePKGInstallerApplication;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Downloads PKGs from the application started headless, with simulated consoles on loopback, and reports the
+// throughput, chunk latency, CPU per GB and heap/GC behaviour of the serving path:
+// mvn -Pbenchmark test-compile exec:exec@pkg-download-benchmark -Dpkg-download-benchmark.args="--consoles=16 --server=tomcat"
+@CommonsLog
+public class PKGDownloadBenchmark {
+
+    private static final double MB = 1024 * 1024;
+
+    private static final double GB = 1024 * MB;
+
+    // The header is enough for the content ID, the rest stays a hole in the sparse file
+    private static final byte[] MAGIC = {0x7F, 'C', 'N', 'T'};
+
+    private static final int CONTENT_ID_OFFSET = 0x40;
+
+    public static void main(String[] args) throws Exception {
+        PKGDownloadBenchmarkSettings settings = PKGDownloadBenchmarkSettings.parse(args);
+        Files.createDirectories(settings.getDirectory());
+        // Keeps the settings of the benchmark away from the ones of the installed application
+        System.setProperty("user.home", settings.getDirectory().toString());
+
+        List<File> files = createPKGs(settings);
+        try (ConfigurableApplicationContext applicationContext = start(settings)) {
+            run(settings, applicationContext, files);
+        }
+    }
+
+    private static List<File> createPKGs(PKGDownloadBenchmarkSettings settings) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < settings.getPkgs(); i++) {
+            String contentId = String.format("UP0000-BNCH%05d_00-PKGDOWNLOADBENCH", i);
+            File file = settings.getDirectory().resolve(contentId + ".pkg").toFile();
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(settings.getPkgSize().toBytes());
+                randomAccessFile.write(MAGIC);
+                randomAccessFile.seek(CONTENT_ID_OFFSET);
+                randomAccessFile.write(contentId.getBytes(StandardCharsets.US_ASCII));
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static ConfigurableApplicationContext start(PKGDownloadBenchmarkSettings settings) {
+        Map<String, Object> properties = new HashMap<>(settings.getProperties());
+        properties.put("server.address", settings.getAddress());
+        if (settings.getServer() == PKGDownloadBenchmarkSettings.Server.TOMCAT) {
+            properties.put("spring.main.web-application-type", WebApplicationType.SERVLET.name());
+            properties.put("server.port", settings.getPort());
+            properties.put("pkg.server.enabled", false);
+        } else {
+            properties.put("spring.main.web-application-type", WebApplicationType.NONE.name());
+            properties.put("pkg.server.enabled", true);
+            properties.put("pkg.server.port", settings.getPort());
+        }
+        return new SpringApplicationBuilder(PS4RemotePKGInstallerApplication.class)
+                .profiles("headless")
+                .headless(true)
+                .properties(properties)
+                .run();
+    }
+
+    private static void run(PKGDownloadBenchmarkSettings settings, ConfigurableApplicationContext applicationContext, List<File> files) throws Exception {
+        PKGHandleRegistry pkgHandleRegistry = applicationContext.getBean(PKGHandleRegistry.class);
+        List<String> paths = new ArrayList<>();
+        for (File file : files) {
+            paths.add("/pkg/" + pkgHandleRegistry.register(file).getId());
+        }
+
+        InetSocketAddress server = new InetSocketAddress(settings.getAddress(), settings.getPort());
+        int firstConsole = ByteBuffer.wrap(InetAddress.getByName(settings.getConsoleAddress()).getAddress()).getInt();
+        DownloadStats stats = new DownloadStats();
+        List<SimulatedDownload> downloads = new ArrayList<>();
+        for (int i = 0; i < settings.getConsoles(); i++) {
+            InetAddress consoleAddress = InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(firstConsole + i).array());
+            SimulatedDownload download = new SimulatedDownload(server, consoleAddress, paths, i % paths.size(), settings, stats);
+            downloads.add(download);
+            Thread thread = new Thread(download, "console-" + consoleAddress.getHostAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+        log.info("Downloading " + files.size() + " PKGs of " + settings.getPkgSize() + " with " + settings.getConsoles()
+                + " consoles from the " + settings.getServer() + ", warming up for " + settings.getWarmup());
+        Thread.sleep(settings.getWarmup().toMillis());
+
+        JVMSnapshot before = new JVMSnapshot();
+        stats.setMeasuring(true);
+        long start = System.nanoTime();
+        long end = start + settings.getDuration().toNanos();
+        long interval = settings.getStatsInterval().isZero() ? Long.MAX_VALUE : settings.getStatsInterval().toNanos();
+        long lastBytes = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            TimeUnit.NANOSECONDS.sleep(Math.min(interval, end - now));
+            long bytes = stats.getBytes().sum();
+            log.info(String.format("downloaded=%dMB %.1fMB/s errors=%d", (long) (bytes / MB),
+                    (bytes - lastBytes) / MB / (Math.min(interval, end - now) / 1e9), stats.getErrors().sum()));
+            lastBytes = bytes;
+        }
+        stats.setMeasuring(false);
+        long elapsed = System.nanoTime() - start;
+        JVMSnapshot after = new JVMSnapshot();
+        downloads.forEach(SimulatedDownload::stop);
+
+        report(settings, stats, elapsed, before, after);
+    }
+
+    private static void report(PKGDownloadBenchmarkSettings settings, DownloadStats stats, long elapsed, JVMSnapshot before, JVMSnapshot after) throws IOException {
+        double gigabytes = stats.getBytes().sum() / GB;
+        double clientCpu = stats.getClientCpuNanos().sum() / 1e9;
+        double serverCpu = (after.processCpuNanos - before.processCpuNanos) / 1e9 - clientCpu;
+        HistogramSnapshot latency = stats.getChunkLatency().takeSnapshot();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("server", settings.getServer());
+        result.put("consoles", settings.getConsoles());
+        result.put("pkgs", settings.getPkgs());
+        result.put("chunkSize", settings.getChunkSize().toBytes());
+        result.put("properties", settings.getProperties());
+        result.put("seconds", elapsed / 1e9);
+        result.put("megabytesPerSecond", gigabytes * 1024 / (elapsed / 1e9));
+        result.put("chunks", stats.getChunks().sum());
+        result.put("errors", stats.getErrors().sum());
+        for (ValueAtPercentile percentile : latency.percentileValues()) {
+            result.put("p" + Math.round(percentile.percentile() * 100) + "ChunkMillis", percentile.value(TimeUnit.MILLISECONDS));
+        }
+        result.put("maxChunkMillis", latency.max(TimeUnit.MILLISECONDS));
+        result.put("serverCpuSecondsPerGigabyte", serverCpu / gigabytes);
+        result.put("clientCpuSecondsPerGigabyte", clientCpu / gigabytes);
+        result.put("allocatedMegabytesPerGigabyte", (after.allocatedBytes - before.allocatedBytes) / MB / gigabytes);
+        result.put("gcCount", after.gcCount - before.gcCount);
+        result.put("gcMillis", after.gcMillis - before.gcMillis);
+        result.put("heapUsedMegabytes", after.heapUsedBytes / MB);
+        result.put("directMemoryUsedMegabytes", after.directMemoryUsedBytes / MB);
+
+        StringBuilder report = new StringBuilder("Results:");
+        result.forEach((name, value) -> report.append(System.lineSeparator()).append("    ").append(name).append(": ")
+                .append(value instanceof Double ? String.format("%.2f", value) : value));
+        log.info(report);
+
+        if (settings.getResult() != null) {
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(settings.getResult().toFile(), result);
+            log.info("Results written to " + settings.getResult());
+        }
+    }
+
+    private static class JVMSnapshot {
+
+        private final long processCpuNanos = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+
+        // Of the live threads, the server and console threads live for the whole run
+        private final long allocatedBytes;
+
+        private long gcCount;
+
+        private long gcMillis;
+
+        private final long heapUsedBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        private long directMemoryUsedBytes;
+
+        private JVMSnapshot() {
+            com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long allocatedBytes = 0;
+            for (long allocated : threadMXBean.getThreadAllocatedBytes(threadMXBean.getAllThreadIds())) {
+                allocatedBytes += Math.max(0, allocated);
+            }
+            this.allocatedBytes = allocatedBytes;
+            for (GarbageCollectorMXBean garbageCollectorMXBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcCount += garbageCollectorMXBean.getCollectionCount();
+                gcMillis += garbageCollectorMXBean.getCollectionTime();
+            }
+            for (BufferPoolMXBean bufferPoolMXBean : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if (bufferPoolMXBean.getName().equals("direct")) {
+                    directMemoryUsedBytes = bufferPoolMXBean.getMemoryUsed();
+                }
+            }
+        }
+
+    }
+
+}
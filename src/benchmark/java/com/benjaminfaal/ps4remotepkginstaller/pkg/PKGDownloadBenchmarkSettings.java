@@ -0,0 +1,122 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import lombok.Data;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Parsed from --name=value arguments, like --consoles=16 --server=tomcat --pkg.cache.size=512MB
+@Data
+public class PKGDownloadBenchmarkSettings {
+
+    public enum Server {
+        PKG_SERVER,
+        TOMCAT
+    }
+
+    // Serving path that is measured, the PKG server or the PKGController in Tomcat
+    private Server server = Server.PKG_SERVER;
+
+    private String address = "127.0.0.1";
+
+    private int port = 8081;
+
+    // Consoles connect from consecutive addresses from this one, so each gets its own bandwidth flow like real consoles
+    private String consoleAddress = "127.0.0.2";
+
+    private int consoles = 8;
+
+    // Consoles download the PKGs in turns, so with fewer PKGs than consoles some PKGs are downloaded at the same time
+    private int pkgs = 4;
+
+    // The PKGs are sparse files, reading them measures the serving path and not the disk
+    private DataSize pkgSize = DataSize.ofGigabytes(4);
+
+    // Read first, like when the PS4 is asked to install the PKG
+    private DataSize headerSize = DataSize.ofKilobytes(64);
+
+    // Size of the range requests of the download
+    private DataSize chunkSize = DataSize.ofMegabytes(1);
+
+    private Duration warmup = Duration.ofSeconds(10);
+
+    private Duration duration = Duration.ofSeconds(60);
+
+    // Time between printing progress while measuring, 0 disables it
+    private Duration statsInterval = Duration.ofSeconds(5);
+
+    private Path directory = Paths.get(System.getProperty("java.io.tmpdir"), "pkg-download-benchmark");
+
+    // JSON file the results are written to, to compare runs
+    private Path result;
+
+    // Other arguments with a dot in their name are application properties, like --pkg.read-ahead.enabled=true
+    private final Map<String, Object> properties = new LinkedHashMap<>();
+
+    public static PKGDownloadBenchmarkSettings parse(String... args) {
+        PKGDownloadBenchmarkSettings settings = new PKGDownloadBenchmarkSettings();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Invalid argument: " + arg + ", expected --name=value");
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "server":
+                    settings.setServer(Server.valueOf(value.toUpperCase().replace('-', '_')));
+                    break;
+                case "address":
+                    settings.setAddress(value);
+                    break;
+                case "port":
+                    settings.setPort(Integer.parseInt(value));
+                    break;
+                case "console-address":
+                    settings.setConsoleAddress(value);
+                    break;
+                case "consoles":
+                    settings.setConsoles(Integer.parseInt(value));
+                    break;
+                case "pkgs":
+                    settings.setPkgs(Integer.parseInt(value));
+                    break;
+                case "pkg-size":
+                    settings.setPkgSize(DataSize.parse(value));
+                    break;
+                case "header-size":
+                    settings.setHeaderSize(DataSize.parse(value));
+                    break;
+                case "chunk-size":
+                    settings.setChunkSize(DataSize.parse(value));
+                    break;
+                case "warmup":
+                    settings.setWarmup(DurationStyle.detectAndParse(value));
+                    break;
+                case "duration":
+                    settings.setDuration(DurationStyle.detectAndParse(value));
+                    break;
+                case "stats-interval":
+                    settings.setStatsInterval(DurationStyle.detectAndParse(value));
+                    break;
+                case "directory":
+                    settings.setDirectory(Paths.get(value));
+                    break;
+                case "result":
+                    settings.setResult(Paths.get(value));
+                    break;
+                default:
+                    if (!name.contains(".")) {
+                        throw new IllegalArgumentException("Unknown argument: " + arg);
+                    }
+                    settings.getProperties().put(name, value);
+            }
+        }
+        return settings;
+    }
+
+}
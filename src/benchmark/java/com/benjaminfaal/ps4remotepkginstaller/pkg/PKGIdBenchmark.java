@@ -0,0 +1,69 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+// Resolving the ID in a /pkg/{id} URL to the PKG. The URLs used to contain the Base64 encoded path, now they contain
+// the ID of a PKGHandle that is looked up in the registry.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PKGIdBenchmark {
+
+    private static final int HANDLES = 1000;
+
+    private static final String PATH = "/home/user/Downloads/PS4/UP0000-CUSA00000_00-0000000000000000-A0100-V0100.pkg";
+
+    private final PKGHandleRegistry registry = new PKGHandleRegistry();
+
+    private String base64Path;
+
+    private String id;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < HANDLES; i++) {
+            registry.register("id" + i, PATH + i);
+        }
+        id = "id" + HANDLES / 2;
+        base64Path = Base64.getUrlEncoder().encodeToString(PATH.getBytes());
+    }
+
+    @Benchmark
+    public String base64Encode() {
+        return Base64.getUrlEncoder().encodeToString(PATH.getBytes());
+    }
+
+    @Benchmark
+    public File base64Decode() {
+        return new File(new String(Base64.getUrlDecoder().decode(base64Path)));
+    }
+
+    @Benchmark
+    public PKGHandle registryLookup() {
+        return registry.get(id);
+    }
+
+    @Benchmark
+    public PKGHandle registerAndRelease() {
+        PKGHandle handle = registry.register("restored", PATH);
+        registry.release(handle);
+        return handle;
+    }
+
+}
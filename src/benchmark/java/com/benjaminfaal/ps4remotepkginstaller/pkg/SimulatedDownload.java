@@ -0,0 +1,195 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import lombok.extern.apachecommons.CommonsLog;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// One console downloading PKGs over a kept-alive connection, the header first like when the install is requested and
+// then the PKG in ranges of the chunk size. The bodies are read into a direct buffer and dropped to keep the client cheap.
+@CommonsLog
+public class SimulatedDownload implements Runnable {
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+    private static final int MAX_RESPONSE_HEADER_SIZE = 8 * 1024;
+
+    private final InetSocketAddress server;
+
+    private final InetAddress consoleAddress;
+
+    private final List<String> paths;
+
+    private final long size;
+
+    private final PKGDownloadBenchmarkSettings settings;
+
+    private final DownloadStats stats;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+
+    private final byte[] responseHeader = new byte[MAX_RESPONSE_HEADER_SIZE];
+
+    private int next;
+
+    private SocketChannel socketChannel;
+
+    private volatile boolean running = true;
+
+    public SimulatedDownload(InetSocketAddress server, InetAddress consoleAddress, List<String> paths, int first,
+                             PKGDownloadBenchmarkSettings settings, DownloadStats stats) {
+        this.server = server;
+        this.consoleAddress = consoleAddress;
+        this.paths = paths;
+        this.next = first;
+        this.size = settings.getPkgSize().toBytes();
+        this.settings = settings;
+        this.stats = stats;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            String path = paths.get(next);
+            next = (next + 1) % paths.size();
+            try {
+                download(path);
+            } catch (IOException e) {
+                if (!running) {
+                    break;
+                }
+                stats.getErrors().increment();
+                log.debug("Error downloading " + path + " from " + consoleAddress.getHostAddress() + ": " + e.getMessage());
+                close();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException interruptedException) {
+                    break;
+                }
+            }
+        }
+        close();
+    }
+
+    public void stop() {
+        running = false;
+        // Unblocks a pending read
+        close();
+    }
+
+    private void download(String path) throws IOException {
+        requestRange(path, 0, Math.min(settings.getHeaderSize().toBytes(), size));
+        long chunkSize = settings.getChunkSize().toBytes();
+        for (long offset = 0; running && offset < size; offset += chunkSize) {
+            requestRange(path, offset, Math.min(chunkSize, size - offset));
+        }
+    }
+
+    private void requestRange(String path, long offset, long length) throws IOException {
+        boolean measuring = stats.isMeasuring();
+        long cpuStart = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+
+        SocketChannel socketChannel = connect();
+        buffer.clear();
+        buffer.put(("GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + server.getHostString() + ":" + server.getPort() + "\r\n"
+                + "Range: bytes=" + offset + "-" + (offset + length - 1) + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            socketChannel.write(buffer);
+        }
+
+        buffer.clear();
+        int headerEnd;
+        while ((headerEnd = findHeaderEnd()) == -1 || headerEnd > MAX_RESPONSE_HEADER_SIZE) {
+            if (buffer.position() >= MAX_RESPONSE_HEADER_SIZE) {
+                throw new IOException("Response header is too large");
+            }
+            if (socketChannel.read(buffer) == -1) {
+                throw new EOFException("Connection closed before the response");
+            }
+        }
+        for (int i = 0; i < headerEnd; i++) {
+            responseHeader[i] = buffer.get(i);
+        }
+        String[] lines = new String(responseHeader, 0, headerEnd, StandardCharsets.ISO_8859_1).split("\r\n");
+        if (!lines[0].contains(" 206 ")) {
+            throw new IOException("Unexpected response: " + lines[0]);
+        }
+        long contentLength = -1;
+        boolean close = false;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            String name = colon > 0 ? lines[i].substring(0, colon).trim() : "";
+            if (name.equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(lines[i].substring(colon + 1).trim());
+            } else if (name.equalsIgnoreCase("Connection")) {
+                close = lines[i].substring(colon + 1).trim().equalsIgnoreCase("close");
+            }
+        }
+        if (contentLength != length) {
+            throw new IOException("Expected " + length + " bytes but the response has " + contentLength);
+        }
+
+        long remaining = contentLength - (buffer.position() - headerEnd - 4);
+        while (remaining > 0) {
+            buffer.clear();
+            int read = socketChannel.read(buffer);
+            if (read == -1) {
+                throw new EOFException("Connection closed with " + remaining + " bytes remaining");
+            }
+            remaining -= read;
+        }
+        if (remaining < 0) {
+            throw new IOException("Response is longer than its Content-Length");
+        }
+        if (close) {
+            close();
+        }
+
+        if (measuring && stats.isMeasuring()) {
+            stats.record(length, System.nanoTime() - start, THREAD_MX_BEAN.getCurrentThreadCpuTime() - cpuStart);
+        }
+    }
+
+    private SocketChannel connect() throws IOException {
+        if (socketChannel == null) {
+            socketChannel = SocketChannel.open();
+            socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            socketChannel.bind(new InetSocketAddress(consoleAddress, 0));
+            socketChannel.connect(server);
+        }
+        return socketChannel;
+    }
+
+    private int findHeaderEnd() {
+        for (int i = 0; i + 3 < buffer.position(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void close() {
+        if (socketChannel != null) {
+            try {
+                socketChannel.close();
+            } catch (IOException ignored) {
+            }
+            socketChannel = null;
+        }
+    }
+
+}
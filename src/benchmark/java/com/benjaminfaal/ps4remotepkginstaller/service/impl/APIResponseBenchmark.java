@@ -0,0 +1,81 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Reading get_task_progress responses with their hexadecimal values without quotes. The regex rewrite is what the
+// response interceptor did before HexLiteralInputDecorator, compare gc.alloc.rate.norm of the two.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class APIResponseBenchmark {
+
+    private static final String TASK_PROGRESS = "{ \"status\": \"success\", \"bits\": 0x18a, \"error\": 0, \"length\": 0x1400000, "
+            + "\"transferred\": 0x940000, \"length_total\": 0x1900000, \"transferred_total\": 0x940000, \"num_index\": 1, "
+            + "\"num_total\": 2, \"rest_sec\": 12, \"rest_sec_total\": 30, \"preparing_percent\": 100, \"local_copy_percent\": -1 }";
+
+    private static final String ERROR = "{ \"status\": \"fail\", \"error_code\": 0x80990015 }";
+
+    private byte[] taskProgress;
+
+    private byte[] quotedTaskProgress;
+
+    private byte[] error;
+
+    private ObjectMapper objectMapper;
+
+    @Setup
+    public void setup() {
+        taskProgress = TASK_PROGRESS.getBytes(StandardCharsets.UTF_8);
+        quotedTaskProgress = quote(TASK_PROGRESS).getBytes(StandardCharsets.UTF_8);
+        error = ERROR.getBytes(StandardCharsets.UTF_8);
+        objectMapper = RemotePKGInstallerServiceImpl.createAPIObjectMapper();
+    }
+
+    private static String quote(String json) {
+        return json.replaceAll("0[xX][0-9a-fA-F]+", "\"$0\"");
+    }
+
+    @Benchmark
+    public TaskProgress regexInterceptor() throws IOException {
+        String json = quote(StreamUtils.copyToString(new ByteArrayInputStream(taskProgress), Charset.defaultCharset()));
+        return objectMapper.readValue(new ByteArrayInputStream(json.getBytes()), TaskProgress.class);
+    }
+
+    @Benchmark
+    public TaskProgress inputDecorator() throws IOException {
+        return objectMapper.readValue(new ByteArrayInputStream(taskProgress), TaskProgress.class);
+    }
+
+    // Lower bound, the values are already quoted so only the deserialization remains
+    @Benchmark
+    public TaskProgress quoted() throws IOException {
+        return objectMapper.readValue(new ByteArrayInputStream(quotedTaskProgress), TaskProgress.class);
+    }
+
+    @Benchmark
+    public TaskProgress errorResponse() throws IOException {
+        return objectMapper.readValue(new ByteArrayInputStream(error), TaskProgress.class);
+    }
+
+}
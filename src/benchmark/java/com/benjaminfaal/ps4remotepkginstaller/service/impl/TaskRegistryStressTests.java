@@ -0,0 +1,171 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallPKGUrlRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.L_Result;
+import org.openjdk.jcstress.infra.results.ZZ_Result;
+import org.openjdk.jcstress.infra.results.Z_Result;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+// Installs, removals, polls and serving PKGs racing on the TaskRegistry:
+// mvn -Pbenchmark test-compile exec:exec@jcstress -Dstress-tests=TaskRegistry
+public class TaskRegistryStressTests {
+
+    private static InstallRequest installRequest() {
+        return new InstallPKGUrlRequest();
+    }
+
+    // Installs don't lose each other, and the IDs stay in order
+    @JCStressTest
+    @Outcome(id = "[1, 2, 3]", expect = ACCEPTABLE, desc = "Both installed")
+    @Outcome(expect = FORBIDDEN, desc = "Lost or unordered install")
+    @State
+    public static class InstallInstall {
+
+        private final TaskRegistry taskRegistry = new TaskRegistry();
+
+        public InstallInstall() {
+            taskRegistry.put(3, installRequest());
+        }
+
+        @Actor
+        public void install2() {
+            taskRegistry.put(2, installRequest());
+        }
+
+        @Actor
+        public void install1() {
+            taskRegistry.put(1, installRequest());
+        }
+
+        @Arbiter
+        public void arbiter(L_Result result) {
+            result.r1 = taskRegistry.getTaskIds().toString();
+        }
+
+    }
+
+    // Changes don't lose each other
+    @JCStressTest
+    @Outcome(id = "[2, 3]", expect = ACCEPTABLE, desc = "Installed and removed")
+    @Outcome(expect = FORBIDDEN, desc = "Lost install or removal")
+    @State
+    public static class InstallRemove {
+
+        private final TaskRegistry taskRegistry = new TaskRegistry();
+
+        public InstallRemove() {
+            taskRegistry.put(1, installRequest());
+            taskRegistry.put(3, installRequest());
+        }
+
+        @Actor
+        public void install() {
+            taskRegistry.put(2, installRequest());
+        }
+
+        @Actor
+        public void remove() {
+            taskRegistry.remove(1);
+        }
+
+        @Arbiter
+        public void arbiter(L_Result result) {
+            result.r1 = taskRegistry.getTaskIds().toString();
+        }
+
+    }
+
+    // Serving a PKG reads a snapshot, which has the ID and the install request of a task or neither
+    @JCStressTest
+    @Outcome(id = "false, false", expect = ACCEPTABLE, desc = "Not installed yet")
+    @Outcome(id = "true, true", expect = ACCEPTABLE, desc = "Installed")
+    @Outcome(expect = FORBIDDEN, desc = "Snapshot has the ID without the install request or the other way around")
+    @State
+    public static class InstallServe {
+
+        private final TaskRegistry taskRegistry = new TaskRegistry();
+
+        @Actor
+        public void install() {
+            taskRegistry.put(1, installRequest());
+        }
+
+        @Actor
+        public void serve(ZZ_Result result) {
+            TaskRegistry.Snapshot snapshot = taskRegistry.snapshot();
+            result.r1 = snapshot.getTaskIds().contains(1);
+            result.r2 = snapshot.getInstallRequest(1) != null;
+        }
+
+    }
+
+    // A poll that answers while the task is removed doesn't bring its progress back
+    @JCStressTest
+    @Outcome(id = "false", expect = ACCEPTABLE, desc = "Progress removed with the task")
+    @Outcome(id = "true", expect = FORBIDDEN, desc = "Progress of a removed task")
+    @State
+    public static class RemovePoll {
+
+        private final TaskRegistry taskRegistry = new TaskRegistry();
+
+        public RemovePoll() {
+            taskRegistry.put(1, installRequest());
+        }
+
+        @Actor
+        public void remove() {
+            taskRegistry.remove(1);
+        }
+
+        @Actor
+        public void poll() {
+            taskRegistry.putProgress(1, new TaskProgress());
+        }
+
+        @Arbiter
+        public void arbiter(Z_Result result) {
+            result.r1 = taskRegistry.getProgress(1) != null;
+        }
+
+    }
+
+    // Neither does one that finds the task finished, which would be journaled again
+    @JCStressTest
+    @Outcome(id = "false", expect = ACCEPTABLE, desc = "Finished progress removed with the task")
+    @Outcome(id = "true", expect = FORBIDDEN, desc = "Finished progress of a removed task")
+    @State
+    public static class RemoveFinish {
+
+        private final TaskRegistry taskRegistry = new TaskRegistry();
+
+        public RemoveFinish() {
+            taskRegistry.put(1, installRequest());
+        }
+
+        @Actor
+        public void remove() {
+            taskRegistry.remove(1);
+        }
+
+        @Actor
+        public void finish() {
+            taskRegistry.putFinished(1, new TaskProgress());
+        }
+
+        @Arbiter
+        public void arbiter(Z_Result result) {
+            result.r1 = taskRegistry.getFinished().containsKey(1);
+        }
+
+    }
+
+}
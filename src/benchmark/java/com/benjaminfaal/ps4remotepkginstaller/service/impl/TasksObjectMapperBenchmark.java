@@ -0,0 +1,90 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallManifestJSONUrlRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallPKGUrlRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallPackagesRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallRequest;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Saving and loading the install requests setting, which was rewritten on every install and removal before the TaskJournal
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TasksObjectMapperBenchmark {
+
+    private static final TypeReference<HashMap<Integer, InstallRequest>> TYPE_REFERENCE = new TypeReference<HashMap<Integer, InstallRequest>>() {};
+
+    @Param({"10", "1000", "100000"})
+    private int entries;
+
+    private final ObjectMapper objectMapper = RemotePKGInstallerServiceImpl.createTasksObjectMapper();
+
+    private Map<Integer, InstallRequest> installRequests;
+
+    private String json;
+
+    @Setup
+    public void setup() throws JsonProcessingException {
+        installRequests = new HashMap<>();
+        for (int i = 0; i < entries; i++) {
+            installRequests.put(i, createInstallRequest(i));
+        }
+        json = objectMapper.writeValueAsString(installRequests);
+    }
+
+    // Mostly local PKGs, like the UI installs them
+    private static InstallRequest createInstallRequest(int i) {
+        switch (i % 4) {
+            case 0:
+                InstallPKGUrlRequest pkgUrlRequest = new InstallPKGUrlRequest();
+                pkgUrlRequest.setPackages(new String[]{"http://example.com/UP0000-CUSA" + i + "_00-0000000000000000.pkg"});
+                return pkgUrlRequest;
+            case 1:
+                InstallManifestJSONUrlRequest manifestJSONUrlRequest = new InstallManifestJSONUrlRequest();
+                manifestJSONUrlRequest.setUrl("http://example.com/UP0000-CUSA" + i + "_00-0000000000000000.json");
+                return manifestJSONUrlRequest;
+            default:
+                InstallPackagesRequest packagesRequest = new InstallPackagesRequest();
+                packagesRequest.setPackages(new String[]{
+                        "http://192.168.1.10:8081/pkg/" + Integer.toHexString(i) + "a1b2c3d4e5f60718293a4b5c6d7e8f90",
+                        "http://192.168.1.10:8081/pkg/" + Integer.toHexString(i) + "0f1e2d3c4b5a69788796a5b4c3d2e1f0"
+                });
+                packagesRequest.setLocalFiles(new String[]{
+                        "/home/user/Downloads/PS4/UP0000-CUSA" + i + "_00-0000000000000000-A0100-V0100.pkg",
+                        "/home/user/Downloads/PS4/UP0000-CUSA" + i + "_00-0000000000000000-A0101-V0100.pkg"
+                });
+                return packagesRequest;
+        }
+    }
+
+    @Benchmark
+    public String serialize() throws JsonProcessingException {
+        return objectMapper.writeValueAsString(installRequests);
+    }
+
+    @Benchmark
+    public Map<Integer, InstallRequest> deserialize() throws JsonProcessingException {
+        return objectMapper.readValue(json, TYPE_REFERENCE);
+    }
+
+}
@@ -10,9 +10,13 @@ import org.springframework.util.DefaultPropertiesPersister;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Properties;
 
 @Component
@@ -32,9 +36,18 @@ public class Settings {
         load(properties);
     }
 
+    // Also called right away for settings that must survive a crash. Written to a temporary file first, so a crash
+    // while saving doesn't leave a truncated settings file.
     @PreDestroy
-    public void save() throws IOException {
-        new DefaultPropertiesPersister().store(properties, new FileWriter(PROPERTIES_FILE), projectName);
+    public synchronized void save() throws IOException {
+        File temporaryFile = new File(PROPERTIES_FILE.getPath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(temporaryFile);
+             Writer writer = new OutputStreamWriter(outputStream)) {
+            new DefaultPropertiesPersister().store(properties, writer, projectName);
+            writer.flush();
+            outputStream.getFD().sync();
+        }
+        Files.move(temporaryFile.toPath(), PROPERTIES_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
     public static void load(Properties properties) throws IOException {
@@ -16,6 +16,8 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
         http
                 .authorizeRequests().antMatchers("/pkg/**").permitAll()
                 .and()
+                .authorizeRequests().antMatchers("/actuator/health").permitAll()
+                .and()
                 .authorizeRequests().anyRequest().authenticated()
                 .and()
                 .oauth2Login();
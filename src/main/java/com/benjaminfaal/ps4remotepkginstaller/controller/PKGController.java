@@ -1,43 +1,122 @@
 package com.benjaminfaal.ps4remotepkginstaller.controller;
 
-import com.benjaminfaal.ps4remotepkginstaller.service.RemotePKGInstallerService;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGBandwidthScheduler;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGChunkCache;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGHandle;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGRange;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGReadAhead;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGTransfer;
+import com.benjaminfaal.ps4remotepkginstaller.service.PKGService;
+import lombok.extern.apachecommons.CommonsLog;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.io.File;
-import java.util.Base64;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
+@CommonsLog
 @RequestMapping("/pkg")
 @RestController
 public class PKGController {
 
+    // Tomcat sends the file with sendfile when these request attributes are set and the body is left untouched
+    private static final String SENDFILE_SUPPORTED_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+
+    private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+
+    private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+
+    private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     @Autowired
-    private RemotePKGInstallerService remotePKGInstallerService;
-
-    @GetMapping("/{fileBase64}")
-    public ResponseEntity<Resource> getPkg(@PathVariable String fileBase64, @RequestParam(required = false) String downloadId) {
-        if (downloadId != null) {
-            Integer taskId = Integer.parseInt(downloadId, 16);
-            if (remotePKGInstallerService.getInstallRequest(taskId) == null) {
-                return ResponseEntity.notFound().build();
-            }
+    private PKGService pkgService;
+
+    @Autowired
+    private PKGChunkCache pkgChunkCache;
+
+    @Autowired
+    private PKGReadAhead pkgReadAhead;
+
+    @Autowired
+    private PKGBandwidthScheduler pkgBandwidthScheduler;
+
+    @RequestMapping(value = "/{id}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getPkg(@PathVariable String id,
+                       @RequestParam(required = false) String downloadId,
+                       @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                       @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+                       HttpServletRequest request,
+                       HttpServletResponse response) throws IOException {
+        PKGHandle handle = pkgService.getHandle(id, downloadId);
+        if (handle == null) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+
+        long size = handle.getSize();
+        long lastModified = handle.getLastModified();
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, PKGRange.toETag(size, lastModified));
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+
+        PKGRange pkgRange = PKGRange.resolve(range, ifRange, size, lastModified);
+        if (pkgRange == null) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, PKGRange.toUnsatisfiedContentRange(size));
+            response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            return;
+        }
+
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setContentLengthLong(pkgRange.getLength());
+        if (pkgRange.isPartial()) {
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setHeader(HttpHeaders.CONTENT_RANGE, pkgRange.toContentRange(size));
         }
 
-        File file = new File(new String(Base64.getUrlDecoder().decode(fileBase64)));
-        if (file.exists() && file.isFile()) {
-            return ResponseEntity.ok()
-                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .body(new FileSystemResource(file));
+        if (RequestMethod.HEAD.name().equals(request.getMethod()) || pkgRange.getLength() == 0) {
+            return;
+        }
+
+        // Sendfile is skipped when concurrent downloads should share reads through the chunk cache, when writes have to be
+        // paced for the bandwidth limit, for ranges spanning multiple files (like RAR volumes) and for data still being extracted
+        PKGHandle.Segment segment = handle.getSegment(pkgRange.getStart());
+        if (!pkgChunkCache.isEnabled() && pkgBandwidthScheduler.getLimit() == 0 && pkgRange.getEnd() < segment.getEnd()
+                && handle.getAvailable(pkgRange.getStart()) >= pkgRange.getLength()
+                && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTRIBUTE))) {
+            long start = segment.getOffset() + pkgRange.getStart() - segment.getStart();
+            request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, segment.getFile().getAbsolutePath());
+            request.setAttribute(SENDFILE_START_ATTRIBUTE, start);
+            request.setAttribute(SENDFILE_END_ATTRIBUTE, start + pkgRange.getLength());
+            return;
+        }
+
+        response.setBufferSize(BUFFER_SIZE);
+        PKGBandwidthScheduler.Flow flow = pkgBandwidthScheduler.getFlow(handle, downloadId, request.getRemoteAddr());
+        try (PKGTransfer transfer = new PKGTransfer(handle, pkgChunkCache, pkgReadAhead.getStream(handle, downloadId), flow, pkgRange)) {
+            WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+            while (!transfer.isDone()) {
+                transfer.transferTo(target);
+                if (transfer.isStalled()) {
+                    transfer.awaitStall();
+                }
+            }
+        } catch (IOException e) {
+            // The PS4 regularly aborts range requests, that is not an error
+            log.debug("Stopped serving " + handle.getLocation() + ": " + e.getMessage());
         }
-        return ResponseEntity.notFound().build();
     }
 
 }
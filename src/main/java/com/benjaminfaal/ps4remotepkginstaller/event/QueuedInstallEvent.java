@@ -0,0 +1,17 @@
+package com.benjaminfaal.ps4remotepkginstaller.event;
+
+import com.benjaminfaal.ps4remotepkginstaller.model.QueuedInstall;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.InstallResponse;
+import lombok.Data;
+
+// A queued install was submitted to the console and left the queue, with the response or the error submitting it
+@Data
+public class QueuedInstallEvent {
+
+    private final QueuedInstall install;
+
+    private final InstallResponse response;
+
+    private final RuntimeException error;
+
+}
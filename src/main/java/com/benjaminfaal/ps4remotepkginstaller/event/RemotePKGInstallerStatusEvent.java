@@ -0,0 +1,13 @@
+package com.benjaminfaal.ps4remotepkginstaller.event;
+
+import lombok.Data;
+
+// The Remote PKG Installer of a console started or stopped running, or its state is known for the first time
+@Data
+public class RemotePKGInstallerStatusEvent {
+
+    private final String host;
+
+    private final boolean running;
+
+}
@@ -0,0 +1,15 @@
+package com.benjaminfaal.ps4remotepkginstaller.event;
+
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+import lombok.Data;
+
+// A new snapshot of a task was polled
+@Data
+public class TaskProgressEvent {
+
+    // Of the console, task IDs of different consoles collide
+    private final String host;
+
+    private final TaskProgress task;
+
+}
@@ -5,6 +5,8 @@ import lombok.Data;
 @Data
 public class TaskUpdateEvent {
 
+    private final String host;
+
     private final Integer taskId;
 
 }
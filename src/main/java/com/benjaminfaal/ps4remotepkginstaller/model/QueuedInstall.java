@@ -0,0 +1,42 @@
+package com.benjaminfaal.ps4remotepkginstaller.model;
+
+import lombok.Data;
+
+// An install waiting in the local queue until the console has room for it, see InstallQueueService
+@Data
+public class QueuedInstall {
+
+    public static final int HIGH_PRIORITY = 1;
+
+    public static final int NORMAL_PRIORITY = 0;
+
+    public static final int LOW_PRIORITY = -1;
+
+    private long id;
+
+    // Console the install is submitted to
+    private String host;
+
+    // Higher first, then in the order they were queued
+    private int priority = NORMAL_PRIORITY;
+
+    private Type type;
+
+    private String[] files;
+
+    private String rarFile;
+
+    private String[] entryNames;
+
+    private String url;
+
+    public enum Type {
+        FILES,
+        RAR_ENTRIES,
+        // Extracted when it is submitted, or served from the extraction cache
+        RAR_EXTRACTION,
+        PKG_URL,
+        MANIFEST_JSON_URL
+    }
+
+}
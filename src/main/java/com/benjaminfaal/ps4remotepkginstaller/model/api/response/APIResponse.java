@@ -20,7 +20,7 @@ public abstract class APIResponse {
         return status == Status.success;
     }
 
-    private enum Status {
+    public enum Status {
         success,
         fail
     }
@@ -1,11 +1,14 @@
 package com.benjaminfaal.ps4remotepkginstaller.model.api.response;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.annotation.JsonNaming;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
 
 @Data
 @NoArgsConstructor
@@ -14,27 +17,55 @@ public class TaskProgress extends APIResponse {
 
     private Integer id;
 
-    private String bits;
+    private int bits;
 
-    private String length;
+    private long length;
 
-    private String transferred;
+    private long transferred;
 
-    private String lengthTotal;
+    private long lengthTotal;
 
-    private String transferredTotal;
+    private long transferredTotal;
 
-    private Integer numIndex;
+    private int numIndex;
 
-    private Integer numTotal;
+    private int numTotal;
 
-    private Long restSec;
+    private long restSec;
 
-    private Long restSecTotal;
+    private long restSecTotal;
 
-    private Integer preparingPercent;
+    private int preparingPercent;
 
-    private Integer localCopyPercent;
+    private int localCopyPercent;
+
+    // Derived once per response by resolve(), shared by everything showing this snapshot of the task
+
+    @JsonIgnore
+    @Setter(AccessLevel.NONE)
+    private int percentage;
+
+    @JsonIgnore
+    @Setter(AccessLevel.NONE)
+    private long remaining;
+
+    // Null for bits that don't match any known status
+    @JsonIgnore
+    @Setter(AccessLevel.NONE)
+    private Status state;
+
+    // Installed or failed, it won't change anymore. A failed get_task_progress call says nothing about the task itself.
+    @JsonIgnore
+    @Setter(AccessLevel.NONE)
+    private boolean finished;
+
+    public TaskProgress resolve() {
+        percentage = lengthTotal > 0 ? (int) (transferredTotal * 100 / lengthTotal) : 0;
+        remaining = Math.max(lengthTotal - transferredTotal, 0);
+        state = Status.of(bits);
+        finished = state == Status.INSTALLED || (isSuccess() && getError() != null && getError() != 0);
+        return this;
+    }
 
     @Getter
     @AllArgsConstructor
@@ -50,6 +81,15 @@ public class TaskProgress extends APIResponse {
 
         private final String description;
 
+        public static Status of(int bits) {
+            for (Status status : values()) {
+                if ((bits & status.bits) == status.bits) {
+                    return status;
+                }
+            }
+            return null;
+        }
+
     }
 
 }
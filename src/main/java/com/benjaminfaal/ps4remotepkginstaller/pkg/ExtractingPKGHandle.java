@@ -0,0 +1,25 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import java.io.IOException;
+
+// PKG that is still being extracted from a RAR archive, reads wait until the data they need has been extracted
+public class ExtractingPKGHandle extends PKGHandle {
+
+    private final RARExtractor.ExtractedFile extractedFile;
+
+    ExtractingPKGHandle(String id, RARExtractor.ExtractedFile extractedFile) {
+        super(id, extractedFile.getFile());
+        this.extractedFile = extractedFile;
+    }
+
+    @Override
+    public long getAvailable(long position) throws IOException {
+        return extractedFile.getAvailable(position);
+    }
+
+    @Override
+    public void awaitAvailable(long position, long length) throws IOException {
+        extractedFile.awaitAvailable(position, length);
+    }
+
+}
@@ -0,0 +1,198 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Divides the global bandwidth limit between active downloads by task and console weight, with a token bucket per download
+@CommonsLog
+@Component
+public class PKGBandwidthScheduler {
+
+    public static final double DEFAULT_WEIGHT = 1;
+
+    // Largest grant per call, keeps the buckets fine grained without making calls too frequent
+    private static final long QUANTUM = 256 * 1024;
+
+    // Smallest grant, avoids tiny writes for flows with a low rate
+    private static final long MIN_GRANT = 16 * 1024;
+
+    private static final long RECOMPUTE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final long ACTIVE_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static final long FLOW_IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+
+    @Value("${pkg.bandwidth.limit:0}")
+    private DataSize initialLimit;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // Bytes per second, 0 is unlimited
+    private volatile long limit;
+
+    private final Map<String, Flow> flows = new ConcurrentHashMap<>();
+
+    // By task ID at the console address, task IDs of different consoles collide
+    private final Map<String, Double> taskWeights = new ConcurrentHashMap<>();
+
+    private final Map<String, Double> consoleWeights = new ConcurrentHashMap<>();
+
+    private volatile long lastRecompute;
+
+    @PostConstruct
+    public void init() {
+        setLimit(initialLimit.toBytes());
+        Gauge.builder("pkg.bandwidth.limit", this, PKGBandwidthScheduler::getLimit).baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("pkg.bandwidth.flows", flows, Map::size).register(meterRegistry);
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    // A negative limit would make every rate negative and stall all downloads
+    public void setLimit(long limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Bandwidth limit can't be negative: " + limit);
+        }
+        this.limit = limit;
+        log.info("PKG bandwidth limit set to " + (limit == 0 ? "unlimited" : limit + " bytes/s"));
+    }
+
+    public double getTaskWeight(String consoleHost, Integer taskId) {
+        return taskWeights.getOrDefault(taskId + "@" + consoleHost, DEFAULT_WEIGHT);
+    }
+
+    public void setTaskWeight(String consoleHost, Integer taskId, double weight) {
+        taskWeights.put(taskId + "@" + consoleHost, weight);
+    }
+
+    public void removeTask(String consoleHost, Integer taskId) {
+        taskWeights.remove(taskId + "@" + consoleHost);
+    }
+
+    public double getConsoleWeight(String host) {
+        return consoleWeights.getOrDefault(host, DEFAULT_WEIGHT);
+    }
+
+    public void setConsoleWeight(String host, double weight) {
+        consoleWeights.put(host, weight);
+    }
+
+    // Downloads without a downloadId (like the PKG header reads during install) share a flow per console and PKG
+    public Flow getFlow(PKGHandle handle, String downloadId, String consoleHost) {
+        String key = (downloadId != null ? downloadId : handle.getId()) + "@" + consoleHost;
+        return flows.computeIfAbsent(key, k -> new Flow(parseTaskId(downloadId), consoleHost));
+    }
+
+    private static Integer parseTaskId(String downloadId) {
+        try {
+            return downloadId != null ? Integer.parseInt(downloadId, 16) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Forced for flows that have no rate yet, so a new download doesn't wait for the next interval
+    private synchronized void recompute(long now, boolean force) {
+        if (!force && now - lastRecompute < RECOMPUTE_INTERVAL) {
+            return;
+        }
+        lastRecompute = now;
+        flows.values().removeIf(flow -> now - flow.lastActive > FLOW_IDLE_TIMEOUT);
+
+        double totalWeight = 0;
+        for (Flow flow : flows.values()) {
+            flow.weight = (flow.taskId != null ? getTaskWeight(flow.consoleHost, flow.taskId) : DEFAULT_WEIGHT) * getConsoleWeight(flow.consoleHost);
+            if (now - flow.lastActive <= ACTIVE_TIMEOUT) {
+                totalWeight += flow.weight;
+            }
+        }
+        long limit = this.limit;
+        for (Flow flow : flows.values()) {
+            flow.rate = totalWeight > 0 ? limit * flow.weight / totalWeight : limit;
+            flow.rated = true;
+        }
+    }
+
+    public class Flow {
+
+        private final Integer taskId;
+
+        private final String consoleHost;
+
+        private volatile double weight = DEFAULT_WEIGHT;
+
+        // Bytes per second
+        private volatile double rate;
+
+        private volatile boolean rated;
+
+        private double tokens;
+
+        private long lastRefill = System.nanoTime();
+
+        private volatile long lastActive = System.nanoTime();
+
+        private Flow(Integer taskId, String consoleHost) {
+            this.taskId = taskId;
+            this.consoleHost = consoleHost;
+        }
+
+        // Returns how many of the wanted bytes may be written now, 0 when throttled
+        public long acquire(long wanted) {
+            long now = System.nanoTime();
+            lastActive = now;
+            if (limit == 0) {
+                return wanted;
+            }
+            if (!rated) {
+                recompute(now, true);
+            } else if (now - lastRecompute >= RECOMPUTE_INTERVAL) {
+                recompute(now, false);
+            }
+
+            synchronized (this) {
+                double rate = this.rate;
+                // Allow bursts of 100ms, but at least one quantum so slow flows still make progress
+                double burst = Math.max(rate / 10, QUANTUM);
+                tokens = Math.min(burst, tokens + rate * (now - lastRefill) / 1e9);
+                lastRefill = now;
+
+                if (tokens < Math.min(wanted, MIN_GRANT)) {
+                    return 0;
+                }
+                long granted = (long) Math.min(Math.min(wanted, QUANTUM), tokens);
+                tokens -= granted;
+                return granted;
+            }
+        }
+
+        public synchronized void refund(long bytes) {
+            tokens += bytes;
+        }
+
+        // Time until the next grant
+        public synchronized long getThrottleNanos() {
+            double rate = this.rate;
+            if (rate <= 0) {
+                return RECOMPUTE_INTERVAL;
+            }
+            double missing = Math.max(MIN_GRANT - tokens, 0);
+            return Math.min((long) (missing / rate * 1e9), RECOMPUTE_INTERVAL);
+        }
+
+    }
+
+}
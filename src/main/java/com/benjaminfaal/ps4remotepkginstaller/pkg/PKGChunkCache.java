@@ -0,0 +1,248 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.Getter;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Off-heap cache of aligned PKG chunks shared by all downloads of the same file, evicted with the CLOCK algorithm
+@CommonsLog
+@Component
+public class PKGChunkCache {
+
+    @Value("${pkg.cache.size:0}")
+    private DataSize size;
+
+    @Getter
+    @Value("${pkg.cache.chunk-size:1MB}")
+    private DataSize chunkSize;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<ChunkKey, Chunk> chunks = new ConcurrentHashMap<>();
+
+    private ByteBuffer[] buffers;
+
+    private Chunk[] ring;
+
+    private int hand;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        int slots = (int) (size.toBytes() / chunkSize.toBytes());
+        buffers = new ByteBuffer[slots];
+        ring = new Chunk[slots];
+        if (isEnabled()) {
+            log.info("PKG chunk cache enabled with " + slots + " chunks of " + chunkSize.toBytes() + " bytes");
+        }
+
+        FunctionCounter.builder("pkg.cache.hits", hits, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("pkg.cache.misses", misses, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("pkg.cache.evictions", evictions, LongAdder::sum).register(meterRegistry);
+        Gauge.builder("pkg.cache.size", chunks, Map::size).baseUnit("chunks").register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return ring.length > 0;
+    }
+
+    // The returned chunk stays pinned in the cache until it is released
+    public Chunk acquire(PKGHandle handle, long index) throws IOException {
+        ChunkKey key = new ChunkKey(handle.getIdentity(), index);
+        while (true) {
+            Chunk chunk = chunks.get(key);
+            if (chunk != null) {
+                if (!chunk.pin()) {
+                    // Evicted in the meantime
+                    continue;
+                }
+                hits.increment();
+                chunk.referenced = true;
+                try {
+                    chunk.awaitLoaded();
+                } catch (IOException e) {
+                    chunk.release();
+                    throw e;
+                }
+                return chunk;
+            }
+
+            misses.increment();
+            chunk = allocate(key);
+            if (chunk == null) {
+                // Every chunk is in use, read without caching
+                chunk = new Chunk(key, -1, ByteBuffer.allocate((int) chunkSize.toBytes()));
+                chunk.load(handle, index * chunkSize.toBytes());
+                return chunk;
+            }
+            if (chunks.putIfAbsent(key, chunk) != null) {
+                discard(chunk);
+                continue;
+            }
+            try {
+                chunk.load(handle, index * chunkSize.toBytes());
+            } catch (IOException e) {
+                chunks.remove(key, chunk);
+                chunk.release();
+                discard(chunk);
+                throw e;
+            }
+            return chunk;
+        }
+    }
+
+    public boolean contains(PKGHandle handle, long index) throws IOException {
+        return chunks.containsKey(new ChunkKey(handle.getIdentity(), index));
+    }
+
+    private synchronized Chunk allocate(ChunkKey key) {
+        // Two rounds, the first may only clear referenced bits
+        for (int scanned = 0; scanned < ring.length * 2; scanned++) {
+            int slot = hand;
+            hand = (hand + 1) % ring.length;
+
+            Chunk current = ring[slot];
+            if (current != null) {
+                if (current.referenced) {
+                    current.referenced = false;
+                    continue;
+                }
+                if (!current.evict()) {
+                    continue;
+                }
+                chunks.remove(current.key, current);
+                evictions.increment();
+            }
+
+            if (buffers[slot] == null) {
+                buffers[slot] = ByteBuffer.allocateDirect((int) chunkSize.toBytes());
+            }
+            Chunk chunk = new Chunk(key, slot, buffers[slot]);
+            ring[slot] = chunk;
+            return chunk;
+        }
+        return null;
+    }
+
+    private synchronized void discard(Chunk chunk) {
+        chunk.pins.set(-1);
+        if (ring[chunk.slot] == chunk) {
+            ring[chunk.slot] = null;
+        }
+    }
+
+    @Data
+    private static class ChunkKey {
+
+        private final List<Object> identity;
+
+        private final long index;
+
+    }
+
+    public static class Chunk {
+
+        private final ChunkKey key;
+
+        private final int slot;
+
+        private final ByteBuffer buffer;
+
+        // -1 when evicted
+        private final AtomicInteger pins = new AtomicInteger(1);
+
+        private final CompletableFuture<Integer> loaded = new CompletableFuture<>();
+
+        private volatile boolean referenced = true;
+
+        private Chunk(ChunkKey key, int slot, ByteBuffer buffer) {
+            this.key = key;
+            this.slot = slot;
+            this.buffer = buffer;
+        }
+
+        // Read-only view of the loaded bytes, positioned at the start of the chunk
+        public ByteBuffer getBuffer() {
+            ByteBuffer view = buffer.asReadOnlyBuffer();
+            view.clear();
+            view.limit(loaded.join());
+            return view;
+        }
+
+        public void release() {
+            if (slot != -1) {
+                pins.decrementAndGet();
+            }
+        }
+
+        private boolean pin() {
+            int current;
+            do {
+                current = pins.get();
+                if (current < 0) {
+                    return false;
+                }
+            } while (!pins.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        private boolean evict() {
+            return pins.compareAndSet(0, -1);
+        }
+
+        private void load(PKGHandle handle, long position) throws IOException {
+            try {
+                ByteBuffer target = buffer.duplicate();
+                target.clear();
+                while (target.hasRemaining()) {
+                    int read = handle.read(target, position + target.position());
+                    if (read == -1) {
+                        break;
+                    }
+                }
+                loaded.complete(target.position());
+            } catch (IOException | RuntimeException e) {
+                loaded.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        private void awaitLoaded() throws IOException {
+            try {
+                loaded.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for chunk");
+            } catch (ExecutionException e) {
+                throw new IOException("Error loading chunk", e.getCause());
+            }
+        }
+
+    }
+
+}
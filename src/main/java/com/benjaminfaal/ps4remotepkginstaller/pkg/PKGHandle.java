@@ -0,0 +1,236 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Shared read-only view of a PKG, opened once and served by ID. A PKG consists of one or more segments of files,
+// a plain PKG file is a single segment.
+public class PKGHandle implements Closeable {
+
+    @Getter
+    private final String id;
+
+    @Getter
+    private final File file;
+
+    private volatile List<Segment> segments;
+
+    private long size;
+
+    private long lastModified;
+
+    private List<Object> identity;
+
+    private boolean closed;
+
+    PKGHandle(String id, File file) {
+        this.id = id;
+        this.file = file;
+    }
+
+    // Stored with the install request so the handle can be registered again after a restart
+    public String getLocation() {
+        return file.getAbsolutePath();
+    }
+
+    public List<Segment> getSegments() throws IOException {
+        List<Segment> segments = this.segments;
+        if (segments == null) {
+            synchronized (this) {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                if (this.segments == null) {
+                    open();
+                }
+                segments = this.segments;
+            }
+        }
+        return segments;
+    }
+
+    public long getSize() throws IOException {
+        getSegments();
+        return size;
+    }
+
+    public long getLastModified() throws IOException {
+        getSegments();
+        return lastModified;
+    }
+
+    // Same for every handle of the same unchanged data, so caches can be shared between tasks
+    public List<Object> getIdentity() throws IOException {
+        getSegments();
+        return identity;
+    }
+
+    public Segment getSegment(long position) throws IOException {
+        List<Segment> segments = getSegments();
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segments.get(middle).start <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return segments.get(low);
+    }
+
+    // Bytes from the position that can be read without waiting, less than the rest of the PKG while it is still being written
+    public long getAvailable(long position) throws IOException {
+        return getSize() - position;
+    }
+
+    // Blocks until the given number of bytes from the position can be read
+    public void awaitAvailable(long position, long length) throws IOException {
+    }
+
+    // Zero-copy, stops at the end of the segment containing the position
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        awaitAvailable(position, 1);
+        Segment segment = getSegment(position);
+        long filePosition = segment.offset + position - segment.start;
+        count = Math.min(count, Math.min(segment.getEnd() - position, getAvailable(position)));
+        long written = segment.channel.transferTo(filePosition, count, target);
+        if (written == 0 && filePosition >= segment.channel.size()) {
+            throw new EOFException(segment.file + " was truncated while serving");
+        }
+        return written;
+    }
+
+    // Stops at the end of the segment containing the position, returns -1 at the end of the PKG
+    public int read(ByteBuffer target, long position) throws IOException {
+        if (position >= getSize()) {
+            return -1;
+        }
+        awaitAvailable(position, 1);
+        Segment segment = getSegment(position);
+        int limit = target.limit();
+        target.limit((int) Math.min(limit, target.position() + Math.min(segment.getEnd() - position, getAvailable(position))));
+        try {
+            return segment.channel.read(target, segment.offset + position - segment.start);
+        } finally {
+            target.limit(limit);
+        }
+    }
+
+    // Overridden by handles that serve from other containers, a length of -1 is the rest of the file
+    protected List<Segment> resolveSegments() throws IOException {
+        return Collections.singletonList(new Segment(file, 0, -1));
+    }
+
+    private void open() throws IOException {
+        List<Segment> segments = resolveSegments();
+        List<Object> identity = new ArrayList<>();
+        long size = 0;
+        long lastModified = 0;
+        try {
+            for (Segment segment : segments) {
+                BasicFileAttributes attributes = Files.readAttributes(segment.file.toPath(), BasicFileAttributes.class);
+                if (!attributes.isRegularFile()) {
+                    throw new FileNotFoundException(segment.file.getAbsolutePath());
+                }
+                if (segment.length == -1) {
+                    segment.length = attributes.size() - segment.offset;
+                } else if (segment.offset + segment.length > attributes.size()) {
+                    throw new EOFException(segment.file + " is shorter than expected");
+                }
+                segment.start = size;
+                size += segment.length;
+
+                long segmentLastModified = attributes.lastModifiedTime().toMillis();
+                lastModified = Math.max(lastModified, segmentLastModified);
+                Object fileKey = attributes.fileKey() != null ? attributes.fileKey() : segment.file.getAbsolutePath();
+                identity.addAll(Arrays.asList(fileKey, segment.offset, segment.length, segmentLastModified));
+
+                segment.channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ);
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                closeSegments(segments);
+            } catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+            throw e;
+        }
+        this.size = size;
+        this.lastModified = lastModified;
+        this.identity = identity;
+        this.segments = Collections.unmodifiableList(segments);
+    }
+
+    private static void closeSegments(List<Segment> segments) throws IOException {
+        IOException exception = null;
+        for (Segment segment : segments) {
+            if (segment.channel != null) {
+                try {
+                    segment.channel.close();
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (segments != null) {
+            closeSegments(segments);
+        }
+    }
+
+    public static class Segment {
+
+        @Getter
+        private final File file;
+
+        // Where the segment starts in the file
+        @Getter
+        private final long offset;
+
+        @Getter
+        private long length;
+
+        // Where the segment starts in the PKG
+        @Getter
+        private long start;
+
+        private FileChannel channel;
+
+        public Segment(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public long getEnd() {
+            return start + length;
+        }
+
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+@CommonsLog
+@Component
+public class PKGHandleRegistry {
+
+    private final Map<String, PKGHandle> handles = new ConcurrentHashMap<>();
+
+    // By task ID at the console host, task IDs of different consoles collide
+    private final Map<String, List<PKGHandle>> taskHandles = new ConcurrentHashMap<>();
+
+    // Installed or failed, the PS4 no longer downloads their PKGs unless a failed task is retried
+    private final Set<String> finishedTasks = ConcurrentHashMap.newKeySet();
+
+    // Opens the file right away so missing or unreadable files fail before the PS4 is asked to download them
+    public PKGHandle register(File file) throws IOException {
+        return open(new PKGHandle(generateId(), file));
+    }
+
+    // Entry of a RAR archive, only stored entries can be served
+    public PKGHandle register(File archive, String entryName) throws IOException {
+        return open(new RARPKGHandle(generateId(), archive, entryName));
+    }
+
+    // Parts of a split PKG, served as one PKG
+    public PKGHandle register(List<File> parts) throws IOException {
+        return open(new SplitPKGHandle(generateId(), parts));
+    }
+
+    // PKG that is still being extracted, served while it grows
+    public PKGHandle register(RARExtractor.ExtractedFile extractedFile) throws IOException {
+        return open(new ExtractingPKGHandle(generateId(), extractedFile));
+    }
+
+    // Opens the location lazily on the first request, used for restoring handles of previous tasks
+    public PKGHandle register(String id, String location) {
+        PKGHandle handle;
+        int separator = location.indexOf(RARPKGHandle.SEPARATOR);
+        if (separator != -1 && new File(location.substring(0, separator)).isFile()) {
+            handle = new RARPKGHandle(id, new File(location.substring(0, separator)), location.substring(separator + RARPKGHandle.SEPARATOR.length()));
+        } else if (location.contains(File.pathSeparator) && !new File(location).exists()) {
+            List<File> parts = Arrays.stream(location.split(Pattern.quote(File.pathSeparator))).map(File::new).collect(Collectors.toList());
+            handle = new SplitPKGHandle(id, parts);
+        } else {
+            handle = new PKGHandle(id, new File(location));
+        }
+        handles.put(id, handle);
+        return handle;
+    }
+
+    private PKGHandle open(PKGHandle handle) throws IOException {
+        handles.put(handle.getId(), handle);
+        try {
+            handle.getSegments();
+        } catch (IOException e) {
+            release(handle);
+            throw e;
+        }
+        return handle;
+    }
+
+    private String generateId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    public void bind(String host, Integer taskId, Collection<PKGHandle> handles) {
+        taskHandles.computeIfAbsent(taskId + "@" + host, key -> new CopyOnWriteArrayList<>()).addAll(handles);
+    }
+
+    public PKGHandle get(String id) {
+        return handles.get(id);
+    }
+
+    public void setFinished(String host, Integer taskId, boolean finished) {
+        if (finished) {
+            finishedTasks.add(taskId + "@" + host);
+        } else {
+            finishedTasks.remove(taskId + "@" + host);
+        }
+    }
+
+    // Whether a registered handle serves a file inside the folder, also when it is not opened yet.
+    // Handles of finished tasks stay registered but don't count, or the folder would never be evicted.
+    public boolean isServing(Path folder) {
+        Path absoluteFolder = folder.toAbsolutePath();
+        Set<PKGHandle> finished = Collections.newSetFromMap(new IdentityHashMap<>());
+        finishedTasks.forEach(key -> finished.addAll(taskHandles.getOrDefault(key, Collections.emptyList())));
+        return handles.values().stream()
+                .filter(handle -> !finished.contains(handle))
+                .anyMatch(handle -> handle.getFile().toPath().toAbsolutePath().startsWith(absoluteFolder));
+    }
+
+    public void release(String host, Integer taskId) {
+        finishedTasks.remove(taskId + "@" + host);
+        List<PKGHandle> handles = taskHandles.remove(taskId + "@" + host);
+        if (handles != null) {
+            handles.forEach(this::release);
+        }
+    }
+
+    public void release(PKGHandle handle) {
+        handles.remove(handle.getId(), handle);
+        try {
+            handle.close();
+        } catch (IOException e) {
+            log.error("Error closing " + handle.getLocation(), e);
+        }
+    }
+
+    @PreDestroy
+    public void releaseAll() {
+        handles.values().forEach(this::release);
+        taskHandles.clear();
+        finishedTasks.clear();
+    }
+
+}
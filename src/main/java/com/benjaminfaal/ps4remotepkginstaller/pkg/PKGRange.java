@@ -0,0 +1,84 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import lombok.Data;
+import org.springframework.http.HttpRange;
+import org.springframework.util.StringUtils;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+@Data
+public class PKGRange {
+
+    private final long start;
+
+    // Inclusive
+    private final long end;
+
+    private final boolean partial;
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    public String toContentRange(long size) {
+        return "bytes " + start + "-" + end + "/" + size;
+    }
+
+    public static String toUnsatisfiedContentRange(long size) {
+        return "bytes */" + size;
+    }
+
+    public static String toETag(long size, long lastModified) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Resolves the byte range to serve for the given Range and If-Range headers.
+     *
+     * @return the range to serve, the full file when no (valid) range applies, or null when the range is not satisfiable
+     */
+    public static PKGRange resolve(String range, String ifRange, long size, long lastModified) {
+        PKGRange full = new PKGRange(0, size - 1, false);
+        if (!StringUtils.hasText(range) || !matchesIfRange(ifRange, size, lastModified)) {
+            return full;
+        }
+
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(range);
+        } catch (IllegalArgumentException e) {
+            return full;
+        }
+        // Multipart responses are not worth it, the PS4 only requests single ranges
+        if (ranges.size() != 1) {
+            return full;
+        }
+
+        HttpRange httpRange = ranges.get(0);
+        long start = httpRange.getRangeStart(size);
+        long end = httpRange.getRangeEnd(size);
+        if (size == 0 || start >= size || start > end) {
+            return null;
+        }
+        return new PKGRange(start, end, true);
+    }
+
+    private static boolean matchesIfRange(String ifRange, long size, long lastModified) {
+        if (!StringUtils.hasText(ifRange)) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(toETag(size, lastModified));
+        }
+        try {
+            long ifRangeSeconds = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return ifRangeSeconds == lastModified / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+}
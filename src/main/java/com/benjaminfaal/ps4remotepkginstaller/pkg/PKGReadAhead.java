@@ -0,0 +1,187 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Prefetches aligned chunks ahead of each download, sized by how fast that console consumes them
+@CommonsLog
+@Component
+public class PKGReadAhead {
+
+    private static final long STREAM_IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+
+    @Value("${pkg.read-ahead.enabled:false}")
+    private boolean enabled;
+
+    @Value("${pkg.read-ahead.threads:2}")
+    private int threads;
+
+    @Value("${pkg.read-ahead.min-window:2}")
+    private int minWindow;
+
+    @Value("${pkg.read-ahead.max-window:64}")
+    private int maxWindow;
+
+    // How far ahead of the console the prefetched data should reach
+    @Value("${pkg.read-ahead.lead-time:2s}")
+    private Duration leadTime;
+
+    @Autowired
+    private PKGChunkCache chunkCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+
+    private final LongAdder prefetched = new LongAdder();
+
+    private ThreadPoolExecutor executor;
+
+    private final ThreadLocal<ByteBuffer> scratchBuffers = new ThreadLocal<>();
+
+    private volatile long lastCleanup = System.nanoTime();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        // Prefetching is best effort, tasks are dropped when the disks can't keep up
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(threads * maxWindow),
+                new CustomizableThreadFactory("pkg-read-ahead-"), new ThreadPoolExecutor.DiscardPolicy());
+
+        FunctionCounter.builder("pkg.read-ahead.prefetched", prefetched, LongAdder::sum).baseUnit("chunks").register(meterRegistry);
+        Gauge.builder("pkg.read-ahead.streams", streams, Map::size).register(meterRegistry);
+        log.info("PKG read-ahead enabled with " + threads + " threads and a window of " + minWindow + "-" + maxWindow + " chunks");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    // Streams are kept per PKG and download so consecutive range requests of the same download continue the same window
+    public Stream getStream(PKGHandle handle, String downloadId) {
+        if (!enabled) {
+            return null;
+        }
+        removeIdleStreams();
+        return streams.computeIfAbsent(handle.getId() + ":" + downloadId, key -> new Stream(handle));
+    }
+
+    public long getChunkSize() {
+        return chunkCache.getChunkSize().toBytes();
+    }
+
+    private void removeIdleStreams() {
+        long now = System.nanoTime();
+        if (now - lastCleanup < STREAM_IDLE_TIMEOUT) {
+            return;
+        }
+        lastCleanup = now;
+        streams.values().removeIf(stream -> now - stream.lastConsumed > STREAM_IDLE_TIMEOUT);
+    }
+
+    private void prefetch(PKGHandle handle, long index) {
+        try {
+            long position = index * getChunkSize();
+            if (handle.getAvailable(position) < Math.min(getChunkSize(), handle.getSize() - position)) {
+                // Not extracted yet
+                return;
+            }
+            if (chunkCache.isEnabled()) {
+                chunkCache.acquire(handle, index).release();
+            } else {
+                // Without the chunk cache the read only warms the page cache
+                ByteBuffer buffer = scratchBuffers.get();
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocateDirect((int) getChunkSize());
+                    scratchBuffers.set(buffer);
+                }
+                buffer.clear();
+                while (buffer.hasRemaining() && handle.read(buffer, position + buffer.position()) > 0) {
+                }
+            }
+            prefetched.increment();
+        } catch (IOException e) {
+            log.debug("Error prefetching chunk " + index + " of " + handle.getLocation() + ": " + e.getMessage());
+        }
+    }
+
+    public class Stream {
+
+        private final PKGHandle handle;
+
+        private long lastIndex = -1;
+
+        private long prefetchedUntil = -1;
+
+        private int window = minWindow;
+
+        // Bytes per second, exponentially weighted
+        private double rate;
+
+        private volatile long lastConsumed = System.nanoTime();
+
+        private Stream(PKGHandle handle) {
+            this.handle = handle;
+        }
+
+        public long getChunkSize() {
+            return PKGReadAhead.this.getChunkSize();
+        }
+
+        public synchronized void onConsume(long index) throws IOException {
+            long now = System.nanoTime();
+            if (index == lastIndex) {
+                return;
+            }
+
+            if (index == lastIndex + 1) {
+                double seconds = Math.max(now - lastConsumed, 1) / 1e9;
+                double chunkRate = getChunkSize() / seconds;
+                rate = rate == 0 ? chunkRate : rate * 0.8 + chunkRate * 0.2;
+                long wanted = (long) Math.ceil(rate * leadTime.toMillis() / 1000 / getChunkSize());
+                window = (int) Math.max(minWindow, Math.min(maxWindow, wanted));
+            } else {
+                // Seek, start over with a small window
+                window = minWindow;
+                rate = 0;
+                prefetchedUntil = index;
+            }
+            lastIndex = index;
+            lastConsumed = now;
+
+            long lastChunk = (handle.getSize() - 1) / getChunkSize();
+            long until = Math.min(index + window, lastChunk);
+            for (long next = Math.max(prefetchedUntil, index) + 1; next <= until; next++) {
+                long chunk = next;
+                executor.execute(() -> prefetch(handle, chunk));
+            }
+            prefetchedUntil = Math.max(prefetchedUntil, until);
+        }
+
+    }
+
+}
@@ -0,0 +1,432 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import com.benjaminfaal.ps4remotepkginstaller.service.PKGService;
+import lombok.Getter;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// Lightweight data plane for /pkg downloads, bypasses Tomcat and the Spring Security filter chain
+@CommonsLog
+@Component
+@ConditionalOnProperty(name = "pkg.server.enabled", havingValue = "true")
+public class PKGServer {
+
+    private static final String PATH_PREFIX = "/pkg/";
+
+    private static final int MAX_REQUEST_HEADER_SIZE = 8 * 1024;
+
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    @Getter
+    @Value("${server.address}")
+    private String address;
+
+    @Getter
+    @Value("${pkg.server.port:8081}")
+    private int port;
+
+    @Value("${pkg.server.threads:2}")
+    private int threads;
+
+    @Autowired
+    private PKGService pkgService;
+
+    @Autowired
+    private PKGChunkCache pkgChunkCache;
+
+    @Autowired
+    private PKGReadAhead pkgReadAhead;
+
+    @Autowired
+    private PKGBandwidthScheduler pkgBandwidthScheduler;
+
+    private ServerSocketChannel serverSocketChannel;
+
+    private final List<Worker> workers = new ArrayList<>();
+
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() throws IOException {
+        InetSocketAddress bindAddress = new InetSocketAddress(address, port);
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverSocketChannel.bind(bindAddress, 1024);
+        running = true;
+
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(Selector.open());
+            workers.add(worker);
+            startThread(worker, "pkg-server-worker-" + i);
+        }
+        startThread(this::accept, "pkg-server-acceptor");
+        log.info("PKG server listening on " + bindAddress + " with " + threads + " worker threads");
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        running = false;
+        serverSocketChannel.close();
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+    }
+
+    private void startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel socketChannel = serverSocketChannel.accept();
+                socketChannel.configureBlocking(false);
+                socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                workers.get(next).register(socketChannel);
+                next = (next + 1) % workers.size();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                log.error("Error accepting PKG server connection: ", e);
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final Selector selector;
+
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+
+        // Stalled connections waiting for their bandwidth share or for data, ordered by when they may write again
+        private final PriorityQueue<Connection> stalled = new PriorityQueue<>((a, b) -> Long.compare(a.resumeAt, b.resumeAt));
+
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        private Worker(Selector selector) {
+            this.selector = selector;
+        }
+
+        private void register(SocketChannel socketChannel) {
+            registrations.add(socketChannel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(getSelectTimeout());
+
+                    SocketChannel socketChannel;
+                    while ((socketChannel = registrations.poll()) != null) {
+                        socketChannel.register(selector, SelectionKey.OP_READ, new Connection(this, socketChannel));
+                    }
+                    resumeStalled();
+
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        handle(key);
+                    }
+
+                    closeIdleConnections();
+                } catch (IOException e) {
+                    log.error("Error in PKG server worker: ", e);
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    connection.read(key);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.write(key);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.debug("Closing PKG server connection: " + e.getMessage());
+                connection.close();
+            }
+        }
+
+        private void stall(Connection connection, SelectionKey key, long nanos) {
+            key.interestOps(0);
+            connection.resumeAt = System.nanoTime() + nanos;
+            stalled.add(connection);
+        }
+
+        private long getSelectTimeout() {
+            Connection next = stalled.peek();
+            if (next == null) {
+                return 1000;
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(next.resumeAt - System.nanoTime());
+            // select(0) blocks indefinitely, so wait at least a millisecond
+            return Math.max(1, Math.min(1000, millis));
+        }
+
+        private void resumeStalled() {
+            long now = System.nanoTime();
+            while (!stalled.isEmpty() && stalled.peek().resumeAt - now <= 0) {
+                SelectionKey key = stalled.poll().socketChannel.keyFor(selector);
+                if (key != null && key.isValid()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < 1000) {
+                return;
+            }
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (now - connection.lastActivity > IDLE_TIMEOUT) {
+                    connection.close();
+                }
+            }
+        }
+
+    }
+
+    private class Connection {
+
+        private final Worker worker;
+
+        private final SocketChannel socketChannel;
+
+        private final ByteBuffer requestBuffer = ByteBuffer.allocate(MAX_REQUEST_HEADER_SIZE);
+
+        private ByteBuffer responseHeader;
+
+        private PKGTransfer transfer;
+
+        private boolean keepAlive;
+
+        private long lastActivity = System.currentTimeMillis();
+
+        private long resumeAt;
+
+        private Connection(Worker worker, SocketChannel socketChannel) {
+            this.worker = worker;
+            this.socketChannel = socketChannel;
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            if (socketChannel.read(requestBuffer) == -1) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            handleRequest(key);
+        }
+
+        private void handleRequest(SelectionKey key) throws IOException {
+            int headerEnd = findHeaderEnd();
+            if (headerEnd == -1) {
+                if (!requestBuffer.hasRemaining()) {
+                    respond(key, 431, "Request Header Fields Too Large", new HashMap<>(), false);
+                }
+                return;
+            }
+
+            String header = new String(requestBuffer.array(), 0, headerEnd, StandardCharsets.ISO_8859_1);
+            requestBuffer.flip();
+            requestBuffer.position(headerEnd + 4);
+            requestBuffer.compact();
+
+            String[] lines = header.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3) {
+                respond(key, 400, "Bad Request", new HashMap<>(), false);
+                return;
+            }
+            Map<String, String> requestHeaders = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    requestHeaders.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+                }
+            }
+
+            String method = requestLine[0];
+            String connectionHeader = requestHeaders.getOrDefault("connection", "");
+            keepAlive = "HTTP/1.1".equals(requestLine[2]) ? !"close".equalsIgnoreCase(connectionHeader) : "keep-alive".equalsIgnoreCase(connectionHeader);
+
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Allow", "GET, HEAD");
+                respond(key, 405, "Method Not Allowed", headers, keepAlive);
+                return;
+            }
+
+            String uri = requestLine[1];
+            int queryStart = uri.indexOf('?');
+            String path = queryStart == -1 ? uri : uri.substring(0, queryStart);
+            String downloadId = queryStart == -1 ? null : getQueryParameter(uri.substring(queryStart + 1), "downloadId");
+            PKGHandle handle = path.startsWith(PATH_PREFIX) ? pkgService.getHandle(path.substring(PATH_PREFIX.length()), downloadId) : null;
+            if (handle == null) {
+                respond(key, 404, "Not Found", new HashMap<>(), keepAlive);
+                return;
+            }
+
+            long size = handle.getSize();
+            long lastModified = handle.getLastModified();
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Accept-Ranges", "bytes");
+            headers.put("ETag", PKGRange.toETag(size, lastModified));
+            headers.put("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(lastModified).atOffset(ZoneOffset.UTC)));
+
+            PKGRange range = PKGRange.resolve(requestHeaders.get("range"), requestHeaders.get("if-range"), size, lastModified);
+            if (range == null) {
+                headers.put("Content-Range", PKGRange.toUnsatisfiedContentRange(size));
+                respond(key, 416, "Range Not Satisfiable", headers, keepAlive);
+                return;
+            }
+
+            headers.put("Content-Type", "application/octet-stream");
+            headers.put("Content-Length", String.valueOf(range.getLength()));
+            if (range.isPartial()) {
+                headers.put("Content-Range", range.toContentRange(size));
+            }
+            if ("GET".equals(method) && range.getLength() > 0) {
+                String consoleHost = ((InetSocketAddress) socketChannel.getRemoteAddress()).getAddress().getHostAddress();
+                PKGBandwidthScheduler.Flow flow = pkgBandwidthScheduler.getFlow(handle, downloadId, consoleHost);
+                transfer = new PKGTransfer(handle, pkgChunkCache, pkgReadAhead.getStream(handle, downloadId), flow, range);
+            }
+            if (range.isPartial()) {
+                respond(key, 206, "Partial Content", headers, keepAlive);
+            } else {
+                respond(key, 200, "OK", headers, keepAlive);
+            }
+        }
+
+        private void respond(SelectionKey key, int status, String reason, Map<String, String> headers, boolean keepAlive) throws IOException {
+            this.keepAlive = keepAlive;
+            headers.putIfAbsent("Content-Length", "0");
+            headers.put("Connection", keepAlive ? "keep-alive" : "close");
+
+            StringBuilder response = new StringBuilder("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+            headers.forEach((name, value) -> response.append(name).append(": ").append(value).append("\r\n"));
+            response.append("\r\n");
+            responseHeader = ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+            key.interestOps(SelectionKey.OP_WRITE);
+            write(key);
+        }
+
+        private void write(SelectionKey key) throws IOException {
+            lastActivity = System.currentTimeMillis();
+            if (responseHeader.hasRemaining()) {
+                socketChannel.write(responseHeader);
+                if (responseHeader.hasRemaining()) {
+                    return;
+                }
+            }
+
+            if (transfer != null) {
+                transfer.transferTo(socketChannel);
+                if (transfer.isStalled()) {
+                    worker.stall(this, key, transfer.getStallNanos());
+                    return;
+                }
+                if (!transfer.isDone()) {
+                    // Socket buffer is full, continue when writable again
+                    return;
+                }
+            }
+
+            closeTransfer();
+            if (!keepAlive) {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (requestBuffer.position() > 0) {
+                handleRequest(key);
+            }
+        }
+
+        private int findHeaderEnd() {
+            byte[] bytes = requestBuffer.array();
+            for (int i = 0; i + 3 < requestBuffer.position(); i++) {
+                if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private String getQueryParameter(String query, String name) {
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals != -1 && parameter.substring(0, equals).equals(name)) {
+                    return parameter.substring(equals + 1);
+                }
+            }
+            return null;
+        }
+
+        private void closeTransfer() {
+            if (transfer != null) {
+                transfer.close();
+                transfer = null;
+            }
+        }
+
+        private void close() {
+            closeTransfer();
+            try {
+                socketChannel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Writes a byte range of a PKG to a blocking or non-blocking channel, zero-copy or through the chunk cache
+public class PKGTransfer implements Closeable {
+
+    // How often non-blocking writers check again for data of a PKG that is still being extracted
+    private static final long AVAILABLE_POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final PKGHandle handle;
+
+    private final PKGChunkCache chunkCache;
+
+    private final PKGReadAhead.Stream readAheadStream;
+
+    private final PKGBandwidthScheduler.Flow flow;
+
+    private long lastChunkIndex = -1;
+
+    private long position;
+
+    private long remaining;
+
+    private PKGChunkCache.Chunk chunk;
+
+    private ByteBuffer chunkBuffer;
+
+    private boolean throttled;
+
+    // Bytes that have to be available before writing can continue, 0 when not waiting for data
+    private long awaiting;
+
+    public PKGTransfer(PKGHandle handle, PKGChunkCache chunkCache, PKGReadAhead.Stream readAheadStream, PKGBandwidthScheduler.Flow flow, PKGRange range) {
+        this.handle = handle;
+        this.chunkCache = chunkCache.isEnabled() ? chunkCache : null;
+        this.readAheadStream = readAheadStream;
+        this.flow = flow;
+        this.position = range.getStart();
+        this.remaining = range.getLength();
+    }
+
+    public boolean isDone() {
+        return remaining == 0;
+    }
+
+    // True when the last transferTo stopped because the bandwidth share was used up or the data is not available yet
+    public boolean isStalled() {
+        return throttled || awaiting > 0;
+    }
+
+    // When a non-blocking writer should try again
+    public long getStallNanos() {
+        return throttled ? flow.getThrottleNanos() : AVAILABLE_POLL_INTERVAL;
+    }
+
+    // Blocks until a stalled transfer can continue
+    public void awaitStall() throws IOException {
+        if (throttled) {
+            LockSupport.parkNanos(flow.getThrottleNanos());
+        } else if (awaiting > 0) {
+            handle.awaitAvailable(position, awaiting);
+        }
+    }
+
+    // Returns the number of bytes written, 0 when a non-blocking target cannot take more right now or the transfer is stalled
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        throttled = false;
+        awaiting = 0;
+        while (remaining > 0) {
+            long needed = getNeeded();
+            if (handle.getAvailable(position) < needed) {
+                awaiting = needed;
+                break;
+            }
+            if (readAheadStream != null) {
+                long chunkIndex = position / getChunkSize();
+                if (chunkIndex != lastChunkIndex) {
+                    readAheadStream.onConsume(chunkIndex);
+                    lastChunkIndex = chunkIndex;
+                }
+            }
+            long allowed = flow.acquire(remaining);
+            if (allowed == 0) {
+                throttled = true;
+                break;
+            }
+            long written = chunkCache != null ? writeCached(target, allowed) : writeDirect(target, allowed);
+            flow.refund(allowed - written);
+            if (written == 0) {
+                break;
+            }
+            position += written;
+            remaining -= written;
+            transferred += written;
+        }
+        if (remaining == 0) {
+            close();
+        }
+        return transferred;
+    }
+
+    // Whole chunks are loaded into the chunk cache, so they have to be available completely
+    private long getNeeded() throws IOException {
+        if (chunkCache == null || (chunkBuffer != null && chunkBuffer.hasRemaining())) {
+            return 1;
+        }
+        return Math.min(getChunkSize() - position % getChunkSize(), handle.getSize() - position);
+    }
+
+    private long writeDirect(WritableByteChannel target, long allowed) throws IOException {
+        long count = allowed;
+        if (readAheadStream != null) {
+            // Stop at chunk boundaries so the read-ahead stream sees the progress
+            count = Math.min(count, getChunkSize() - position % getChunkSize());
+        }
+        return handle.transferTo(position, count, target);
+    }
+
+    private long writeCached(WritableByteChannel target, long allowed) throws IOException {
+        if (chunkBuffer == null || !chunkBuffer.hasRemaining()) {
+            close();
+            long chunkSize = getChunkSize();
+            chunk = chunkCache.acquire(handle, position / chunkSize);
+            ByteBuffer buffer = chunk.getBuffer();
+            int offset = (int) (position % chunkSize);
+            if (offset >= buffer.limit()) {
+                throw new EOFException(handle.getLocation() + " was truncated while serving");
+            }
+            buffer.limit((int) Math.min(buffer.limit(), offset + remaining));
+            buffer.position(offset);
+            chunkBuffer = buffer;
+        }
+        if (chunkBuffer.remaining() <= allowed) {
+            return target.write(chunkBuffer);
+        }
+        int limit = chunkBuffer.limit();
+        chunkBuffer.limit((int) (chunkBuffer.position() + allowed));
+        try {
+            return target.write(chunkBuffer);
+        } finally {
+            chunkBuffer.limit(limit);
+        }
+    }
+
+    private long getChunkSize() {
+        return chunkCache != null ? chunkCache.getChunkSize().toBytes() : readAheadStream.getChunkSize();
+    }
+
+    @Override
+    public void close() {
+        if (chunk != null) {
+            chunk.release();
+            chunk = null;
+            chunkBuffer = null;
+        }
+    }
+
+}
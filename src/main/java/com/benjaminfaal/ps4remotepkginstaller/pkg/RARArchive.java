@@ -0,0 +1,368 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import lombok.Getter;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Index of the entries of a RAR 4 or RAR 5 archive and where their data is stored in the volumes. Only the headers
+// are read, stored (uncompressed) entries can then be served straight from the volumes.
+public class RARArchive {
+
+    private static final byte[] RAR4_SIGNATURE = {0x52, 0x61, 0x72, 0x21, 0x1A, 0x07, 0x00};
+
+    private static final byte[] RAR5_SIGNATURE = {0x52, 0x61, 0x72, 0x21, 0x1A, 0x07, 0x01, 0x00};
+
+    private static final int RAR4_MAIN_HEADER = 0x73;
+
+    private static final int RAR4_FILE_HEADER = 0x74;
+
+    private static final int RAR4_SUB_HEADER = 0x7A;
+
+    private static final int RAR4_END_HEADER = 0x7B;
+
+    private static final int RAR4_METHOD_STORE = 0x30;
+
+    private static final int RAR5_MAIN_HEADER = 1;
+
+    private static final int RAR5_FILE_HEADER = 2;
+
+    private static final int RAR5_ENCRYPTION_HEADER = 4;
+
+    private static final int RAR5_END_HEADER = 5;
+
+    private static final int RAR5_METHOD_STORE = 0;
+
+    // name.part1.rar, name.part2.rar, ...
+    private static final Pattern PART_VOLUME = Pattern.compile("(.*\\.part)(\\d+)(\\.rar)", Pattern.CASE_INSENSITIVE);
+
+    // name.rar, name.r00, name.r01, ...
+    private static final Pattern OLD_VOLUME = Pattern.compile("(.*\\.)([r-z])(\\d\\d)", Pattern.CASE_INSENSITIVE);
+
+    @Getter
+    private final File file;
+
+    @Getter
+    private final List<Entry> entries = new ArrayList<>();
+
+    @Getter
+    private final List<File> volumes = new ArrayList<>();
+
+    private boolean multiVolume;
+
+    private Entry last;
+
+    private RARArchive(File file) {
+        this.file = file;
+    }
+
+    // Reads the headers of the given volume and the volumes following it
+    public static RARArchive read(File file) throws IOException {
+        RARArchive archive = new RARArchive(file);
+        File volume = file;
+        while (volume != null) {
+            archive.volumes.add(volume);
+            archive.readVolume(volume);
+            if (!archive.multiVolume) {
+                break;
+            }
+
+            File next = getNextVolume(volume);
+            if (next == null || !next.isFile()) {
+                if (archive.last != null && archive.last.splitAfter) {
+                    throw new EOFException("Missing volume " + (next != null ? next : "after " + volume) + " of " + file);
+                }
+                break;
+            }
+            volume = next;
+        }
+        return archive;
+    }
+
+    public Entry getEntry(String name) {
+        return entries.stream()
+                .filter(entry -> entry.name.equals(name))
+                .findFirst()
+                .orElse(null);
+    }
+
+    static File getNextVolume(File volume) {
+        String name = volume.getName();
+        Matcher partMatcher = PART_VOLUME.matcher(name);
+        if (partMatcher.matches()) {
+            String number = partMatcher.group(2);
+            String next = String.format("%0" + number.length() + "d", Integer.parseInt(number) + 1);
+            return new File(volume.getParentFile(), partMatcher.group(1) + next + partMatcher.group(3));
+        }
+        if (name.toLowerCase().endsWith(".rar")) {
+            return new File(volume.getParentFile(), name.substring(0, name.length() - 3) + (name.endsWith(".rar") ? "r00" : "R00"));
+        }
+        Matcher oldMatcher = OLD_VOLUME.matcher(name);
+        if (oldMatcher.matches()) {
+            int number = Integer.parseInt(oldMatcher.group(3)) + 1;
+            char letter = oldMatcher.group(2).charAt(0);
+            if (number == 100) {
+                number = 0;
+                letter++;
+            }
+            return new File(volume.getParentFile(), oldMatcher.group(1) + letter + String.format("%02d", number));
+        }
+        return null;
+    }
+
+    private void readVolume(File volume) throws IOException {
+        try (FileChannel channel = FileChannel.open(volume.toPath(), StandardOpenOption.READ)) {
+            byte[] signature = new byte[(int) Math.min(RAR5_SIGNATURE.length, channel.size())];
+            read(channel, 0, signature.length).get(signature);
+            if (Arrays.equals(signature, RAR5_SIGNATURE)) {
+                readRAR5Volume(channel, volume);
+            } else if (signature.length >= RAR4_SIGNATURE.length && Arrays.equals(Arrays.copyOf(signature, RAR4_SIGNATURE.length), RAR4_SIGNATURE)) {
+                readRAR4Volume(channel, volume);
+            } else {
+                throw new IOException(volume + " is not a RAR archive");
+            }
+        }
+    }
+
+    private void readRAR4Volume(FileChannel channel, File volume) throws IOException {
+        long size = channel.size();
+        long position = RAR4_SIGNATURE.length;
+        while (position + 7 <= size) {
+            ByteBuffer header = read(channel, position, 7);
+            header.position(2);
+            int type = header.get() & 0xFF;
+            int flags = header.getShort() & 0xFFFF;
+            int headerSize = header.getShort() & 0xFFFF;
+            if (headerSize < 7) {
+                throw new IOException("Corrupt header in " + volume + " at " + position);
+            }
+
+            long dataSize = 0;
+            if (type == RAR4_MAIN_HEADER) {
+                multiVolume = (flags & 0x0001) != 0;
+                if ((flags & 0x0080) != 0) {
+                    throw new IOException(volume + " has encrypted headers");
+                }
+            } else if (type == RAR4_FILE_HEADER || type == RAR4_SUB_HEADER) {
+                header = read(channel, position, headerSize);
+                header.position(7);
+                long packSize = header.getInt() & 0xFFFFFFFFL;
+                long unpackedSize = header.getInt() & 0xFFFFFFFFL;
+                // Host OS, CRC, time and version
+                header.position(header.position() + 10);
+                int method = header.get() & 0xFF;
+                int nameSize = header.getShort() & 0xFFFF;
+                // Attributes
+                header.position(header.position() + 4);
+                if ((flags & 0x0100) != 0) {
+                    packSize |= (header.getInt() & 0xFFFFFFFFL) << 32;
+                    unpackedSize |= (header.getInt() & 0xFFFFFFFFL) << 32;
+                }
+                byte[] name = new byte[nameSize];
+                header.get(name);
+                dataSize = packSize;
+
+                if (type == RAR4_FILE_HEADER) {
+                    Entry entry = nextEntry(decodeRAR4Name(name, flags), (flags & 0x0001) != 0);
+                    entry.size = unpackedSize;
+                    entry.stored &= method == RAR4_METHOD_STORE;
+                    entry.encrypted |= (flags & 0x0004) != 0;
+                    entry.directory = (flags & 0x00E0) == 0x00E0;
+                    entry.splitAfter = (flags & 0x0002) != 0;
+                    entry.parts.add(new Part(volume, position + headerSize, packSize));
+                }
+            } else if ((flags & 0x8000) != 0) {
+                dataSize = read(channel, position + 7, 4).getInt() & 0xFFFFFFFFL;
+            }
+
+            if (type == RAR4_END_HEADER) {
+                break;
+            }
+            position += headerSize + dataSize;
+        }
+    }
+
+    private void readRAR5Volume(FileChannel channel, File volume) throws IOException {
+        long size = channel.size();
+        long position = RAR5_SIGNATURE.length;
+        while (position + 5 < size) {
+            // CRC and the header size, which is at most 3 bytes
+            ByteBuffer prefix = read(channel, position, (int) Math.min(7, size - position));
+            prefix.position(4);
+            long headerSize = readVInt(prefix);
+            int headerStart = prefix.position();
+            if (headerSize <= 0 || headerSize > 2 * 1024 * 1024) {
+                throw new IOException("Corrupt header in " + volume + " at " + position);
+            }
+
+            ByteBuffer header = read(channel, position + headerStart, (int) headerSize);
+            int type = (int) readVInt(header);
+            long headerFlags = readVInt(header);
+            long extraSize = (headerFlags & 0x0001) != 0 ? readVInt(header) : 0;
+            long dataSize = (headerFlags & 0x0002) != 0 ? readVInt(header) : 0;
+            long dataStart = position + headerStart + headerSize;
+
+            if (type == RAR5_MAIN_HEADER) {
+                multiVolume = (readVInt(header) & 0x0001) != 0;
+            } else if (type == RAR5_ENCRYPTION_HEADER) {
+                throw new IOException(volume + " has encrypted headers");
+            } else if (type == RAR5_FILE_HEADER) {
+                long fileFlags = readVInt(header);
+                long unpackedSize = readVInt(header);
+                // Attributes
+                readVInt(header);
+                if ((fileFlags & 0x0002) != 0) {
+                    // Modification time
+                    header.position(header.position() + 4);
+                }
+                if ((fileFlags & 0x0004) != 0) {
+                    // CRC
+                    header.position(header.position() + 4);
+                }
+                long compression = readVInt(header);
+                // Host OS
+                readVInt(header);
+                byte[] name = new byte[(int) readVInt(header)];
+                header.get(name);
+
+                Entry entry = nextEntry(new String(name, StandardCharsets.UTF_8), (headerFlags & 0x0008) != 0);
+                // Size unknown when the archive was created from a stream
+                entry.size = (fileFlags & 0x0008) != 0 ? -1 : unpackedSize;
+                entry.stored &= ((compression >> 7) & 0x07) == RAR5_METHOD_STORE;
+                entry.encrypted |= isRAR5Encrypted(header, (int) (headerSize - extraSize));
+                entry.directory = (fileFlags & 0x0001) != 0;
+                entry.splitAfter = (headerFlags & 0x0010) != 0;
+                entry.parts.add(new Part(volume, dataStart, dataSize));
+            } else if (type == RAR5_END_HEADER) {
+                break;
+            }
+            position = dataStart + dataSize;
+        }
+    }
+
+    // Parts of a split entry continue the previous entry of the same name
+    private Entry nextEntry(String name, boolean splitBefore) {
+        if (splitBefore && last != null && last.name.equals(name)) {
+            return last;
+        }
+        last = new Entry(name);
+        entries.add(last);
+        return last;
+    }
+
+    private static boolean isRAR5Encrypted(ByteBuffer header, int extraStart) {
+        header.position(extraStart);
+        while (header.hasRemaining()) {
+            long recordSize = readVInt(header);
+            int recordStart = header.position();
+            if (recordSize <= 0) {
+                break;
+            }
+            if (readVInt(header) == 0x01) {
+                return true;
+            }
+            header.position((int) (recordStart + recordSize));
+        }
+        return false;
+    }
+
+    private static String decodeRAR4Name(byte[] name, int flags) {
+        if ((flags & 0x0200) != 0) {
+            // Unicode names are either UTF-8 or a plain name followed by a zero and the encoded unicode name
+            for (int i = 0; i < name.length; i++) {
+                if (name[i] == 0) {
+                    return new String(name, 0, i, StandardCharsets.ISO_8859_1);
+                }
+            }
+            return new String(name, StandardCharsets.UTF_8);
+        }
+        return new String(name, StandardCharsets.ISO_8859_1);
+    }
+
+    private static long readVInt(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = buffer.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("Unexpected end of " + channel + " at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static class Entry {
+
+        @Getter
+        private final String name;
+
+        @Getter
+        private long size;
+
+        private boolean stored = true;
+
+        private boolean encrypted;
+
+        private boolean directory;
+
+        private boolean splitAfter;
+
+        private final List<Part> parts = new ArrayList<>();
+
+        private Entry(String name) {
+            this.name = name;
+        }
+
+        public List<Part> getParts() {
+            return Collections.unmodifiableList(parts);
+        }
+
+        // Stored, unencrypted and complete, so the data in the volumes is the file itself
+        public boolean isServable() {
+            return stored && !encrypted && !directory && !splitAfter && size >= 0
+                    && parts.stream().mapToLong(Part::getLength).sum() == size;
+        }
+
+    }
+
+    @Getter
+    public static class Part {
+
+        private final File volume;
+
+        private final long offset;
+
+        private final long length;
+
+        private Part(File volume, long offset, long length) {
+            this.volume = volume;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+}
@@ -0,0 +1,345 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import com.benjaminfaal.ps4remotepkginstaller.util.Utils;
+import lombok.Data;
+import lombok.Getter;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Folders of extracted RAR archives, keyed by archive content and evicted by last install when over the disk budget
+@CommonsLog
+@Component
+public class RARExtractionCache {
+
+    // Properties of the archive the folder was extracted from, written when the extraction is complete
+    public static final String EXTRACTED_MARKER = ".extracted";
+
+    // Present while extracting, lists the PKGs that are extracted completely.
+    // A folder with it but without the extracted marker was interrupted.
+    public static final String EXTRACTING_MARKER = ".extracting";
+
+    // Bytes hashed at the start and end of every volume
+    private static final int HASH_SAMPLE_SIZE = 1024 * 1024;
+
+    // 0 is unlimited
+    @Getter
+    @Value("${pkg.extraction-cache.size:0}")
+    private DataSize size;
+
+    @Autowired
+    private PKGHandleRegistry pkgHandleRegistry;
+
+    @Getter
+    private final Path directory = Utils.getWorkingDirectory().resolve("rar");
+
+    // Folders that are being extracted into
+    private final Set<Path> reserved = new HashSet<>();
+
+    // Archives of queued installs by how often they are queued, their folders are installed from once submitted
+    private final Map<String, Integer> pinned = new HashMap<>();
+
+    // PKGs that were extracted completely before the extraction was interrupted are not
+    public static boolean isInterrupted(File file) {
+        // Entries keep their folders, the markers are in the extraction folder right below the cache directory
+        Path directory = Utils.getWorkingDirectory().resolve("rar").toAbsolutePath().normalize();
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(directory) || path.getNameCount() < directory.getNameCount() + 2) {
+            return false;
+        }
+        Path folder = directory.resolve(path.getName(directory.getNameCount()));
+        Path extractingMarker = folder.resolve(EXTRACTING_MARKER);
+        if (!Files.exists(extractingMarker) || Files.exists(folder.resolve(EXTRACTED_MARKER))) {
+            return false;
+        }
+        try {
+            return !Files.readAllLines(extractingMarker).contains(getRelativePath(folder, path));
+        } catch (IOException e) {
+            log.error("Error reading " + extractingMarker, e);
+            return true;
+        }
+    }
+
+    public Key getKey(RARArchive archive) throws IOException {
+        long size = 0;
+        long lastModified = 0;
+        for (File volume : archive.getVolumes()) {
+            size += volume.length();
+            lastModified = Math.max(lastModified, volume.lastModified());
+        }
+        String hash = hash(archive.getVolumes());
+        // Archives with the same name but different content get their own folder
+        Path folder = directory.resolve(archive.getFile().getName() + "-" + hash.substring(0, 8));
+        return new Key(archive.getFile().getAbsolutePath(), size, lastModified, hash, folder);
+    }
+
+    // True when the folder was extracted completely from exactly this archive
+    public boolean isExtracted(Key key) {
+        Properties marker = readMarker(key.getFolder());
+        return marker != null
+                && String.valueOf(key.getSize()).equals(marker.getProperty("size"))
+                && String.valueOf(key.getLastModified()).equals(marker.getProperty("lastModified"))
+                && key.getHash().equals(marker.getProperty("hash"));
+    }
+
+    // Makes room for an extraction of the given size by evicting the least recently installed archives
+    public synchronized void reserve(Key key, long bytes) throws IOException {
+        reserved.add(key.getFolder());
+        if (size.toBytes() > 0) {
+            List<Entry> entries = getEntries();
+            long used = entries.stream().mapToLong(Entry::getSize).sum();
+            List<Entry> evictable = entries.stream()
+                    .filter(entry -> !entry.isInUse() && !entry.getFolder().equals(key.getFolder()))
+                    .sorted(Comparator.comparing(Entry::getLastInstalled))
+                    .collect(Collectors.toList());
+            for (Entry entry : evictable) {
+                if (used + bytes <= size.toBytes()) {
+                    break;
+                }
+                log.info("Evicting " + entry.getFolder() + " from the extraction cache, last installed " + entry.getLastInstalled());
+                FileSystemUtils.deleteRecursively(entry.getFolder());
+                used -= entry.getSize();
+            }
+            if (used + bytes > size.toBytes()) {
+                log.warn("Extraction cache exceeds its size of " + size + ", the remaining archives are in use");
+            }
+        }
+
+        Path folder = key.getFolder();
+        Files.createDirectories(folder);
+        Files.deleteIfExists(folder.resolve(EXTRACTED_MARKER));
+        // The PKGs are extracted again, so none of them is complete yet
+        Files.write(folder.resolve(EXTRACTING_MARKER), new byte[0]);
+    }
+
+    // Records a PKG of the archive as extracted completely, so it stays usable when a later entry fails
+    public synchronized void markExtracted(Key key, File file) throws IOException {
+        Path folder = key.getFolder();
+        String path = getRelativePath(folder.toAbsolutePath().normalize(), file.toPath().toAbsolutePath().normalize());
+        Files.write(folder.resolve(EXTRACTING_MARKER), Collections.singletonList(path), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    public synchronized void markExtracted(Key key) throws IOException {
+        Path folder = key.getFolder();
+        Properties marker = new Properties();
+        marker.setProperty("archive", key.getArchive());
+        marker.setProperty("size", String.valueOf(key.getSize()));
+        marker.setProperty("lastModified", String.valueOf(key.getLastModified()));
+        marker.setProperty("hash", key.getHash());
+        marker.setProperty("lastInstalled", String.valueOf(System.currentTimeMillis()));
+        writeMarker(folder, marker);
+        Files.deleteIfExists(folder.resolve(EXTRACTING_MARKER));
+        reserved.remove(folder);
+    }
+
+    public synchronized void release(Key key) {
+        reserved.remove(key.getFolder());
+    }
+
+    public synchronized void pin(String archive) {
+        pinned.merge(archive, 1, Integer::sum);
+    }
+
+    public synchronized void unpin(String archive) {
+        pinned.computeIfPresent(archive, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    // Installing from the cache counts as use for the eviction order
+    public synchronized void touch(Key key) {
+        Properties marker = readMarker(key.getFolder());
+        if (marker != null) {
+            marker.setProperty("lastInstalled", String.valueOf(System.currentTimeMillis()));
+            try {
+                writeMarker(key.getFolder(), marker);
+            } catch (IOException e) {
+                log.error("Error updating " + key.getFolder().resolve(EXTRACTED_MARKER), e);
+            }
+        }
+    }
+
+    public synchronized List<Entry> getEntries() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> folders = Files.list(directory)) {
+            List<Entry> entries = new ArrayList<>();
+            for (Path folder : folders.filter(Files::isDirectory).collect(Collectors.toList())) {
+                entries.add(getEntry(folder));
+            }
+            return entries;
+        }
+    }
+
+    // Removes every folder that is not being extracted into, queued for install or served
+    public synchronized long removeUnused() throws IOException {
+        long removed = 0;
+        for (Entry entry : getEntries()) {
+            if (!entry.isInUse()) {
+                FileSystemUtils.deleteRecursively(entry.getFolder());
+                removed += entry.getSize();
+            }
+        }
+        return removed;
+    }
+
+    private Entry getEntry(Path folder) throws IOException {
+        Entry entry = new Entry();
+        entry.setFolder(folder);
+        try (Stream<Path> files = Files.walk(folder)) {
+            entry.setSize(files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum());
+        }
+
+        Properties marker = readMarker(folder);
+        if (marker != null && marker.containsKey("lastInstalled")) {
+            entry.setArchive(marker.getProperty("archive"));
+            entry.setLastInstalled(Instant.ofEpochMilli(Long.parseLong(marker.getProperty("lastInstalled"))));
+        } else {
+            // Interrupted, or extracted before the cache was managed
+            entry.setArchive(folder.getFileName().toString());
+            entry.setLastInstalled(Files.getLastModifiedTime(folder).toInstant());
+        }
+
+        if (reserved.contains(folder)) {
+            entry.setState(State.EXTRACTING);
+        } else if (marker != null && pinned.containsKey(marker.getProperty("archive"))) {
+            entry.setState(State.QUEUED);
+        } else if (pkgHandleRegistry.isServing(folder)) {
+            entry.setState(State.IN_USE);
+        } else if (Files.exists(folder.resolve(EXTRACTED_MARKER))) {
+            entry.setState(State.EXTRACTED);
+        } else {
+            entry.setState(State.INTERRUPTED);
+        }
+        return entry;
+    }
+
+    private static String getRelativePath(Path folder, Path file) {
+        return folder.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    private Properties readMarker(Path folder) {
+        Path markerFile = folder.resolve(EXTRACTED_MARKER);
+        if (!Files.exists(markerFile)) {
+            return null;
+        }
+        Properties marker = new Properties();
+        try (Reader reader = Files.newBufferedReader(markerFile)) {
+            marker.load(reader);
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Error reading " + markerFile, e);
+            return null;
+        }
+        return marker;
+    }
+
+    private void writeMarker(Path folder, Properties marker) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(folder.resolve(EXTRACTED_MARKER))) {
+            marker.store(writer, null);
+        }
+    }
+
+    // Hashing archives of many GB completely would take about as long as extracting them, so only the size and the
+    // start and end of every volume are hashed. That covers the headers and catches replaced or re-packed archives.
+    private static String hash(List<File> volumes) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_SAMPLE_SIZE);
+        for (File volume : volumes) {
+            try (FileChannel channel = FileChannel.open(volume.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                digest.update(ByteBuffer.allocate(Long.BYTES).putLong(size).array());
+                update(digest, buffer, channel, 0);
+                if (size > HASH_SAMPLE_SIZE) {
+                    update(digest, buffer, channel, Math.max(HASH_SAMPLE_SIZE, size - HASH_SAMPLE_SIZE));
+                }
+            }
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    private static void update(MessageDigest digest, ByteBuffer buffer, FileChannel channel, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+        }
+        buffer.flip();
+        digest.update(buffer);
+    }
+
+    @Data
+    public static class Key {
+
+        private final String archive;
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final String hash;
+
+        private final Path folder;
+
+    }
+
+    @Data
+    public static class Entry {
+
+        private Path folder;
+
+        private String archive;
+
+        private long size;
+
+        private Instant lastInstalled;
+
+        private State state;
+
+        public boolean isInUse() {
+            return state == State.EXTRACTING || state == State.QUEUED || state == State.IN_USE;
+        }
+
+    }
+
+    public enum State {
+        EXTRACTING,
+        QUEUED,
+        IN_USE,
+        EXTRACTED,
+        INTERRUPTED
+    }
+
+}
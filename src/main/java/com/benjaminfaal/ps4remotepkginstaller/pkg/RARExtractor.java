@@ -0,0 +1,335 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import com.github.junrar.Archive;
+import com.github.junrar.exception.RarException;
+import com.github.junrar.rarfile.FileHeader;
+import lombok.Getter;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+// Extracts the PKGs of compressed RAR archives in the background, they can be served while they are being extracted
+@CommonsLog
+@Component
+public class RARExtractor {
+
+    @Autowired
+    private RARExtractionCache rarExtractionCache;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("rar-extractor-"));
+
+    private final Map<File, Extraction> extractions = new ConcurrentHashMap<>();
+
+    @PreDestroy
+    public void shutdown() {
+        extractions.values().forEach(Extraction::cancel);
+        executor.shutdownNow();
+    }
+
+    // The PKG files are created with their full size right away, their data is extracted in the background.
+    // Archives that were extracted before are served from the extraction cache.
+    public synchronized Extraction extract(File rarFile) throws IOException {
+        RARArchive archive = RARArchive.read(rarFile);
+        RARExtractionCache.Key key = rarExtractionCache.getKey(archive);
+        File destinationFolder = key.getFolder().toFile();
+        Extraction running = extractions.get(destinationFolder);
+        if (running != null) {
+            return running;
+        }
+
+        // The entries of all volumes are known up front, junrar only knows those of the current volume
+        List<ExtractedFile> files = new ArrayList<>();
+        for (RARArchive.Entry entry : archive.getEntries()) {
+            if (entry.getName().toLowerCase().endsWith(".pkg") && entry.getSize() >= 0) {
+                files.add(new ExtractedFile(entry.getName(), new File(destinationFolder, getPath(entry.getName())), entry.getSize()));
+            }
+        }
+        Extraction extraction = new Extraction(rarFile, destinationFolder, key, files);
+        if (files.isEmpty()) {
+            extraction.done = true;
+            return extraction;
+        }
+
+        if (rarExtractionCache.isExtracted(key) && files.stream().allMatch(file -> file.file.length() == file.size)) {
+            log.info("Using " + destinationFolder + " extracted from " + rarFile + " before");
+            rarExtractionCache.touch(key);
+            files.forEach(file -> {
+                file.extracted = file.size;
+                file.done = true;
+            });
+            extraction.done = true;
+            return extraction;
+        }
+
+        rarExtractionCache.reserve(key, extraction.getSize());
+        try {
+            for (ExtractedFile file : files) {
+                Files.createDirectories(file.file.getParentFile().toPath());
+                try (RandomAccessFile randomAccessFile = new RandomAccessFile(file.file, "rw")) {
+                    randomAccessFile.setLength(file.size);
+                }
+            }
+        } catch (IOException e) {
+            rarExtractionCache.release(key);
+            throw e;
+        }
+
+        extractions.put(destinationFolder, extraction);
+        executor.execute(() -> run(extraction));
+        log.info("Extracting " + files.size() + " PKG files from " + rarFile + " to " + destinationFolder);
+        return extraction;
+    }
+
+    private void run(Extraction extraction) {
+        try (Archive archive = new Archive(extraction.rarFile)) {
+            FileHeader header;
+            while ((header = archive.nextFileHeader()) != null) {
+                if (header.isDirectory() || header.isSplitBefore()) {
+                    continue;
+                }
+                ExtractedFile file = extraction.getFile(header.getFileNameString());
+                // Solid archives can only be decompressed in order, so other entries are decompressed without writing them
+                try (OutputStream outputStream = file != null ? new ProgressOutputStream(extraction, file) : new DiscardingOutputStream(extraction)) {
+                    archive.extractFile(header, outputStream);
+                }
+                if (file != null) {
+                    // The file already has its full size, missing data would be served as zeros
+                    if (file.getExtracted() != file.size) {
+                        throw new IOException(file.name + " is " + file.getExtracted() + " bytes but its header says " + file.size);
+                    }
+                    rarExtractionCache.markExtracted(extraction.key, file.file);
+                    file.complete();
+                }
+            }
+
+            for (ExtractedFile file : extraction.files) {
+                if (!file.done) {
+                    throw new IOException(file.name + " was not found in " + extraction.rarFile);
+                }
+            }
+            rarExtractionCache.markExtracted(extraction.key);
+            log.info("Extracted " + extraction.rarFile);
+        } catch (IOException | RarException | RuntimeException e) {
+            log.error("Error extracting " + extraction.rarFile, e);
+            IOException failure = e instanceof IOException ? (IOException) e : new IOException("Error extracting " + extraction.rarFile, e);
+            // PKGs that were extracted completely can still be served
+            extraction.files.forEach(file -> file.fail(failure));
+            extraction.failure = failure;
+            rarExtractionCache.release(extraction.key);
+        } finally {
+            extraction.done = true;
+            extractions.remove(extraction.destinationFolder, extraction);
+        }
+    }
+
+    // Entries keep their folders, PKGs with the same name in different folders would overwrite each other.
+    // RAR4 separates folders with backslashes, RAR5 with slashes, and entries can't escape the destination folder.
+    private static String getPath(String entryName) {
+        return Arrays.stream(entryName.split("[/\\\\]"))
+                .filter(segment -> !segment.isEmpty() && !segment.equals(".") && !segment.equals(".."))
+                .collect(Collectors.joining("/"));
+    }
+
+    public static class Extraction {
+
+        @Getter
+        private final File rarFile;
+
+        @Getter
+        private final File destinationFolder;
+
+        private final RARExtractionCache.Key key;
+
+        private final List<ExtractedFile> files;
+
+        private volatile boolean cancelled;
+
+        private volatile boolean done;
+
+        @Getter
+        private volatile IOException failure;
+
+        private Extraction(File rarFile, File destinationFolder, RARExtractionCache.Key key, List<ExtractedFile> files) {
+            this.rarFile = rarFile;
+            this.destinationFolder = destinationFolder;
+            this.key = key;
+            this.files = files;
+        }
+
+        public List<ExtractedFile> getFiles() {
+            return Collections.unmodifiableList(files);
+        }
+
+        public long getSize() {
+            return files.stream().mapToLong(ExtractedFile::getSize).sum();
+        }
+
+        public long getExtracted() {
+            return files.stream().mapToLong(ExtractedFile::getExtracted).sum();
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private ExtractedFile getFile(String entryName) {
+            String path = getPath(entryName);
+            return files.stream()
+                    .filter(file -> !file.done && getPath(file.name).equals(path))
+                    .findFirst()
+                    .orElse(null);
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (cancelled) {
+                throw new InterruptedIOException("Extracting " + rarFile + " was cancelled");
+            }
+        }
+
+    }
+
+    // Progress of a single PKG, readers wait on it until the data they need is extracted
+    public static class ExtractedFile {
+
+        private final String name;
+
+        @Getter
+        private final File file;
+
+        @Getter
+        private final long size;
+
+        private long extracted;
+
+        private boolean done;
+
+        private IOException failure;
+
+        private ExtractedFile(String name, File file, long size) {
+            this.name = name;
+            this.file = file;
+            this.size = size;
+        }
+
+        public synchronized long getExtracted() {
+            return extracted;
+        }
+
+        public synchronized long getAvailable(long position) throws IOException {
+            if (failure != null) {
+                throw new IOException("Extracting " + file + " failed", failure);
+            }
+            return (done ? size : extracted) - position;
+        }
+
+        public synchronized void awaitAvailable(long position, long length) throws IOException {
+            try {
+                while (getAvailable(position) < length && !done) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + file);
+            }
+        }
+
+        private synchronized void advance(long bytes) {
+            extracted += bytes;
+            notifyAll();
+        }
+
+        private synchronized void complete() {
+            done = true;
+            notifyAll();
+        }
+
+        private synchronized void fail(IOException failure) {
+            if (done) {
+                return;
+            }
+            this.failure = failure;
+            notifyAll();
+        }
+
+    }
+
+    private static class ProgressOutputStream extends OutputStream {
+
+        private final Extraction extraction;
+
+        private final ExtractedFile file;
+
+        private final RandomAccessFile randomAccessFile;
+
+        private ProgressOutputStream(Extraction extraction, ExtractedFile file) throws IOException {
+            this.extraction = extraction;
+            this.file = file;
+            // Not truncated, the file already has its full size
+            this.randomAccessFile = new RandomAccessFile(file.file, "rw");
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            extraction.checkCancelled();
+            if (file.getExtracted() + len > file.size) {
+                throw new IOException(file.name + " is larger than its header says");
+            }
+            randomAccessFile.write(b, off, len);
+            file.advance(len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            randomAccessFile.close();
+        }
+
+    }
+
+    private static class DiscardingOutputStream extends OutputStream {
+
+        private final Extraction extraction;
+
+        private DiscardingOutputStream(Extraction extraction) {
+            this.extraction = extraction;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            extraction.checkCancelled();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            extraction.checkCancelled();
+        }
+
+    }
+
+}
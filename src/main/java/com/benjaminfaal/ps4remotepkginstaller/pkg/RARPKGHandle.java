@@ -0,0 +1,49 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+// PKG stored uncompressed inside a RAR archive, served straight from the archive volumes without extracting it
+public class RARPKGHandle extends PKGHandle {
+
+    // Separates the archive from the entry in the location, like in jar URLs
+    public static final String SEPARATOR = "!/";
+
+    @Getter
+    private final String entryName;
+
+    RARPKGHandle(String id, File archive, String entryName) {
+        super(id, archive);
+        this.entryName = entryName;
+    }
+
+    @Override
+    public String getLocation() {
+        return getFile().getAbsolutePath() + SEPARATOR + entryName;
+    }
+
+    @Override
+    protected List<Segment> resolveSegments() throws IOException {
+        RARArchive.Entry entry = RARArchive.read(getFile()).getEntry(entryName);
+        if (entry == null) {
+            throw new FileNotFoundException(getLocation());
+        }
+        if (!entry.isServable()) {
+            throw new IOException(getLocation() + " is compressed, encrypted or incomplete");
+        }
+        return entry.getParts().stream()
+                .map(part -> new Segment(part.getVolume(), part.getOffset(), part.getLength()))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public String toString() {
+        return getLocation();
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.benjaminfaal.ps4remotepkginstaller.pkg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+// PKG split into numbered part files, served as the concatenation of the parts without merging them on disk
+public class SplitPKGHandle extends PKGHandle {
+
+    // name_0.pkg, name_1.pkg, ...
+    private static final Pattern UNDERSCORE_PART = Pattern.compile("(.+)_(\\d+)\\.pkg", Pattern.CASE_INSENSITIVE);
+
+    // name.001, name.002, ... or name.pkg.000, name.pkg.001, ...
+    private static final Pattern NUMBERED_EXTENSION_PART = Pattern.compile("(.+)\\.(\\d{3})");
+
+    private final List<File> parts;
+
+    SplitPKGHandle(String id, List<File> parts) {
+        super(id, parts.get(0));
+        this.parts = Collections.unmodifiableList(new ArrayList<>(parts));
+    }
+
+    public List<File> getParts() {
+        return parts;
+    }
+
+    // The parts separated like a path list, so the handle can be registered again after a restart
+    @Override
+    public String getLocation() {
+        return parts.stream().map(File::getAbsolutePath).collect(Collectors.joining(File.pathSeparator));
+    }
+
+    @Override
+    protected List<Segment> resolveSegments() throws IOException {
+        return parts.stream()
+                .map(part -> new Segment(part, 0, -1))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public String toString() {
+        return getLocation();
+    }
+
+    // All parts of the split PKG the file belongs to, starting at the first part. A single file if it is not split.
+    public static List<File> findParts(File file) {
+        File folder = file.getAbsoluteFile().getParentFile();
+        Matcher underscoreMatcher = UNDERSCORE_PART.matcher(file.getName());
+        Matcher numberedExtensionMatcher = NUMBERED_EXTENSION_PART.matcher(file.getName());
+        List<File> parts = new ArrayList<>();
+        if (underscoreMatcher.matches()) {
+            String extension = file.getName().substring(file.getName().length() - ".pkg".length());
+            for (int i = 0; ; i++) {
+                File part = new File(folder, underscoreMatcher.group(1) + "_" + i + extension);
+                if (!part.isFile()) {
+                    break;
+                }
+                parts.add(part);
+            }
+        } else if (numberedExtensionMatcher.matches()) {
+            // Numbering starts at 000 or 001 depending on the tool that split the PKG
+            int first = new File(folder, numberedExtensionMatcher.group(1) + ".000").isFile() ? 0 : 1;
+            for (int i = first; i <= 999; i++) {
+                File part = new File(folder, String.format("%s.%03d", numberedExtensionMatcher.group(1), i));
+                if (!part.isFile()) {
+                    break;
+                }
+                parts.add(part);
+            }
+        }
+        if (parts.size() < 2 || !parts.contains(file.getAbsoluteFile())) {
+            return Collections.singletonList(file);
+        }
+        return parts;
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.benjaminfaal.ps4remotepkginstaller.service;
+
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.ExistsResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.InstallResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.ModifyTaskResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.RARExtractor;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+// Non-blocking variant of RemotePKGInstallerService. The futures time out with a TimeoutException, and cancelling
+// them stops the call or takes it off the API queue.
+public interface AsyncRemotePKGInstallerService {
+
+    CompletableFuture<Boolean> isRunning();
+
+    CompletableFuture<ExistsResponse> exists(String titleId);
+
+    CompletableFuture<InstallResponse> installFiles(File[] files);
+
+    // Installs the same PKGs on all the consoles at the same time, by host in the given order
+    Map<String, CompletableFuture<InstallResponse>> installFiles(Collection<String> hosts, File[] files);
+
+    CompletableFuture<InstallResponse> installRAREntries(File rarFile, String[] entryNames);
+
+    CompletableFuture<InstallResponse> installExtraction(RARExtractor.Extraction extraction);
+
+    CompletableFuture<InstallResponse> installManifestJSONUrl(String manifestJsonUrl);
+
+    CompletableFuture<InstallResponse> installPKGUrl(String pkgUrl);
+
+    CompletableFuture<ModifyTaskResponse> stopTask(Integer id);
+
+    CompletableFuture<ModifyTaskResponse> pauseTask(Integer id);
+
+    CompletableFuture<ModifyTaskResponse> resumeTask(Integer id);
+
+    CompletableFuture<ModifyTaskResponse> removeTask(Integer id);
+
+    CompletableFuture<TaskProgress> getTask(Integer id);
+
+    // Runs another blocking call to the PS4 on the same executor, like starting the Remote PKG Installer
+    <T> CompletableFuture<T> supply(Supplier<T> call, Duration timeout);
+
+}
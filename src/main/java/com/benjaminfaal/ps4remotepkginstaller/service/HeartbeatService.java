@@ -0,0 +1,17 @@
+package com.benjaminfaal.ps4remotepkginstaller.service;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+public interface HeartbeatService {
+
+    // Of the selected console
+    boolean isRunning();
+
+    boolean isRunning(String host);
+
+    CompletableFuture<Boolean> checkNow();
+
+    CompletableFuture<Boolean> whenRunning(Duration timeout);
+
+}
@@ -0,0 +1,32 @@
+package com.benjaminfaal.ps4remotepkginstaller.service;
+
+import com.benjaminfaal.ps4remotepkginstaller.model.QueuedInstall;
+
+import java.io.File;
+import java.util.List;
+
+public interface InstallQueueService {
+
+    QueuedInstall enqueueFiles(File[] files);
+
+    QueuedInstall enqueueRAREntries(File rarFile, String[] entryNames);
+
+    QueuedInstall enqueueExtraction(File rarFile);
+
+    QueuedInstall enqueuePKGUrl(String pkgUrl);
+
+    QueuedInstall enqueueManifestJSONUrl(String manifestJsonUrl);
+
+    List<QueuedInstall> getQueue();
+
+    void setPriority(long id, int priority);
+
+    void remove(long id);
+
+    int getMaxActiveTasks();
+
+    void setMaxActiveTasks(int maxActiveTasks);
+
+    void dispatch();
+
+}
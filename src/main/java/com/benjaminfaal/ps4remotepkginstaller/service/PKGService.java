@@ -0,0 +1,9 @@
+package com.benjaminfaal.ps4remotepkginstaller.service;
+
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGHandle;
+
+public interface PKGService {
+
+    PKGHandle getHandle(String id, String downloadId);
+
+}
@@ -0,0 +1,52 @@
+package com.benjaminfaal.ps4remotepkginstaller.service;
+
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.ExistsResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.InstallResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.ModifyTaskResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.RARExtractor;
+
+import java.io.File;
+import java.util.List;
+
+// The Remote PKG Installer of a single console
+public interface RemotePKGInstallerConsoleService {
+
+    String getHost();
+
+    boolean isRunning();
+
+    ExistsResponse exists(String titleId);
+
+    InstallResponse installFiles(File[] files);
+
+    InstallResponse installRAREntries(File rarFile, String[] entryNames);
+
+    InstallResponse installExtraction(RARExtractor.Extraction extraction);
+
+    InstallResponse installManifestJSONUrl(String manifestJsonUrl);
+
+    InstallResponse installPKGUrl(String pkgUrl);
+
+    ModifyTaskResponse stopTask(Integer id);
+
+    ModifyTaskResponse pauseTask(Integer id);
+
+    ModifyTaskResponse resumeTask(Integer id);
+
+    ModifyTaskResponse removeTask(Integer id);
+
+    List<TaskProgress> getTasks();
+
+    List<Integer> getTaskIds();
+
+    InstallRequest getInstallRequest(Integer taskId);
+
+    TaskProgress getTask(Integer id);
+
+    TaskProgress getCachedTask(Integer id);
+
+    int countTasks();
+
+}
@@ -1,46 +1,21 @@
 package com.benjaminfaal.ps4remotepkginstaller.service;
 
-import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallRequest;
-import com.benjaminfaal.ps4remotepkginstaller.model.api.response.ExistsResponse;
-import com.benjaminfaal.ps4remotepkginstaller.model.api.response.InstallResponse;
-import com.benjaminfaal.ps4remotepkginstaller.model.api.response.ModifyTaskResponse;
-import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+import java.util.Set;
 
-import java.io.File;
-import java.util.List;
-
-public interface RemotePKGInstallerService {
+// Calls go to the selected console, or to the console of forHost
+public interface RemotePKGInstallerService extends RemotePKGInstallerConsoleService {
 
     void setHost(String host);
 
-    boolean isRunning();
-
-    ExistsResponse exists(String titleId);
-
-    InstallResponse installFiles(File[] files);
-
-    InstallResponse installManifestJSONUrl(String manifestJsonUrl);
-
-    InstallResponse installPKGUrl(String pkgUrl);
-
-    ModifyTaskResponse stopTask(Integer id);
-
-    ModifyTaskResponse pauseTask(Integer id);
-
-    ModifyTaskResponse resumeTask(Integer id);
-
-    ModifyTaskResponse removeTask(Integer id);
-
-    List<TaskProgress> getTasks();
-
-    List<Integer> getTaskIds();
-
-    InstallRequest getInstallRequest(Integer taskId);
+    // Consoles that were selected or have tasks
+    Set<String> getHosts();
 
-    TaskProgress getTask(Integer id);
+    // Keeps calling the console when another one is selected
+    RemotePKGInstallerConsoleService forHost(String host);
 
-    TaskProgress getCachedTask(Integer id);
+    // Tasks of a previous version, which saved the tasks of all consoles together
+    boolean hasPreviousTasks();
 
-    int countTasks();
+    void movePreviousTasks(String host);
 
 }
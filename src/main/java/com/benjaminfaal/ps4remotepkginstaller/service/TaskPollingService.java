@@ -0,0 +1,9 @@
+package com.benjaminfaal.ps4remotepkginstaller.service;
+
+public interface TaskPollingService {
+
+    void pollNow(Integer taskId);
+
+    void pollAll();
+
+}
@@ -0,0 +1,134 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.apachecommons.CommonsLog;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Stops sending requests to a console after consecutive connection errors or timeouts, they fail right away until the
+// open duration passed. Then a single request checks whether the console answers again.
+@CommonsLog
+public class APICircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        HALF_OPEN,
+        OPEN
+    }
+
+    private final int failureThreshold;
+
+    private final Duration openDuration;
+
+    private final MeterRegistry meterRegistry;
+
+    private final Iterable<Tag> tags;
+
+    private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+    public APICircuitBreaker(int failureThreshold, Duration openDuration, MeterRegistry meterRegistry, Iterable<Tag> tags) {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.meterRegistry = meterRegistry;
+        this.tags = tags;
+    }
+
+    // Throws when the request may not be sent
+    public void acquire(String host) throws OpenException {
+        Breaker breaker = breaker(host);
+        synchronized (breaker) {
+            switch (breaker.state) {
+                case CLOSED:
+                    return;
+                case OPEN:
+                    if (System.nanoTime() - breaker.openUntil >= 0) {
+                        breaker.state = State.HALF_OPEN;
+                        log.debug("Circuit breaker of " + host + " is half open");
+                        return;
+                    }
+                    break;
+            }
+            // Half open lets only the request that checks the console through
+            breaker.rejected.increment();
+            throw new OpenException("Not sending requests to " + host + " for a while, it didn't answer the last " + failureThreshold + " times");
+        }
+    }
+
+    public void onSuccess(String host) {
+        Breaker breaker = breaker(host);
+        synchronized (breaker) {
+            if (breaker.state != State.CLOSED) {
+                log.info("Circuit breaker of " + host + " is closed, it answers again");
+            }
+            breaker.state = State.CLOSED;
+            breaker.failures = 0;
+        }
+    }
+
+    public void onFailure(String host) {
+        Breaker breaker = breaker(host);
+        synchronized (breaker) {
+            breaker.failures++;
+            if (breaker.state == State.HALF_OPEN || breaker.failures >= failureThreshold) {
+                if (breaker.state == State.CLOSED) {
+                    log.info("Circuit breaker of " + host + " is open for " + openDuration + " after " + breaker.failures + " failures");
+                }
+                breaker.state = State.OPEN;
+                breaker.openUntil = System.nanoTime() + openDuration.toNanos();
+            }
+        }
+    }
+
+    public State getState(String host) {
+        Breaker breaker = breaker(host);
+        synchronized (breaker) {
+            return breaker.state;
+        }
+    }
+
+    private Breaker breaker(String host) {
+        return breakers.computeIfAbsent(host, key -> {
+            Breaker breaker = new Breaker();
+            Tags hostTags = Tags.of(tags).and("host", host);
+            Gauge.builder("ps4.api.circuit-breaker.state", breaker, b -> b.state.ordinal())
+                    .description("0 closed, 1 half open, 2 open")
+                    .tags(hostTags)
+                    .register(meterRegistry);
+            FunctionCounter.builder("ps4.api.circuit-breaker.rejected", breaker.rejected, LongAdder::sum)
+                    .tags(hostTags)
+                    .register(meterRegistry);
+            return breaker;
+        });
+    }
+
+    // An IOException so the RestTemplate throws it as a ResourceAccessException, like the console being unreachable
+    public static class OpenException extends IOException {
+
+        public OpenException(String message) {
+            super(message);
+        }
+
+    }
+
+    private static class Breaker {
+
+        private volatile State state = State.CLOSED;
+
+        private int failures;
+
+        // System.nanoTime()
+        private long openUntil;
+
+        private final LongAdder rejected = new LongAdder();
+
+    }
+
+}
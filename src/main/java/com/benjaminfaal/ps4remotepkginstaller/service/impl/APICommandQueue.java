@@ -0,0 +1,239 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.apachecommons.CommonsLog;
+
+import java.io.Closeable;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// The API sometimes corrupts when doing multiple requests async https://github.com/flatz/ps4_remote_pkg_installer/issues/3
+// so all requests to a PS4 are executed one at a time by a single thread. Control commands go before polling, and
+// polls for the same thing that are still waiting share a single request.
+@CommonsLog
+public class APICommandQueue implements Closeable {
+
+    public enum Priority {
+        // Install and task modifications the user is waiting for
+        CONTROL,
+        // Progress and status polling
+        POLL
+    }
+
+    private final PriorityBlockingQueue<Command<?>> queue = new PriorityBlockingQueue<>();
+
+    // Commands that can be coalesced by key, until they start executing
+    private final Map<String, Command<?>> waiting = new HashMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    private final Map<Priority, Timer> waitTimers = new EnumMap<>(Priority.class);
+
+    private final Thread worker;
+
+    private volatile boolean closed;
+
+    public APICommandQueue(String name, MeterRegistry meterRegistry, Iterable<Tag> tags) {
+        Gauge.builder("ps4.api.queue.depth", queue, PriorityBlockingQueue::size).tags(tags).register(meterRegistry);
+        FunctionCounter.builder("ps4.api.queue.coalesced", coalesced, LongAdder::sum).tags(tags).register(meterRegistry);
+        for (Priority priority : Priority.values()) {
+            waitTimers.put(priority, Timer.builder("ps4.api.queue.wait")
+                    .tags(Tags.of(tags).and("priority", priority.name().toLowerCase()))
+                    .register(meterRegistry));
+        }
+
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // Blocks until the command is executed, exceptions of the command are thrown as they are.
+    // An interrupted caller stops waiting for a command that is still queued, like cancelling the future of submit.
+    // A command that was sent to the PS4 already is waited for, so the caller can record what it did, like the task an
+    // install created. The interrupt is kept for the caller.
+    public <T> T execute(Priority priority, String key, Supplier<T> command) {
+        CompletableFuture<T> future = submit(priority, key, command);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    if (future.cancel(false)) {
+                        throw new CancellationException("Interrupted while waiting for the PS4 API");
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new CompletionException(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // A key identifies commands with the same result, like polling the same task, null if it can't be coalesced.
+    // Every caller gets its own future, a command is only taken off the queue when all of them are cancelled.
+    // Once the command left the queue the futures can't be cancelled anymore, the PS4 may have executed it already.
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> submit(Priority priority, String key, Supplier<T> command) {
+        if (closed) {
+            throw new IllegalStateException("API command queue is closed");
+        }
+        synchronized (waiting) {
+            if (key != null) {
+                Command<?> existing = waiting.get(key);
+                if (existing != null) {
+                    coalesced.increment();
+                    // A control command can't wait behind the polling it is coalesced with
+                    if (existing.priority.compareTo(priority) > 0 && queue.remove(existing)) {
+                        existing.priority = priority;
+                        queue.add(existing);
+                    }
+                    return attach((Command<T>) existing);
+                }
+            }
+            Command<T> queued = new Command<>(priority, key, command, sequence.incrementAndGet());
+            if (key != null) {
+                waiting.put(key, queued);
+            }
+            queue.add(queued);
+            return attach(queued);
+        }
+    }
+
+    private <T> CompletableFuture<T> attach(Command<T> command) {
+        command.waiters++;
+        CompletableFuture<T> future = new CompletableFuture<T>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                synchronized (waiting) {
+                    return queue.contains(command) && super.cancel(mayInterruptIfRunning);
+                }
+            }
+        };
+        command.future.whenComplete((result, e) -> {
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(result);
+            }
+        });
+        future.whenComplete((result, e) -> {
+            if (future.isCancelled()) {
+                detach(command);
+            }
+        });
+        return future;
+    }
+
+    private void detach(Command<?> command) {
+        synchronized (waiting) {
+            // Nobody is waiting for it anymore, so it doesn't have to be executed
+            if (--command.waiters == 0 && queue.remove(command)) {
+                if (command.key != null) {
+                    waiting.remove(command.key, command);
+                }
+                command.future.cancel(false);
+            }
+        }
+    }
+
+    public int getDepth() {
+        return queue.size();
+    }
+
+    private void run() {
+        while (!closed) {
+            Command<?> command;
+            try {
+                command = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            synchronized (waiting) {
+                if (command.key != null) {
+                    waiting.remove(command.key, command);
+                }
+            }
+            waitTimers.get(command.priority).record(System.nanoTime() - command.queuedAt, TimeUnit.NANOSECONDS);
+            command.execute();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+        Command<?> command;
+        while ((command = queue.poll()) != null) {
+            command.future.completeExceptionally(new CancellationException("API command queue is closed"));
+        }
+    }
+
+    private static class Command<T> implements Comparable<Command<?>> {
+
+        private volatile Priority priority;
+
+        private final String key;
+
+        private final Supplier<T> supplier;
+
+        private final long sequence;
+
+        private final long queuedAt = System.nanoTime();
+
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        // Callers that did not cancel, guarded by the waiting map
+        private int waiters;
+
+        private Command(Priority priority, String key, Supplier<T> supplier, long sequence) {
+            this.priority = priority;
+            this.key = key;
+            this.supplier = supplier;
+            this.sequence = sequence;
+        }
+
+        private void execute() {
+            try {
+                future.complete(supplier.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public int compareTo(Command<?> other) {
+            int compare = priority.compareTo(other.priority);
+            return compare != 0 ? compare : Long.compare(sequence, other.sequence);
+        }
+
+    }
+
+}
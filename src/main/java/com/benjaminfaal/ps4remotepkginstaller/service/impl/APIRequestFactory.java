@@ -0,0 +1,102 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.binder.httpcomponents.PoolingHttpClientConnectionManagerMetricsBinder;
+import org.apache.http.HttpRequest;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+// Keeps connections to the Remote PKG Installer API open and reuses them per console, instead of connecting for every request
+public class APIRequestFactory extends HttpComponentsClientHttpRequestFactory {
+
+    // Requests to a console are executed one at a time by the APICommandQueue
+    private static final int MAX_CONNECTIONS_PER_CONSOLE = 2;
+
+    // Every console has its own APICommandQueue, so a shelf of consoles is called at the same time
+    private static final int MAX_CONNECTIONS = 64;
+
+    // A connection that was idle this long is checked before it is reused
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 1000;
+
+    private final RequestConfig requestConfig;
+
+    private final APITimeouts timeouts;
+
+    public APIRequestFactory(Duration connectTimeout, Duration readTimeout, Duration keepAlive, APITimeouts timeouts, MeterRegistry meterRegistry, Iterable<Tag> tags) {
+        this(createConnectionManager(readTimeout), RequestConfig.custom()
+                .setConnectTimeout((int) connectTimeout.toMillis())
+                .setConnectionRequestTimeout((int) connectTimeout.toMillis())
+                .setSocketTimeout((int) readTimeout.toMillis())
+                .build(), keepAlive, timeouts, meterRegistry, tags);
+    }
+
+    private APIRequestFactory(PoolingHttpClientConnectionManager connectionManager, RequestConfig requestConfig, Duration keepAlive, APITimeouts timeouts, MeterRegistry meterRegistry, Iterable<Tag> tags) {
+        super(HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                // The API doesn't send a Keep-Alive header, so connections are kept open for the configured time
+                .setKeepAliveStrategy((response, context) -> {
+                    long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return duration > 0 ? Math.min(duration, keepAlive.toMillis()) : keepAlive.toMillis();
+                })
+                // The console may close a kept open connection without telling, then a request gets no response at all and is sent again once.
+                // It may also have executed the command before closing, so only reads are sent again.
+                .setRetryHandler((exception, executionCount, context) -> executionCount == 1 && exception instanceof NoHttpResponseException && isIdempotent(context))
+                .evictIdleConnections(keepAlive.toMillis(), TimeUnit.MILLISECONDS)
+                .evictExpiredConnections()
+                .disableCookieManagement()
+                .build());
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "ps4-api", tags).bindTo(meterRegistry);
+        this.requestConfig = requestConfig;
+        this.timeouts = timeouts;
+    }
+
+    // Timeouts by console and command, waiting for a pooled connection keeps the configured connect timeout
+    @Override
+    protected HttpContext createHttpContext(HttpMethod httpMethod, URI uri) {
+        String path = uri.getPath();
+        HttpClientContext context = HttpClientContext.create();
+        context.setRequestConfig(RequestConfig.copy(requestConfig)
+                .setConnectTimeout((int) timeouts.getConnectTimeout(uri.getHost()).toMillis())
+                .setSocketTimeout((int) timeouts.getReadTimeout(uri.getHost(), path.substring(path.lastIndexOf('/') + 1)).toMillis())
+                .build());
+        return context;
+    }
+
+    private static boolean isIdempotent(HttpContext context) {
+        HttpRequest request = HttpClientContext.adapt(context).getRequest();
+        if (request == null) {
+            return false;
+        }
+        String path = URI.create(request.getRequestLine().getUri()).getPath();
+        return APIResilience.IDEMPOTENT_COMMANDS.contains(path.substring(path.lastIndexOf('/') + 1));
+    }
+
+    private static PoolingHttpClientConnectionManager createConnectionManager(Duration readTimeout) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_CONSOLE);
+        connectionManager.setMaxTotal(MAX_CONNECTIONS);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+        connectionManager.setDefaultSocketConfig(SocketConfig.custom()
+                // Requests and responses are a few hundred bytes, don't wait to fill a packet
+                .setTcpNoDelay(true)
+                .setSoKeepAlive(true)
+                .setSoTimeout((int) readTimeout.toMillis())
+                .build());
+        return connectionManager;
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+// Latency of every request to the Remote PKG Installer API by command, with a histogram for percentiles
+public class APIRequestMetrics implements ClientHttpRequestInterceptor {
+
+    private final MeterRegistry meterRegistry;
+
+    private final Iterable<Tag> tags;
+
+    public APIRequestMetrics(MeterRegistry meterRegistry, Iterable<Tag> tags) {
+        this.meterRegistry = meterRegistry;
+        this.tags = tags;
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        long start = System.nanoTime();
+        String status = "IO_ERROR";
+        try {
+            ClientHttpResponse response = execution.execute(request, body);
+            status = String.valueOf(response.getRawStatusCode());
+            return response;
+        } finally {
+            String path = request.getURI().getPath();
+            Timer.builder("ps4.api.requests")
+                    .tags(tags)
+                    .tag("command", path.substring(path.lastIndexOf('/') + 1))
+                    .tag("status", status)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofMillis(1))
+                    .maximumExpectedValue(Duration.ofSeconds(5))
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+// Feeds the response times of the console to the APITimeouts, fails fast through the APICircuitBreaker and sends reads
+// again after a connection error or timeout. Has to be the last interceptor, a retry executes the request again.
+@CommonsLog
+public class APIResilience implements ClientHttpRequestInterceptor {
+
+    // Commands without side effects, installs and task modifications are never sent twice
+    static final Set<String> IDEMPOTENT_COMMANDS = new HashSet<>(Arrays.asList("is_exists", "get_task_progress"));
+
+    private final APITimeouts timeouts;
+
+    private final APICircuitBreaker circuitBreaker;
+
+    private final int retries;
+
+    private final Counter retried;
+
+    public APIResilience(APITimeouts timeouts, APICircuitBreaker circuitBreaker, int retries, MeterRegistry meterRegistry, Iterable<Tag> tags) {
+        this.timeouts = timeouts;
+        this.circuitBreaker = circuitBreaker;
+        this.retries = retries;
+        this.retried = Counter.builder("ps4.api.retries").tags(tags).register(meterRegistry);
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        String host = request.getURI().getHost();
+        String path = request.getURI().getPath();
+        String command = path.substring(path.lastIndexOf('/') + 1);
+        int attempts = IDEMPOTENT_COMMANDS.contains(command) ? retries + 1 : 1;
+        for (int attempt = 1; ; attempt++) {
+            circuitBreaker.acquire(host);
+            long start = System.nanoTime();
+            ClientHttpResponse response;
+            try {
+                response = execution.execute(request, body);
+            } catch (IOException | RuntimeException e) {
+                circuitBreaker.onFailure(host);
+                // A connect timeout is not a SocketTimeoutException, the console being off says nothing about its response times
+                if (e instanceof SocketTimeoutException) {
+                    timeouts.recordReadTimeout(host, command, System.nanoTime() - start);
+                }
+                if (e instanceof RuntimeException || attempt >= attempts || circuitBreaker.getState(host) != APICircuitBreaker.State.CLOSED) {
+                    throw e;
+                }
+                retried.increment();
+                log.debug("Sending " + command + " to " + host + " again after: " + e.getMessage());
+                continue;
+            }
+            circuitBreaker.onSuccess(host);
+            timeouts.record(host, command, System.nanoTime() - start);
+            return response;
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Timeouts of a console follow the p99 of its last response times, so a busy console gets more time and requests to a
+// console that stopped answering don't wait longer than it ever needed. Until there are enough responses the configured
+// timeouts are used.
+public class APITimeouts {
+
+    private static final int MIN_SAMPLES = 10;
+
+    private static final double PERCENTILE = 0.99;
+
+    private final Duration initialConnectTimeout;
+
+    private final Duration initialReadTimeout;
+
+    private final double multiplier;
+
+    private final long minNanos;
+
+    private final long maxNanos;
+
+    private final int samples;
+
+    private final MeterRegistry meterRegistry;
+
+    private final Iterable<Tag> tags;
+
+    // By host, only the quick reads for the connect timeout
+    private final Map<String, Window> connectWindows = new ConcurrentHashMap<>();
+
+    // By host and command, an install takes longer than polling
+    private final Map<String, Window> readWindows = new ConcurrentHashMap<>();
+
+    public APITimeouts(Duration initialConnectTimeout, Duration initialReadTimeout, double multiplier, Duration min, Duration max, int samples, MeterRegistry meterRegistry, Iterable<Tag> tags) {
+        this.initialConnectTimeout = initialConnectTimeout;
+        this.initialReadTimeout = initialReadTimeout;
+        this.multiplier = multiplier;
+        this.minNanos = min.toNanos();
+        this.maxNanos = max.toNanos();
+        this.samples = samples;
+        this.meterRegistry = meterRegistry;
+        this.tags = tags;
+    }
+
+    public Duration getConnectTimeout(String host) {
+        return connectWindow(host).getTimeout();
+    }
+
+    public Duration getReadTimeout(String host, String command) {
+        return readWindow(host, command).getTimeout();
+    }
+
+    public void record(String host, String command, long nanos) {
+        // The console fetches the PKG header during an install, that would make the connect timeout as long as the
+        // slowest install while it should stay short to notice a console that is off
+        if (APIResilience.IDEMPOTENT_COMMANDS.contains(command)) {
+            connectWindow(host).record(nanos);
+        }
+        readWindow(host, command).record(nanos);
+    }
+
+    // The console was busy for at least this long, so the timeout grows instead of staying at what it was
+    public void recordReadTimeout(String host, String command, long nanos) {
+        readWindow(host, command).record(nanos);
+    }
+
+    private Window connectWindow(String host) {
+        return connectWindows.computeIfAbsent(host, key -> register(new Window(initialConnectTimeout), host, "connect", null));
+    }
+
+    private Window readWindow(String host, String command) {
+        return readWindows.computeIfAbsent(host + "/" + command, key -> register(new Window(initialReadTimeout), host, "read", command));
+    }
+
+    private Window register(Window window, String host, String type, String command) {
+        Tags windowTags = Tags.of(tags).and("host", host).and("type", type);
+        if (command != null) {
+            windowTags = windowTags.and("command", command);
+        }
+        TimeGauge.builder("ps4.api.timeout", window, TimeUnit.NANOSECONDS, w -> w.timeoutNanos)
+                .tags(windowTags)
+                .register(meterRegistry);
+        return window;
+    }
+
+    private class Window {
+
+        // Ring buffer of the last response times in nanoseconds, guarded by this
+        private final long[] values = new long[samples];
+
+        private int count;
+
+        private int next;
+
+        private volatile long timeoutNanos;
+
+        private Window(Duration initialTimeout) {
+            this.timeoutNanos = initialTimeout.toNanos();
+        }
+
+        private Duration getTimeout() {
+            return Duration.ofNanos(timeoutNanos);
+        }
+
+        private synchronized void record(long nanos) {
+            values[next] = nanos;
+            next = (next + 1) % values.length;
+            count = Math.min(count + 1, values.length);
+            if (count >= Math.min(MIN_SAMPLES, values.length)) {
+                long[] sorted = Arrays.copyOf(values, count);
+                Arrays.sort(sorted);
+                long percentile = sorted[(int) Math.ceil(PERCENTILE * count) - 1];
+                timeoutNanos = Math.max(minNanos, Math.min(maxNanos, (long) (percentile * multiplier)));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,208 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.ExistsResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.InstallResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.ModifyTaskResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.RARExtractor;
+import com.benjaminfaal.ps4remotepkginstaller.service.AsyncRemotePKGInstallerService;
+import com.benjaminfaal.ps4remotepkginstaller.service.RemotePKGInstallerConsoleService;
+import com.benjaminfaal.ps4remotepkginstaller.service.RemotePKGInstallerService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+// Runs the blocking service on a bounded executor, the API calls themselves are still executed one at a time by the APICommandQueue
+@Service
+public class AsyncRemotePKGInstallerServiceImpl implements AsyncRemotePKGInstallerService, InitializingBean {
+
+    @Value("${api.async.threads:4}")
+    private int threads;
+
+    @Value("${api.async.queue-capacity:100}")
+    private int queueCapacity;
+
+    @Value("${api.async.timeout:30s}")
+    private Duration timeout;
+
+    @Value("${api.async.fan-out-threads:16}")
+    private int fanOutThreads;
+
+    @Autowired
+    private RemotePKGInstallerService remotePKGInstallerService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private ThreadPoolExecutor executor;
+
+    // Every console has its own API queue, so installing on many consoles is only as parallel as this executor
+    private ThreadPoolExecutor fanOutExecutor;
+
+    private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("ps4-api-timeout-"));
+
+    @Override
+    public void afterPropertiesSet() {
+        // Bounded, so calls to a console that stopped responding can't pile up
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("ps4-api-async-"));
+        executor.allowCoreThreadTimeOut(true);
+        new ExecutorServiceMetrics(executor, "ps4-api-async", Tags.empty()).bindTo(meterRegistry);
+        // Not bounded, a fan-out submits one install per console at once
+        fanOutExecutor = new ThreadPoolExecutor(fanOutThreads, fanOutThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new CustomizableThreadFactory("ps4-api-fan-out-"));
+        fanOutExecutor.allowCoreThreadTimeOut(true);
+        new ExecutorServiceMetrics(fanOutExecutor, "ps4-api-fan-out", Tags.empty()).bindTo(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        fanOutExecutor.shutdownNow();
+        timeouts.shutdownNow();
+    }
+
+    @Override
+    public CompletableFuture<Boolean> isRunning() {
+        return supply(selected()::isRunning, timeout);
+    }
+
+    @Override
+    public CompletableFuture<ExistsResponse> exists(String titleId) {
+        RemotePKGInstallerConsoleService console = selected();
+        return supply(() -> console.exists(titleId), timeout);
+    }
+
+    @Override
+    public CompletableFuture<InstallResponse> installFiles(File[] files) {
+        RemotePKGInstallerConsoleService console = selected();
+        return supply(() -> console.installFiles(files), timeout);
+    }
+
+    // Every console gets its own handles of the PKGs, removing the task of one console keeps serving the others
+    @Override
+    public Map<String, CompletableFuture<InstallResponse>> installFiles(Collection<String> hosts, File[] files) {
+        Map<String, CompletableFuture<InstallResponse>> responses = new LinkedHashMap<>();
+        for (String host : hosts) {
+            responses.put(host, supply(fanOutExecutor, () -> remotePKGInstallerService.forHost(host).installFiles(files), timeout));
+        }
+        return responses;
+    }
+
+    @Override
+    public CompletableFuture<InstallResponse> installRAREntries(File rarFile, String[] entryNames) {
+        RemotePKGInstallerConsoleService console = selected();
+        return supply(() -> console.installRAREntries(rarFile, entryNames), timeout);
+    }
+
+    @Override
+    public CompletableFuture<InstallResponse> installExtraction(RARExtractor.Extraction extraction) {
+        RemotePKGInstallerConsoleService console = selected();
+        return supply(() -> console.installExtraction(extraction), timeout);
+    }
+
+    @Override
+    public CompletableFuture<InstallResponse> installManifestJSONUrl(String manifestJsonUrl) {
+        RemotePKGInstallerConsoleService console = selected();
+        return supply(() -> console.installManifestJSONUrl(manifestJsonUrl), timeout);
+    }
+
+    @Override
+    public CompletableFuture<InstallResponse> installPKGUrl(String pkgUrl) {
+        RemotePKGInstallerConsoleService console = selected();
+        return supply(() -> console.installPKGUrl(pkgUrl), timeout);
+    }
+
+    @Override
+    public CompletableFuture<ModifyTaskResponse> stopTask(Integer id) {
+        RemotePKGInstallerConsoleService console = selected();
+        return supply(() -> console.stopTask(id), timeout);
+    }
+
+    @Override
+    public CompletableFuture<ModifyTaskResponse> pauseTask(Integer id) {
+        RemotePKGInstallerConsoleService console = selected();
+        return supply(() -> console.pauseTask(id), timeout);
+    }
+
+    @Override
+    public CompletableFuture<ModifyTaskResponse> resumeTask(Integer id) {
+        RemotePKGInstallerConsoleService console = selected();
+        return supply(() -> console.resumeTask(id), timeout);
+    }
+
+    @Override
+    public CompletableFuture<ModifyTaskResponse> removeTask(Integer id) {
+        RemotePKGInstallerConsoleService console = selected();
+        return supply(() -> console.removeTask(id), timeout);
+    }
+
+    @Override
+    public CompletableFuture<TaskProgress> getTask(Integer id) {
+        RemotePKGInstallerConsoleService console = selected();
+        return supply(() -> console.getTask(id), timeout);
+    }
+
+    // Resolved when called, so the call goes to the console that was selected then, also when it waits on the executor
+    private RemotePKGInstallerConsoleService selected() {
+        String host = remotePKGInstallerService.getHost();
+        return host != null ? remotePKGInstallerService.forHost(host) : remotePKGInstallerService;
+    }
+
+    @Override
+    public <T> CompletableFuture<T> supply(Supplier<T> call, Duration timeout) {
+        return supply(executor, call, timeout);
+    }
+
+    private <T> CompletableFuture<T> supply(Executor executor, Supplier<T> call, Duration timeout) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            try {
+                future.complete(call.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }, null);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new RejectedExecutionException("Too many calls are waiting for the PS4", e));
+            return future;
+        }
+
+        ScheduledFuture<?> timer = timeouts.schedule(() -> future.completeExceptionally(new TimeoutException("No response from the PS4 within " + timeout)), timeout.toMillis(), TimeUnit.MILLISECONDS);
+        future.whenComplete((result, e) -> {
+            timer.cancel(false);
+            // Interrupting takes the call off the API queue when nobody else is waiting for it. A call that was sent to the
+            // PS4 already still finishes in the background, so an install that was created is recorded.
+            if (future.isCancelled() || e instanceof TimeoutException) {
+                task.cancel(true);
+            }
+        });
+        return future;
+    }
+
+}
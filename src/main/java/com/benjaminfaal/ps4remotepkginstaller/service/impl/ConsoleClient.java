@@ -0,0 +1,339 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import com.benjaminfaal.ps4remotepkginstaller.event.TaskUpdateEvent;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallManifestJSONUrlRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallPKGUrlRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallPackagesRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.TaskRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.TitleRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.ExistsResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.InstallResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.ModifyTaskResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGHandle;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGHandleRegistry;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.RARExtractionCache;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.RARExtractor;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.SplitPKGHandle;
+import com.benjaminfaal.ps4remotepkginstaller.service.RemotePKGInstallerConsoleService;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+// Client of the Remote PKG Installer of one console. Consoles don't share their API queue or tasks, so the commands of
+// one console don't wait for another, and task IDs of different consoles don't collide.
+@CommonsLog
+public class ConsoleClient implements RemotePKGInstallerConsoleService {
+
+    private final String host;
+
+    private final RestTemplate restTemplate;
+
+    private final APICommandQueue commandQueue;
+
+    private final TaskRegistry taskRegistry = new TaskRegistry();
+
+    private final TaskJournal taskJournal;
+
+    private final PKGHandleRegistry pkgHandleRegistry;
+
+    private final ApplicationEventPublisher applicationEventPublisher;
+
+    // Of the PKG server, the console downloads the PKGs from there
+    private final Supplier<UriComponentsBuilder> pkgServerUri;
+
+    public ConsoleClient(String host, RestTemplate restTemplate, APICommandQueue commandQueue, Path journal, PKGHandleRegistry pkgHandleRegistry,
+                         ApplicationEventPublisher applicationEventPublisher, Supplier<UriComponentsBuilder> pkgServerUri) {
+        this.host = host;
+        this.restTemplate = restTemplate;
+        this.commandQueue = commandQueue;
+        this.taskJournal = new TaskJournal(journal, taskRegistry);
+        this.pkgHandleRegistry = pkgHandleRegistry;
+        this.applicationEventPublisher = applicationEventPublisher;
+        this.pkgServerUri = pkgServerUri;
+    }
+
+    public void open(Duration journalSyncInterval) throws IOException {
+        taskJournal.open(journalSyncInterval);
+        taskRegistry.snapshot().forEach(this::restorePKGHandles);
+        taskRegistry.getFinished().forEach((taskId, task) -> pkgHandleRegistry.setFinished(host, taskId, task.isFinished()));
+    }
+
+    // Tasks that were saved elsewhere, tasks with the same ID as a task of this console are skipped
+    public int importTasks(TaskRegistry tasks) throws IOException {
+        int imported = 0;
+        TaskRegistry.Snapshot snapshot = tasks.snapshot();
+        for (Integer taskId : snapshot.getTaskIds()) {
+            if (taskRegistry.contains(taskId)) {
+                log.warn("Not moving previous task " + taskId + " to " + host + ", it has a task with the same ID");
+                continue;
+            }
+            InstallRequest installRequest = snapshot.getInstallRequest(taskId);
+            taskRegistry.put(taskId, installRequest);
+            taskJournal.putInstallRequest(taskId, installRequest);
+            TaskProgress finishedTask = tasks.getFinished().get(taskId);
+            if (finishedTask != null) {
+                taskRegistry.putAllFinished(Collections.singletonMap(taskId, finishedTask));
+                taskJournal.putFinishedTask(taskId, finishedTask);
+            }
+            restorePKGHandles(taskId, installRequest);
+            pkgHandleRegistry.setFinished(host, taskId, finishedTask != null && finishedTask.isFinished());
+            imported++;
+        }
+        taskJournal.flush();
+        return imported;
+    }
+
+    public void close() throws IOException {
+        commandQueue.close();
+        taskJournal.close();
+    }
+
+    // The PS4 keeps downloading previous tasks from the same URLs, so their handles are registered again under the same ID
+    private void restorePKGHandles(Integer taskId, InstallRequest installRequest) {
+        if (installRequest instanceof InstallPackagesRequest && ((InstallPackagesRequest) installRequest).getLocalFiles() != null) {
+            InstallPackagesRequest installPackagesRequest = (InstallPackagesRequest) installRequest;
+            List<PKGHandle> handles = new ArrayList<>();
+            for (int i = 0; i < installPackagesRequest.getPackages().length; i++) {
+                String pkgUrl = installPackagesRequest.getPackages()[i];
+                String id = pkgUrl.substring(pkgUrl.lastIndexOf('/') + 1);
+                String location = installPackagesRequest.getLocalFiles()[i];
+                if (RARExtractionCache.isInterrupted(new File(location))) {
+                    // Only partially extracted, serving it would install a corrupt PKG
+                    log.warn("Not serving " + location + " of task " + taskId + " of " + host + ", its extraction was interrupted");
+                    continue;
+                }
+                handles.add(pkgHandleRegistry.register(id, location));
+            }
+            pkgHandleRegistry.bind(host, taskId, handles);
+        }
+    }
+
+    @Override
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public boolean isRunning() {
+        ExistsResponse response = exists("");
+        return !response.isExists() && response.isSuccess();
+    }
+
+    @Override
+    public ExistsResponse exists(String titleId) {
+        return commandQueue.execute(APICommandQueue.Priority.POLL, "is_exists:" + titleId,
+                () -> restTemplate.postForObject("/is_exists", new TitleRequest(titleId), ExistsResponse.class));
+    }
+
+    @Override
+    public InstallResponse installFiles(File[] files) {
+        List<PKGHandle> handles = new ArrayList<>();
+        Set<File> registered = new HashSet<>();
+        try {
+            for (File file : files) {
+                // Selecting any or all parts of a split PKG installs it once
+                List<File> parts = SplitPKGHandle.findParts(file);
+                if (!registered.addAll(parts)) {
+                    continue;
+                }
+                handles.add(parts.size() > 1 ? pkgHandleRegistry.register(parts) : pkgHandleRegistry.register(file));
+            }
+        } catch (IOException e) {
+            handles.forEach(pkgHandleRegistry::release);
+            throw new UncheckedIOException("Error opening PKG file: " + e.getMessage(), e);
+        }
+        return installHandles(handles);
+    }
+
+    @Override
+    public InstallResponse installRAREntries(File rarFile, String[] entryNames) {
+        List<PKGHandle> handles = new ArrayList<>();
+        try {
+            for (String entryName : entryNames) {
+                handles.add(pkgHandleRegistry.register(rarFile, entryName));
+            }
+        } catch (IOException e) {
+            handles.forEach(pkgHandleRegistry::release);
+            throw new UncheckedIOException("Error opening PKG in " + rarFile + ": " + e.getMessage(), e);
+        }
+        return installHandles(handles);
+    }
+
+    @Override
+    public InstallResponse installExtraction(RARExtractor.Extraction extraction) {
+        List<PKGHandle> handles = new ArrayList<>();
+        try {
+            for (RARExtractor.ExtractedFile extractedFile : extraction.getFiles()) {
+                handles.add(pkgHandleRegistry.register(extractedFile));
+            }
+        } catch (IOException e) {
+            handles.forEach(pkgHandleRegistry::release);
+            throw new UncheckedIOException("Error opening PKG file: " + e.getMessage(), e);
+        }
+        return installHandles(handles);
+    }
+
+    private InstallResponse installHandles(List<PKGHandle> handles) {
+        List<String> packages = new ArrayList<>();
+        for (PKGHandle handle : handles) {
+            Map<String, Object> variables = new HashMap<>();
+            variables.put("id", handle.getId());
+            String pkgUrl = pkgServerUri.get()
+                    .path("pkg/{id}")
+                    .uriVariables(variables)
+                    .toUriString();
+            packages.add(pkgUrl);
+        }
+
+        InstallPackagesRequest request = new InstallPackagesRequest();
+        request.setPackages(packages.toArray(new String[0]));
+        request.setLocalFiles(handles.stream().map(PKGHandle::getLocation).toArray(String[]::new));
+
+        InstallResponse response;
+        try {
+            response = install(request);
+        } catch (RuntimeException e) {
+            handles.forEach(pkgHandleRegistry::release);
+            throw e;
+        }
+        if (response.isSuccess() && response.getTaskId() != null) {
+            pkgHandleRegistry.bind(host, response.getTaskId(), handles);
+        } else {
+            handles.forEach(pkgHandleRegistry::release);
+        }
+        return response;
+    }
+
+    @Override
+    public InstallResponse installManifestJSONUrl(String manifestJsonUrl) {
+        InstallManifestJSONUrlRequest request = new InstallManifestJSONUrlRequest();
+        request.setUrl(manifestJsonUrl);
+        return install(request);
+    }
+
+    @Override
+    public InstallResponse installPKGUrl(String pkgUrl) {
+        InstallPKGUrlRequest request = new InstallPKGUrlRequest();
+        request.setPackages(new String[]{pkgUrl});
+        return install(request);
+    }
+
+    @Override
+    public ModifyTaskResponse stopTask(Integer id) {
+        ModifyTaskResponse stopTaskResponse = modifyTask(id, "stop");
+        applicationEventPublisher.publishEvent(new TaskUpdateEvent(host, id));
+        return stopTaskResponse;
+    }
+
+    @Override
+    public ModifyTaskResponse pauseTask(Integer id) {
+        ModifyTaskResponse pauseTaskResponse = modifyTask(id, "pause");
+        applicationEventPublisher.publishEvent(new TaskUpdateEvent(host, id));
+        return pauseTaskResponse;
+    }
+
+    @Override
+    public ModifyTaskResponse resumeTask(Integer id) {
+        ModifyTaskResponse resumeTaskResponse = modifyTask(id, "resume");
+        applicationEventPublisher.publishEvent(new TaskUpdateEvent(host, id));
+        return resumeTaskResponse;
+    }
+
+    @Override
+    public ModifyTaskResponse removeTask(Integer taskId) {
+        taskRegistry.remove(taskId);
+        pkgHandleRegistry.release(host, taskId);
+        taskJournal.removeTask(taskId);
+        return modifyTask(taskId, "unregister");
+    }
+
+    @Override
+    public List<TaskProgress> getTasks() {
+        return taskRegistry.getTaskIds().stream()
+                .map(this::getTask)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Integer> getTaskIds() {
+        return taskRegistry.getTaskIds();
+    }
+
+    @Override
+    public InstallRequest getInstallRequest(Integer taskId) {
+        return taskRegistry.getInstallRequest(taskId);
+    }
+
+    @Override
+    public TaskProgress getTask(Integer id) {
+        // Polls of the same task that are still waiting share the response
+        return commandQueue.execute(APICommandQueue.Priority.POLL, "get_task_progress:" + id, () -> {
+            TaskProgress response = restTemplate.postForObject("/get_task_progress", new TaskRequest(id), TaskProgress.class);
+            response.setId(id);
+            response.resolve();
+            if (!response.isSuccess()) {
+                // Keeps the last progress, a failed call doesn't finish the task or retry a finished one
+                return response;
+            }
+            if (!taskRegistry.putProgress(id, response)) {
+                // Removed while it was polled
+                return response;
+            }
+            if (response.isFinished()) {
+                if (taskRegistry.putFinished(id, response)) {
+                    taskJournal.putFinishedTask(id, response);
+                    pkgHandleRegistry.setFinished(host, id, true);
+                }
+            } else if (taskRegistry.removeFinished(id)) {
+                taskJournal.removeFinishedTask(id);
+                pkgHandleRegistry.setFinished(host, id, false);
+            }
+            return response;
+        });
+    }
+
+    @Override
+    public TaskProgress getCachedTask(Integer id) {
+        return taskRegistry.getProgress(id);
+    }
+
+    @Override
+    public int countTasks() {
+        return taskRegistry.size();
+    }
+
+    private ModifyTaskResponse modifyTask(Integer id, String action) {
+        return commandQueue.execute(APICommandQueue.Priority.CONTROL, null,
+                () -> restTemplate.postForObject("/" + action + "_task", new TaskRequest(id), ModifyTaskResponse.class));
+    }
+
+    private InstallResponse install(InstallRequest request) {
+        InstallResponse response = commandQueue.execute(APICommandQueue.Priority.CONTROL, null,
+                () -> restTemplate.postForObject("/install", request, InstallResponse.class));
+        if (response.isSuccess() && response.getTaskId() != null) {
+            taskRegistry.put(response.getTaskId(), request);
+            taskJournal.putInstallRequest(response.getTaskId(), request);
+            applicationEventPublisher.publishEvent(new TaskUpdateEvent(host, response.getTaskId()));
+        }
+        return response;
+    }
+
+}
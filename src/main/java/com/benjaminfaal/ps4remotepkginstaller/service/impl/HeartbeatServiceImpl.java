@@ -0,0 +1,195 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import com.benjaminfaal.ps4remotepkginstaller.event.RemotePKGInstallerStatusEvent;
+import com.benjaminfaal.ps4remotepkginstaller.event.TaskProgressEvent;
+import com.benjaminfaal.ps4remotepkginstaller.service.HeartbeatService;
+import com.benjaminfaal.ps4remotepkginstaller.service.RemotePKGInstallerService;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Checks in the background whether the Remote PKG Installer of each console is running, so callers read the last
+// known state instead of waiting for the console. The selected console is checked first and more often while it starts.
+@CommonsLog
+@Service
+public class HeartbeatServiceImpl implements HeartbeatService {
+
+    @Value("${api.heartbeat.interval:2s}")
+    private Duration interval;
+
+    @Value("${api.heartbeat.ttl:6s}")
+    private Duration ttl;
+
+    @Value("${api.heartbeat.starting-interval:250ms}")
+    private Duration startingInterval;
+
+    @Autowired
+    private RemotePKGInstallerService remotePKGInstallerService;
+
+    @Autowired
+    private ApplicationEventPublisher applicationEventPublisher;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("heartbeat-"));
+
+    // Console host to the last known state of its Remote PKG Installer
+    private final Map<String, Liveness> liveness = new ConcurrentHashMap<>();
+
+    // Completed once the Remote PKG Installer of the selected console is running
+    private final List<CompletableFuture<Boolean>> runningWaiters = new ArrayList<>();
+
+    // Only touched by the heartbeat thread
+    private ScheduledFuture<?> nextBeat;
+
+    @PostConstruct
+    public void init() {
+        executor.execute(this::beat);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // A polled task proves the Remote PKG Installer is running just as well as a heartbeat
+    @EventListener
+    public void onTaskProgressEvent(TaskProgressEvent event) {
+        record(event.getHost(), true);
+    }
+
+    // Without network I/O, unknown and expired states count as not running
+    @Override
+    public boolean isRunning() {
+        String host = remotePKGInstallerService.getHost();
+        return host != null && isRunning(host);
+    }
+
+    @Override
+    public boolean isRunning(String host) {
+        Liveness state = liveness.get(host);
+        return state != null && state.running && System.nanoTime() - state.checkedAt < ttl.toNanos();
+    }
+
+    // Of the selected console
+    @Override
+    public CompletableFuture<Boolean> checkNow() {
+        return CompletableFuture.supplyAsync(() -> {
+            String host = remotePKGInstallerService.getHost();
+            return host != null && check(host);
+        }, executor);
+    }
+
+    // Checks more often until then, completes with false when the Remote PKG Installer didn't start within the timeout
+    @Override
+    public CompletableFuture<Boolean> whenRunning(Duration timeout) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if (isRunning()) {
+            future.complete(true);
+            return future;
+        }
+        synchronized (runningWaiters) {
+            runningWaiters.add(future);
+        }
+        executor.schedule(() -> {
+            synchronized (runningWaiters) {
+                runningWaiters.remove(future);
+            }
+            future.complete(false);
+        }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        executor.execute(() -> {
+            if (nextBeat != null) {
+                nextBeat.cancel(false);
+            }
+            beat();
+        });
+        return future;
+    }
+
+    private void beat() {
+        try {
+            String selectedHost = remotePKGInstallerService.getHost();
+            if (selectedHost != null) {
+                Liveness state = liveness.get(selectedHost);
+                // Skipped while tasks are polled successfully
+                if (state == null || !state.running || System.nanoTime() - state.checkedAt >= interval.toNanos()) {
+                    check(selectedHost);
+                }
+            }
+            // The other consoles at the interval, also when they are not running, their queued installs wait for them
+            for (String host : remotePKGInstallerService.getHosts()) {
+                Liveness state = liveness.get(host);
+                if (!host.equals(selectedHost) && (state == null || System.nanoTime() - state.checkedAt >= interval.toNanos())) {
+                    check(host);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Error checking whether Remote PKG Installer is running", e);
+        } finally {
+            boolean waiting;
+            synchronized (runningWaiters) {
+                waiting = !runningWaiters.isEmpty();
+            }
+            long delay = (waiting ? startingInterval : interval).toMillis();
+            nextBeat = executor.schedule(this::beat, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean check(String host) {
+        boolean running;
+        try {
+            running = remotePKGInstallerService.forHost(host).isRunning();
+        } catch (RuntimeException e) {
+            log.debug("Remote PKG Installer of " + host + " is not running: " + e.getMessage());
+            running = false;
+        }
+        record(host, running);
+        return running;
+    }
+
+    private void record(String host, boolean running) {
+        Liveness previous = liveness.put(host, new Liveness(running, System.nanoTime()));
+        if (previous == null || previous.running != running) {
+            log.info("Remote PKG Installer of " + host + (running ? " is running" : " is not running"));
+            applicationEventPublisher.publishEvent(new RemotePKGInstallerStatusEvent(host, running));
+        }
+        if (running && host.equals(remotePKGInstallerService.getHost())) {
+            List<CompletableFuture<Boolean>> waiters;
+            synchronized (runningWaiters) {
+                waiters = new ArrayList<>(runningWaiters);
+                runningWaiters.clear();
+            }
+            waiters.forEach(waiter -> waiter.complete(true));
+        }
+    }
+
+    private static class Liveness {
+
+        private final boolean running;
+
+        // System.nanoTime()
+        private final long checkedAt;
+
+        private Liveness(boolean running, long checkedAt) {
+            this.running = running;
+            this.checkedAt = checkedAt;
+        }
+
+    }
+
+}
@@ -0,0 +1,348 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import com.benjaminfaal.ps4remotepkginstaller.Settings;
+import com.benjaminfaal.ps4remotepkginstaller.event.QueuedInstallEvent;
+import com.benjaminfaal.ps4remotepkginstaller.event.RemotePKGInstallerStatusEvent;
+import com.benjaminfaal.ps4remotepkginstaller.event.TaskProgressEvent;
+import com.benjaminfaal.ps4remotepkginstaller.model.QueuedInstall;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.InstallResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.RARExtractionCache;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.RARExtractor;
+import com.benjaminfaal.ps4remotepkginstaller.service.HeartbeatService;
+import com.benjaminfaal.ps4remotepkginstaller.service.InstallQueueService;
+import com.benjaminfaal.ps4remotepkginstaller.service.RemotePKGInstallerConsoleService;
+import com.benjaminfaal.ps4remotepkginstaller.service.RemotePKGInstallerService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestClientException;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+// Installs wait here until fewer than the maximum tasks of the console are downloading or installing, so queued PKGs
+// don't all download at the same time and the first ones are playable sooner
+@CommonsLog
+@Service
+public class InstallQueueServiceImpl implements InstallQueueService, InitializingBean {
+
+    private static final Comparator<QueuedInstall> ORDER = Comparator.comparingInt(QueuedInstall::getPriority).reversed()
+            .thenComparingLong(QueuedInstall::getId);
+
+    @Value("${tasks.queue.max-active:2}")
+    private volatile int maxActiveTasks;
+
+    @Value("${tasks.queue.retry-interval:10s}")
+    private Duration retryInterval;
+
+    @Autowired
+    private RemotePKGInstallerService remotePKGInstallerService;
+
+    @Autowired
+    private HeartbeatService heartbeatService;
+
+    @Autowired
+    private RARExtractor rarExtractor;
+
+    @Autowired
+    private RARExtractionCache rarExtractionCache;
+
+    @Autowired
+    private Settings settings;
+
+    @Autowired
+    private ApplicationEventPublisher applicationEventPublisher;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Submits one install at a time, in the background since the console may take a while to answer
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("install-queue-"));
+
+    private final List<QueuedInstall> queue = new ArrayList<>();
+
+    private long nextId = 1;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (settings.containsKey("installQueue")) {
+            try {
+                TypeReference<List<QueuedInstall>> installQueueTypeReference = new TypeReference<List<QueuedInstall>>() {};
+                List<QueuedInstall> previousQueue = objectMapper.readValue(settings.getProperty("installQueue"), installQueueTypeReference);
+                queue.addAll(previousQueue);
+                previousQueue.forEach(this::pin);
+                nextId = previousQueue.stream().mapToLong(QueuedInstall::getId).max().orElse(0) + 1;
+            } catch (JsonProcessingException e) {
+                log.error("Error loading install queue", e);
+            }
+        }
+        // Also picks the queue up again when the console was off or the Remote PKG Installer was not running
+        executor.scheduleWithFixedDelay(this::submitQueued, retryInterval.toMillis(), retryInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    // A task finished or was paused, which may leave room for the next install
+    @EventListener
+    public void onTaskProgressEvent(TaskProgressEvent event) {
+        if (!isActive(event.getTask())) {
+            dispatch();
+        }
+    }
+
+    @EventListener
+    public void onRemotePKGInstallerStatusEvent(RemotePKGInstallerStatusEvent event) {
+        if (event.isRunning()) {
+            dispatch();
+        }
+    }
+
+    @Override
+    public QueuedInstall enqueueFiles(File[] files) {
+        QueuedInstall install = new QueuedInstall();
+        install.setType(QueuedInstall.Type.FILES);
+        install.setFiles(Arrays.stream(files).map(File::getAbsolutePath).toArray(String[]::new));
+        return enqueue(install);
+    }
+
+    @Override
+    public QueuedInstall enqueueRAREntries(File rarFile, String[] entryNames) {
+        QueuedInstall install = new QueuedInstall();
+        install.setType(QueuedInstall.Type.RAR_ENTRIES);
+        install.setRarFile(rarFile.getAbsolutePath());
+        install.setEntryNames(entryNames);
+        return enqueue(install);
+    }
+
+    @Override
+    public QueuedInstall enqueueExtraction(File rarFile) {
+        QueuedInstall install = new QueuedInstall();
+        install.setType(QueuedInstall.Type.RAR_EXTRACTION);
+        install.setRarFile(rarFile.getAbsolutePath());
+        return enqueue(install);
+    }
+
+    @Override
+    public QueuedInstall enqueuePKGUrl(String pkgUrl) {
+        QueuedInstall install = new QueuedInstall();
+        install.setType(QueuedInstall.Type.PKG_URL);
+        install.setUrl(pkgUrl);
+        return enqueue(install);
+    }
+
+    @Override
+    public QueuedInstall enqueueManifestJSONUrl(String manifestJsonUrl) {
+        QueuedInstall install = new QueuedInstall();
+        install.setType(QueuedInstall.Type.MANIFEST_JSON_URL);
+        install.setUrl(manifestJsonUrl);
+        return enqueue(install);
+    }
+
+    private QueuedInstall enqueue(QueuedInstall install) {
+        String host = remotePKGInstallerService.getHost();
+        if (host == null) {
+            throw new IllegalStateException("No PS4 selected");
+        }
+        synchronized (queue) {
+            install.setId(nextId++);
+            install.setHost(host);
+            queue.add(install);
+            pin(install);
+            saveQueue();
+        }
+        dispatch();
+        return install;
+    }
+
+    // Of the selected console, in the order they are submitted
+    @Override
+    public List<QueuedInstall> getQueue() {
+        return getQueue(remotePKGInstallerService.getHost());
+    }
+
+    private List<QueuedInstall> getQueue(String host) {
+        synchronized (queue) {
+            return queue.stream()
+                    .filter(install -> install.getHost().equals(host))
+                    .sorted(ORDER)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public void setPriority(long id, int priority) {
+        synchronized (queue) {
+            queue.stream()
+                    .filter(install -> install.getId() == id)
+                    .forEach(install -> install.setPriority(priority));
+            saveQueue();
+        }
+    }
+
+    @Override
+    public void remove(long id) {
+        synchronized (queue) {
+            List<QueuedInstall> removed = queue.stream().filter(install -> install.getId() == id).collect(Collectors.toList());
+            if (queue.removeAll(removed)) {
+                removed.forEach(this::unpin);
+                saveQueue();
+            }
+        }
+    }
+
+    @Override
+    public int getMaxActiveTasks() {
+        return maxActiveTasks;
+    }
+
+    // 0 submits installs right away
+    @Override
+    public void setMaxActiveTasks(int maxActiveTasks) {
+        this.maxActiveTasks = maxActiveTasks;
+        dispatch();
+    }
+
+    // For example after switching consoles
+    @Override
+    public void dispatch() {
+        executor.execute(this::submitQueued);
+    }
+
+    // Of every console with queued installs, not only the selected one
+    private void submitQueued() {
+        Set<String> hosts;
+        synchronized (queue) {
+            hosts = queue.stream().map(QueuedInstall::getHost).collect(Collectors.toCollection(LinkedHashSet::new));
+        }
+        for (String host : hosts) {
+            // Waits for the heartbeat instead of failing an install every retry while the console is off
+            if (heartbeatService.isRunning(host)) {
+                submitQueued(host);
+            }
+        }
+    }
+
+    private void submitQueued(String host) {
+        try {
+            RemotePKGInstallerConsoleService console = remotePKGInstallerService.forHost(host);
+            int activeTasks = countActiveTasks(console);
+            while (maxActiveTasks <= 0 || activeTasks < maxActiveTasks) {
+                QueuedInstall install = getQueue(host).stream().findFirst().orElse(null);
+                if (install == null) {
+                    return;
+                }
+
+                InstallResponse response;
+                try {
+                    response = submit(console, install);
+                } catch (RestClientException | CancellationException e) {
+                    // The console is off or the Remote PKG Installer is not running, the install stays queued
+                    log.debug("Error submitting queued install " + install.getId() + ", retrying in " + retryInterval + ": " + e.getMessage());
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("Error submitting queued install " + install.getId(), e);
+                    remove(install.getId());
+                    applicationEventPublisher.publishEvent(new QueuedInstallEvent(install, null, e));
+                    continue;
+                }
+                remove(install.getId());
+                if (response.isSuccess()) {
+                    activeTasks++;
+                }
+                applicationEventPublisher.publishEvent(new QueuedInstallEvent(install, response, null));
+            }
+        } catch (RuntimeException e) {
+            log.error("Error submitting queued installs of " + host, e);
+        }
+    }
+
+    private InstallResponse submit(RemotePKGInstallerConsoleService console, QueuedInstall install) {
+        switch (install.getType()) {
+            case FILES:
+                return console.installFiles(Arrays.stream(install.getFiles()).map(File::new).toArray(File[]::new));
+            case RAR_ENTRIES:
+                return console.installRAREntries(new File(install.getRarFile()), install.getEntryNames());
+            case RAR_EXTRACTION:
+                try {
+                    return console.installExtraction(rarExtractor.extract(new File(install.getRarFile())));
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error extracting " + install.getRarFile() + ": " + e.getMessage(), e);
+                }
+            case PKG_URL:
+                return console.installPKGUrl(install.getUrl());
+            case MANIFEST_JSON_URL:
+                return console.installManifestJSONUrl(install.getUrl());
+        }
+        throw new IllegalArgumentException("Unknown queued install type: " + install.getType());
+    }
+
+    private int countActiveTasks(RemotePKGInstallerConsoleService console) {
+        int activeTasks = 0;
+        for (Integer taskId : console.getTaskIds()) {
+            if (isActive(console.getCachedTask(taskId))) {
+                activeTasks++;
+            }
+        }
+        return activeTasks;
+    }
+
+    // Tasks that were not polled yet count as active, paused and stopped tasks leave room for the next install
+    private static boolean isActive(TaskProgress task) {
+        if (task == null) {
+            return true;
+        }
+        if (task.isFinished()) {
+            return false;
+        }
+        return task.getState() == null || task.getState() == TaskProgress.Status.DOWNLOADING || task.getState() == TaskProgress.Status.INSTALLING;
+    }
+
+    // Keeps the extracted PKGs in the extraction cache until the install is submitted and they are served
+    private void pin(QueuedInstall install) {
+        if (install.getType() == QueuedInstall.Type.RAR_EXTRACTION) {
+            rarExtractionCache.pin(install.getRarFile());
+        }
+    }
+
+    private void unpin(QueuedInstall install) {
+        if (install.getType() == QueuedInstall.Type.RAR_EXTRACTION) {
+            rarExtractionCache.unpin(install.getRarFile());
+        }
+    }
+
+    // Saved to disk on every change, the settings are otherwise only saved on shutdown and a crash would lose the queue
+    private void saveQueue() {
+        try {
+            settings.setProperty("installQueue", objectMapper.writeValueAsString(queue));
+            settings.save();
+        } catch (IOException e) {
+            log.error("Error saving install queue: ", e);
+        }
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGHandle;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGHandleRegistry;
+import com.benjaminfaal.ps4remotepkginstaller.service.PKGService;
+import com.benjaminfaal.ps4remotepkginstaller.service.RemotePKGInstallerService;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+
+@CommonsLog
+@Service
+public class PKGServiceImpl implements PKGService {
+
+    @Autowired
+    private RemotePKGInstallerService remotePKGInstallerService;
+
+    @Autowired
+    private PKGHandleRegistry pkgHandleRegistry;
+
+    @Override
+    public PKGHandle getHandle(String id, String downloadId) {
+        if (downloadId != null) {
+            try {
+                Integer taskId = Integer.parseInt(downloadId, 16);
+                // Of any console, they download at the same time
+                if (remotePKGInstallerService.getHosts().stream().noneMatch(host -> remotePKGInstallerService.forHost(host).getInstallRequest(taskId) != null)) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        PKGHandle handle = pkgHandleRegistry.get(id);
+        if (handle == null) {
+            return null;
+        }
+        try {
+            handle.getSegments();
+            return handle;
+        } catch (IOException e) {
+            log.error("Error opening " + handle.getLocation(), e);
+            return null;
+        }
+    }
+
+}
@@ -1,52 +1,58 @@
 package com.benjaminfaal.ps4remotepkginstaller.service.impl;
 
 import com.benjaminfaal.ps4remotepkginstaller.Settings;
-import com.benjaminfaal.ps4remotepkginstaller.event.TaskUpdateEvent;
-import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallManifestJSONUrlRequest;
-import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallPKGUrlRequest;
-import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallPackagesRequest;
 import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallRequest;
-import com.benjaminfaal.ps4remotepkginstaller.model.api.request.TaskRequest;
-import com.benjaminfaal.ps4remotepkginstaller.model.api.request.TitleRequest;
 import com.benjaminfaal.ps4remotepkginstaller.model.api.response.ExistsResponse;
 import com.benjaminfaal.ps4remotepkginstaller.model.api.response.InstallResponse;
 import com.benjaminfaal.ps4remotepkginstaller.model.api.response.ModifyTaskResponse;
 import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGHandleRegistry;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGServer;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.RARExtractor;
+import com.benjaminfaal.ps4remotepkginstaller.service.RemotePKGInstallerConsoleService;
 import com.benjaminfaal.ps4remotepkginstaller.service.RemotePKGInstallerService;
+import com.benjaminfaal.ps4remotepkginstaller.util.HexLiteralInputDecorator;
+import com.benjaminfaal.ps4remotepkginstaller.util.HexNumberModule;
+import com.benjaminfaal.ps4remotepkginstaller.util.Utils;
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.jsontype.BasicPolymorphicTypeValidator;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import lombok.extern.apachecommons.CommonsLog;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.web.ServerProperties;
 import org.springframework.boot.web.client.RestTemplateBuilder;
-import org.springframework.boot.web.client.RootUriTemplateHandler;
 import org.springframework.context.ApplicationEventPublisher;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.client.AbstractClientHttpResponse;
-import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
 import org.springframework.stereotype.Service;
-import org.springframework.util.StreamUtils;
 import org.springframework.web.client.DefaultResponseErrorHandler;
-import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
-import java.io.ByteArrayInputStream;
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.Charset;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 @CommonsLog
 @Service
@@ -54,233 +60,372 @@ public class RemotePKGInstallerServiceImpl implements RemotePKGInstallerService,
 
     public static final int PORT = 12800;
 
+    private static final String JOURNAL_PREFIX = "tasks-";
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+
     @Autowired(required = false)
     private ServerProperties serverProperties;
 
+    @Autowired(required = false)
+    private PKGServer pkgServer;
+
     @Autowired
     private Settings settings;
 
     @Autowired
     private ApplicationEventPublisher applicationEventPublisher;
 
-    private final ObjectMapper tasksObjectMapper = new ObjectMapper()
-            .activateDefaultTyping(BasicPolymorphicTypeValidator.builder().allowIfBaseType(InstallRequest.class).build());
+    @Autowired
+    private PKGHandleRegistry pkgHandleRegistry;
 
-    private final Map<Integer, InstallRequest> installRequests = new HashMap<>();
+    @Autowired
+    private MeterRegistry meterRegistry;
 
-    private Map<Integer, TaskProgress> tasks = new HashMap<>();
+    private final ObjectMapper tasksObjectMapper = createTasksObjectMapper();
 
-    // API sometimes corrupts when doing multiple requests async https://github.com/flatz/ps4_remote_pkg_installer/issues/3
-    private final RestTemplate restTemplate = new RestTemplateBuilder()
-            .setConnectTimeout(Duration.ofMillis(1000))
-            .setReadTimeout(Duration.ofMillis(1000))
-            .errorHandler(new DefaultResponseErrorHandler() {
-                @Override
-                protected boolean hasError(HttpStatus statusCode) {
-                    // API returns 500 but also a response which we need to parse
-                    if (statusCode == HttpStatus.INTERNAL_SERVER_ERROR) {
-                        return false;
-                    }
-                    return super.hasError(statusCode);
-                }
-            })
-            .interceptors((request, body, execution) -> {
-                ClientHttpResponse response = execution.execute(request, body);
-                // API returns hexadecimal values (like error codes) without qoutes which is invalid JSON
-                final String json = StreamUtils.copyToString(response.getBody(), Charset.defaultCharset())
-                        .replaceAll("0[xX][0-9a-fA-F]+", "\"$0\"");
-                return new AbstractClientHttpResponse() {
-                    @Override
-                    public int getRawStatusCode() throws IOException {
-                        return response.getRawStatusCode();
-                    }
+    private final ObjectMapper finishedTasksObjectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
-                    @Override
-                    public String getStatusText() throws IOException {
-                        return response.getStatusText();
-                    }
+    @Value("${tasks.journal.sync-interval:200ms}")
+    private Duration journalSyncInterval;
 
-                    @Override
-                    public void close() {
-                        response.close();
-                    }
+    @Value("${api.connect-timeout:1s}")
+    private Duration connectTimeout;
 
-                    @Override
-                    public InputStream getBody() throws IOException {
-                        return new ByteArrayInputStream(json.getBytes());
-                    }
+    @Value("${api.read-timeout:1s}")
+    private Duration readTimeout;
+
+    @Value("${api.keep-alive:30s}")
+    private Duration keepAlive;
+
+    @Value("${api.timeouts.multiplier:3}")
+    private double timeoutMultiplier;
+
+    @Value("${api.timeouts.min:250ms}")
+    private Duration minTimeout;
+
+    @Value("${api.timeouts.max:5s}")
+    private Duration maxTimeout;
+
+    @Value("${api.timeouts.samples:100}")
+    private int timeoutSamples;
+
+    @Value("${api.circuit-breaker.failure-threshold:3}")
+    private int failureThreshold;
+
+    @Value("${api.circuit-breaker.open-duration:5s}")
+    private Duration openDuration;
+
+    @Value("${api.retries:1}")
+    private int retries;
+
+    // Shared by the consoles, the connections are pooled per console and the timeouts and circuit breaker are kept per console
+    private APIRequestFactory requestFactory;
+
+    private RestTemplateBuilder restTemplateBuilder;
+
+    // By host, created when a console is selected or called for the first time
+    private final Map<String, ConsoleClient> clients = new ConcurrentHashMap<>();
+
+    private final Object openLock = new Object();
 
+    private volatile ConsoleClient selected;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        APITimeouts timeouts = new APITimeouts(connectTimeout, readTimeout, timeoutMultiplier, minTimeout, maxTimeout, timeoutSamples, meterRegistry, Tags.empty());
+        APICircuitBreaker circuitBreaker = new APICircuitBreaker(failureThreshold, openDuration, meterRegistry, Tags.empty());
+        requestFactory = new APIRequestFactory(connectTimeout, readTimeout, keepAlive, timeouts, meterRegistry, Tags.empty());
+        restTemplateBuilder = new RestTemplateBuilder()
+                .requestFactory(() -> requestFactory)
+                .additionalInterceptors(new APIRequestMetrics(meterRegistry, Tags.empty()),
+                        new APIResilience(timeouts, circuitBreaker, retries, meterRegistry, Tags.empty()))
+                .errorHandler(new DefaultResponseErrorHandler() {
                     @Override
-                    public HttpHeaders getHeaders() {
-                        return response.getHeaders();
+                    protected boolean hasError(HttpStatus statusCode) {
+                        // API returns 500 but also a response which we need to parse
+                        if (statusCode == HttpStatus.INTERNAL_SERVER_ERROR) {
+                            return false;
+                        }
+                        return super.hasError(statusCode);
                     }
-                };
-            })
-            .build();
+                })
+                .messageConverters(new MappingJackson2HttpMessageConverter(createAPIObjectMapper()));
+
+        // Consoles with tasks of a previous run, so their PKGs are served and their tasks polled before they are selected
+        Path workingDirectory = Utils.getWorkingDirectory();
+        if (Files.isDirectory(workingDirectory)) {
+            try (DirectoryStream<Path> journals = Files.newDirectoryStream(workingDirectory, JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+                for (Path journal : journals) {
+                    String fileName = journal.getFileName().toString();
+                    client(URLDecoder.decode(fileName.substring(JOURNAL_PREFIX.length(), fileName.length() - JOURNAL_SUFFIX.length()), "UTF-8"));
+                }
+            }
+        }
+    }
 
+    // Opening a console replays its journal and registers its PKGs, which is not done inside computeIfAbsent, that
+    // would block looking up other consoles meanwhile. A console that fails to open is tried again on the next call.
+    private ConsoleClient client(String host) {
+        ConsoleClient client = clients.get(host);
+        if (client != null) {
+            return client;
+        }
+        synchronized (openLock) {
+            client = clients.get(host);
+            if (client == null) {
+                client = createClient(host);
+                clients.put(host, client);
+            }
+            return client;
+        }
+    }
+
+    private ConsoleClient createClient(String host) {
+        String baseUri = UriComponentsBuilder.newInstance()
+                .scheme("http")
+                .host(host)
+                .port(PORT)
+                .path("/api")
+                .toUriString();
+        APICommandQueue commandQueue = new APICommandQueue("ps4-api-" + host, meterRegistry, Tags.of("host", host));
+        ConsoleClient client = new ConsoleClient(host, restTemplateBuilder.rootUri(baseUri).build(), commandQueue, getJournal(host),
+                pkgHandleRegistry, applicationEventPublisher, this::buildUri);
+        try {
+            client.open(journalSyncInterval);
+        } catch (IOException e) {
+            commandQueue.close();
+            throw new UncheckedIOException("Error loading tasks of " + host + ": " + e.getMessage(), e);
+        }
+        return client;
+    }
+
+    private Path getJournal(String host) {
+        try {
+            // Encoded, hosts like IPv6 addresses aren't valid file names everywhere
+            return Utils.getWorkingDirectory().resolve(JOURNAL_PREFIX + URLEncoder.encode(host, "UTF-8") + JOURNAL_SUFFIX);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Tasks used to be journaled to one tasks.journal for all consoles, and before that saved in the settings as JSON.
+    // Which console they belong to isn't known, so they are kept until the user picks it.
     @Override
-    public void afterPropertiesSet() throws Exception {
+    public boolean hasPreviousTasks() {
+        return Files.exists(getPreviousJournal()) || settings.containsKey("installRequests") || settings.containsKey("finishedTasks");
+    }
+
+    @Override
+    public synchronized void movePreviousTasks(String host) {
+        ConsoleClient client = client(host);
+        Path previousJournal = getPreviousJournal();
+        TaskRegistry previousTasks = new TaskRegistry();
+        try {
+            if (Files.exists(previousJournal)) {
+                TaskJournal journal = new TaskJournal(previousJournal, previousTasks);
+                journal.open(journalSyncInterval);
+                journal.close();
+            } else {
+                loadSettingsTasks(previousTasks);
+            }
+            int imported = client.importTasks(previousTasks);
+            log.info("Moved " + imported + " previous tasks to " + host);
+            Files.deleteIfExists(previousJournal);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error moving the previous tasks to " + host + ": " + e.getMessage(), e);
+        }
+        // Moved to the journal
+        settings.remove("installRequests");
+        settings.remove("finishedTasks");
+    }
+
+    private Path getPreviousJournal() {
+        return Utils.getWorkingDirectory().resolve("tasks.journal");
+    }
+
+    private void loadSettingsTasks(TaskRegistry taskRegistry) {
         if (settings.containsKey("installRequests")) {
             try {
                 TypeReference<HashMap<Integer, InstallRequest>> tasksTypeReference = new TypeReference<HashMap<Integer, InstallRequest>>() {};
                 HashMap<Integer, InstallRequest> previousInstallRequests = tasksObjectMapper.readValue(settings.getProperty("installRequests"), tasksTypeReference);
-                installRequests.putAll(previousInstallRequests);
+                taskRegistry.putAll(previousInstallRequests);
             } catch (JsonProcessingException e) {
                 log.error("Error loading previous install requests", e);
             }
         }
+
+        if (settings.containsKey("finishedTasks")) {
+            try {
+                TypeReference<HashMap<Integer, TaskProgress>> finishedTasksTypeReference = new TypeReference<HashMap<Integer, TaskProgress>>() {};
+                HashMap<Integer, TaskProgress> previousFinishedTasks = finishedTasksObjectMapper.readValue(settings.getProperty("finishedTasks"), finishedTasksTypeReference);
+                previousFinishedTasks.values().forEach(TaskProgress::resolve);
+                taskRegistry.putAllFinished(previousFinishedTasks);
+            } catch (JsonProcessingException e) {
+                log.error("Error loading finished tasks", e);
+            }
+        }
     }
 
+    // Package-private for the benchmarks
+    static ObjectMapper createAPIObjectMapper() {
+        return Jackson2ObjectMapperBuilder.json()
+                // API returns hexadecimal values (like error codes) without qoutes which is invalid JSON
+                .factory(JsonFactory.builder().inputDecorator(new HexLiteralInputDecorator()).build())
+                .modulesToInstall(new HexNumberModule())
+                .build();
+    }
+
+    static ObjectMapper createTasksObjectMapper() {
+        return new ObjectMapper()
+                .activateDefaultTyping(BasicPolymorphicTypeValidator.builder().allowIfBaseType(InstallRequest.class).build());
+    }
+
+    @PreDestroy
+    public void shutdown() throws Exception {
+        for (ConsoleClient client : clients.values()) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                log.error("Error closing the tasks of " + client.getHost(), e);
+            }
+        }
+        requestFactory.destroy();
+    }
+
+    // Calls that are in progress keep going to the console they started on. Opens the console when it is new, the UI
+    // opens it with forHost off the EDT first.
     @Override
     public void setHost(String host) {
-        String baseUri = UriComponentsBuilder.newInstance()
-                .scheme("http")
-                .host(host)
-                .port(PORT)
-                .path("/api")
-                .toUriString();
-        restTemplate.setUriTemplateHandler(new RootUriTemplateHandler(baseUri));
+        selected = client(host);
+    }
+
+    @Override
+    public String getHost() {
+        ConsoleClient selected = this.selected;
+        return selected != null ? selected.getHost() : null;
+    }
+
+    @Override
+    public Set<String> getHosts() {
+        return Collections.unmodifiableSet(clients.keySet());
+    }
+
+    @Override
+    public RemotePKGInstallerConsoleService forHost(String host) {
+        return client(host);
+    }
+
+    private ConsoleClient selected() {
+        ConsoleClient selected = this.selected;
+        if (selected == null) {
+            throw new IllegalStateException("No PS4 selected");
+        }
+        return selected;
     }
 
     @Override
     public boolean isRunning() {
-        ExistsResponse response = exists("");
-        return !response.isExists() && response.isSuccess();
+        return selected().isRunning();
     }
 
     @Override
     public ExistsResponse exists(String titleId) {
-        return restTemplate.postForObject("/is_exists", new TitleRequest(titleId), ExistsResponse.class);
+        return selected().exists(titleId);
     }
 
     @Override
     public InstallResponse installFiles(File[] files) {
-        List<String> packages = new ArrayList<>();
-        for (File file : files) {
-            String fileBase64 = Base64.getUrlEncoder().encodeToString(file.getAbsolutePath().getBytes());
-
-            Map<String, Object> variables = new HashMap<>();
-            variables.put("file", fileBase64);
-            String pkgUrl = buildUri()
-                    .path("pkg/{file}")
-                    .uriVariables(variables)
-                    .toUriString();
-            packages.add(pkgUrl);
-        }
+        return selected().installFiles(files);
+    }
 
-        InstallPackagesRequest request = new InstallPackagesRequest();
-        request.setPackages(packages.toArray(new String[0]));
-        request.setLocalFiles(Arrays.stream(files).map(File::getAbsolutePath).toArray(String[]::new));
-        return install(request);
+    @Override
+    public InstallResponse installRAREntries(File rarFile, String[] entryNames) {
+        return selected().installRAREntries(rarFile, entryNames);
+    }
+
+    @Override
+    public InstallResponse installExtraction(RARExtractor.Extraction extraction) {
+        return selected().installExtraction(extraction);
     }
 
     @Override
     public InstallResponse installManifestJSONUrl(String manifestJsonUrl) {
-        InstallManifestJSONUrlRequest request = new InstallManifestJSONUrlRequest();
-        request.setUrl(manifestJsonUrl);
-        return install(request);
+        return selected().installManifestJSONUrl(manifestJsonUrl);
     }
 
     @Override
     public InstallResponse installPKGUrl(String pkgUrl) {
-        InstallPKGUrlRequest request = new InstallPKGUrlRequest();
-        request.setPackages(new String[]{pkgUrl});
-        return install(request);
+        return selected().installPKGUrl(pkgUrl);
     }
 
     @Override
     public ModifyTaskResponse stopTask(Integer id) {
-        ModifyTaskResponse stopTaskResponse = modifyTask(id, "stop");
-        applicationEventPublisher.publishEvent(new TaskUpdateEvent(id));
-        return stopTaskResponse;
+        return selected().stopTask(id);
     }
 
     @Override
     public ModifyTaskResponse pauseTask(Integer id) {
-        ModifyTaskResponse pauseTaskResponse = modifyTask(id, "pause");
-        applicationEventPublisher.publishEvent(new TaskUpdateEvent(id));
-        return pauseTaskResponse;
+        return selected().pauseTask(id);
     }
 
     @Override
     public ModifyTaskResponse resumeTask(Integer id) {
-        ModifyTaskResponse resumeTaskResponse = modifyTask(id, "resume");
-        applicationEventPublisher.publishEvent(new TaskUpdateEvent(id));
-        return resumeTaskResponse;
+        return selected().resumeTask(id);
     }
 
     @Override
     public ModifyTaskResponse removeTask(Integer taskId) {
-        installRequests.remove(taskId);
-        saveTasks();
-        return modifyTask(taskId, "unregister");
+        return selected().removeTask(taskId);
     }
 
     @Override
     public List<TaskProgress> getTasks() {
-        return installRequests.keySet().stream()
-                .sorted()
-                .map(this::getTask)
-                .collect(Collectors.toList());
+        return selected().getTasks();
     }
 
+    // Reading tasks without a selected console finds none, like while discovering consoles
     @Override
     public List<Integer> getTaskIds() {
-        return installRequests.keySet().stream()
-                .sorted()
-                .collect(Collectors.toList());
+        ConsoleClient selected = this.selected;
+        return selected != null ? selected.getTaskIds() : Collections.emptyList();
     }
 
     @Override
     public InstallRequest getInstallRequest(Integer taskId) {
-        return installRequests.get(taskId);
+        ConsoleClient selected = this.selected;
+        return selected != null ? selected.getInstallRequest(taskId) : null;
     }
 
     @Override
     public TaskProgress getTask(Integer id) {
-        TaskProgress response = restTemplate.postForObject("/get_task_progress", new TaskRequest(id), TaskProgress.class);
-        response.setId(id);
-        tasks.put(id, response);
-        return response;
+        return selected().getTask(id);
     }
 
     @Override
     public TaskProgress getCachedTask(Integer id) {
-        return tasks.get(id);
+        ConsoleClient selected = this.selected;
+        return selected != null ? selected.getCachedTask(id) : null;
     }
 
     @Override
     public int countTasks() {
-        return installRequests.size();
-    }
-
-    private ModifyTaskResponse modifyTask(Integer id, String action) {
-        return restTemplate.postForObject("/" + action + "_task", new TaskRequest(id), ModifyTaskResponse.class);
-    }
-
-    private InstallResponse install(InstallRequest request) {
-        InstallResponse response = restTemplate.postForObject("/install", request, InstallResponse.class);
-        if (response.isSuccess() && response.getTaskId() != null) {
-            installRequests.put(response.getTaskId(), request);
-            saveTasks();
-            applicationEventPublisher.publishEvent(new TaskUpdateEvent(response.getTaskId()));
-        }
-        return response;
-    }
-
-    private void saveTasks() {
-        try {
-            settings.setProperty("installRequests", tasksObjectMapper.writeValueAsString(installRequests));
-        } catch (JsonProcessingException e) {
-            log.error("Error saving install requests: ", e);
-        }
+        ConsoleClient selected = this.selected;
+        return selected != null ? selected.countTasks() : 0;
     }
 
     private UriComponentsBuilder buildUri() {
+        if (pkgServer != null) {
+            return UriComponentsBuilder.newInstance()
+                    .scheme("http")
+                    .host(pkgServer.getAddress())
+                    .port(pkgServer.getPort());
+        }
         return UriComponentsBuilder.newInstance()
                 .scheme("http")
                 .host(serverProperties.getAddress().getHostAddress())
                 .port(serverProperties.getPort());
     }
 
-}
\ No newline at end of file
+}
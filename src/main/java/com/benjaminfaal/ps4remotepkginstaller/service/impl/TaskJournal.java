@@ -0,0 +1,474 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallManifestJSONUrlRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallPKGUrlRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallPackagesRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.APIResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Append-only log of the install requests and finished progress of tasks, so a change writes a single record instead
+// of the whole history. Records are written and synced to disk in batches, and the log is compacted to the live
+// records once it mostly holds replaced and removed ones.
+//
+// File: magic, version, then records of length, CRC32 and payload. A crash can only leave a torn last record, which
+// fails its CRC and is cut off when loading. A bad record with records after it is corruption, cutting it off would
+// drop valid records, so the journal is moved aside instead.
+@CommonsLog
+public class TaskJournal implements Closeable {
+
+    private static final int MAGIC = 0x50344A4E;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 8;
+
+    private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+
+    // Compacted once there are this many more records than live ones
+    private static final int COMPACT_MIN_GARBAGE = 1000;
+
+    private static final byte PUT_INSTALL_REQUEST = 1;
+
+    private static final byte REMOVE_TASK = 2;
+
+    private static final byte PUT_FINISHED_TASK = 3;
+
+    private static final byte REMOVE_FINISHED_TASK = 4;
+
+    private static final byte INSTALL_PACKAGES = 1;
+
+    private static final byte INSTALL_PKG_URL = 2;
+
+    private static final byte INSTALL_MANIFEST_JSON_URL = 3;
+
+    private final Path file;
+
+    // The live state, records are appended after changing it
+    private final TaskRegistry taskRegistry;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("task-journal-"));
+
+    // Records waiting for the next sync, guarded by this
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    private int pendingRecords;
+
+    // Only touched by the journal thread and close
+    private FileChannel channel;
+
+    private long records;
+
+    public TaskJournal(Path file, TaskRegistry taskRegistry) {
+        this.file = file;
+        this.taskRegistry = taskRegistry;
+    }
+
+    public boolean exists() {
+        return Files.exists(file);
+    }
+
+    // Streams the records into the registry and starts syncing at the interval
+    public void open(Duration syncInterval) throws IOException {
+        Files.createDirectories(file.getParent());
+        long validLength = 0;
+        if (exists()) {
+            try {
+                validLength = replay();
+            } catch (IOException e) {
+                // Keeps the tasks read so far, the rest of the file is kept aside
+                Path corrupt = file.resolveSibling(file.getFileName() + ".corrupt");
+                log.error("Error loading task journal " + file + ", moved it to " + corrupt, e);
+                Files.move(file, corrupt, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (validLength < HEADER_LENGTH) {
+            compact();
+        } else if (validLength < channel.size()) {
+            log.warn("Cutting off a torn record at the end of " + file);
+            channel.truncate(validLength);
+        }
+        channel.position(channel.size());
+        executor.scheduleWithFixedDelay(this::sync, syncInterval.toMillis(), syncInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public void putInstallRequest(Integer taskId, InstallRequest installRequest) {
+        append(PUT_INSTALL_REQUEST, taskId, out -> writeInstallRequest(out, installRequest));
+    }
+
+    public void removeTask(Integer taskId) {
+        append(REMOVE_TASK, taskId, out -> {});
+    }
+
+    public void putFinishedTask(Integer taskId, TaskProgress task) {
+        append(PUT_FINISHED_TASK, taskId, out -> writeTaskProgress(out, task));
+    }
+
+    public void removeFinishedTask(Integer taskId) {
+        append(REMOVE_FINISHED_TASK, taskId, out -> {});
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void append(byte operation, Integer taskId, RecordWriter writer) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+        try {
+            writeRecord(new DataOutputStream(record), operation, taskId, writer);
+        } catch (IOException e) {
+            // Only writes to memory
+            throw new IllegalStateException(e);
+        }
+        synchronized (this) {
+            byte[] bytes = record.toByteArray();
+            pending.write(bytes, 0, bytes.length);
+            pendingRecords++;
+        }
+    }
+
+    // Waits until the records appended so far are on disk
+    public void flush() throws IOException {
+        try {
+            executor.submit(() -> {
+                write();
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing task journal " + file);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("Error writing task journal " + file, e.getCause());
+        }
+    }
+
+    private void sync() {
+        try {
+            write();
+        } catch (IOException e) {
+            log.error("Error writing task journal " + file, e);
+        }
+    }
+
+    private void write() throws IOException {
+        ByteArrayOutputStream batch;
+        int batchRecords;
+        synchronized (this) {
+            if (pending.size() == 0) {
+                return;
+            }
+            batch = pending;
+            batchRecords = pendingRecords;
+            pending = new ByteArrayOutputStream();
+            pendingRecords = 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        records += batchRecords;
+        long liveRecords = taskRegistry.size() + taskRegistry.getFinished().size();
+        if (records - liveRecords > COMPACT_MIN_GARBAGE && records > 2 * liveRecords) {
+            compact();
+        }
+    }
+
+    // Writes the live records to a new file, which replaces the journal at once
+    private void compact() throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        long liveRecords = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(compacted)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            TaskRegistry.Snapshot snapshot = taskRegistry.snapshot();
+            for (Integer taskId : snapshot.getTaskIds()) {
+                InstallRequest installRequest = snapshot.getInstallRequest(taskId);
+                writeRecord(out, PUT_INSTALL_REQUEST, taskId, record -> writeInstallRequest(record, installRequest));
+                liveRecords++;
+            }
+            for (Map.Entry<Integer, TaskProgress> entry : taskRegistry.getFinished().entrySet()) {
+                writeRecord(out, PUT_FINISHED_TASK, entry.getKey(), record -> writeTaskProgress(record, entry.getValue()));
+                liveRecords++;
+            }
+        }
+        try (FileChannel compactedChannel = FileChannel.open(compacted, StandardOpenOption.WRITE)) {
+            compactedChannel.force(true);
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        log.debug("Compacted task journal from " + records + " to " + liveRecords + " records");
+        records = liveRecords;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte operation, Integer taskId, RecordWriter writer) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        payloadOut.writeByte(operation);
+        payloadOut.writeInt(taskId);
+        writer.write(payloadOut);
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes);
+    }
+
+    // Returns the length of the valid records, the registry gets the tasks read until an error
+    private long replay() throws IOException {
+        Map<Integer, InstallRequest> installRequests = new HashMap<>();
+        Map<Integer, TaskProgress> finishedTasks = new HashMap<>();
+        try {
+            return replay(installRequests, finishedTasks);
+        } finally {
+            taskRegistry.putAll(installRequests);
+            taskRegistry.putAllFinished(finishedTasks);
+        }
+    }
+
+    private long replay(Map<Integer, InstallRequest> installRequests, Map<Integer, TaskProgress> finishedTasks) throws IOException {
+        try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+            DataInputStream in = new DataInputStream(inputStream);
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not a task journal or an unknown version: " + file);
+                }
+            } catch (EOFException e) {
+                return 0;
+            }
+            long size = Files.size(file);
+            long validLength = HEADER_LENGTH;
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] bytes;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    checksum = in.readInt();
+                    long end = validLength + 8 + length;
+                    if (length < 5 || length > MAX_RECORD_LENGTH) {
+                        if (length >= 5 && end > size) {
+                            break;
+                        }
+                        throw new IOException("Invalid record length " + length + " at " + validLength + " of " + file);
+                    }
+                    if (end > size) {
+                        // Torn, the record runs past the end of the file
+                        break;
+                    }
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(bytes, 0, bytes.length);
+                if ((int) crc.getValue() != checksum) {
+                    if (validLength + 8 + bytes.length < size) {
+                        throw new IOException("Corrupt record at " + validLength + " of " + file + ", followed by more records");
+                    }
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(bytes)), installRequests, finishedTasks);
+                validLength += 8 + bytes.length;
+                records++;
+            }
+            return validLength;
+        }
+    }
+
+    private static void apply(DataInputStream in, Map<Integer, InstallRequest> installRequests, Map<Integer, TaskProgress> finishedTasks) throws IOException {
+        byte operation = in.readByte();
+        Integer taskId = in.readInt();
+        switch (operation) {
+            case PUT_INSTALL_REQUEST:
+                installRequests.put(taskId, readInstallRequest(in));
+                break;
+            case REMOVE_TASK:
+                installRequests.remove(taskId);
+                finishedTasks.remove(taskId);
+                break;
+            case PUT_FINISHED_TASK:
+                TaskProgress task = readTaskProgress(in);
+                task.setId(taskId);
+                finishedTasks.put(taskId, task.resolve());
+                break;
+            case REMOVE_FINISHED_TASK:
+                finishedTasks.remove(taskId);
+                break;
+            default:
+                throw new IOException("Unknown task journal record " + operation);
+        }
+    }
+
+    private static void writeInstallRequest(DataOutputStream out, InstallRequest installRequest) throws IOException {
+        if (installRequest instanceof InstallPackagesRequest) {
+            out.writeByte(INSTALL_PACKAGES);
+            writeStrings(out, ((InstallPackagesRequest) installRequest).getPackages());
+            writeStrings(out, ((InstallPackagesRequest) installRequest).getLocalFiles());
+        } else if (installRequest instanceof InstallPKGUrlRequest) {
+            out.writeByte(INSTALL_PKG_URL);
+            writeStrings(out, ((InstallPKGUrlRequest) installRequest).getPackages());
+        } else if (installRequest instanceof InstallManifestJSONUrlRequest) {
+            out.writeByte(INSTALL_MANIFEST_JSON_URL);
+            writeString(out, ((InstallManifestJSONUrlRequest) installRequest).getUrl());
+        } else {
+            throw new IllegalArgumentException("Unknown install request: " + installRequest.getClass());
+        }
+    }
+
+    private static InstallRequest readInstallRequest(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case INSTALL_PACKAGES:
+                InstallPackagesRequest installPackagesRequest = new InstallPackagesRequest();
+                installPackagesRequest.setPackages(readStrings(in));
+                installPackagesRequest.setLocalFiles(readStrings(in));
+                return installPackagesRequest;
+            case INSTALL_PKG_URL:
+                InstallPKGUrlRequest installPKGUrlRequest = new InstallPKGUrlRequest();
+                installPKGUrlRequest.setPackages(readStrings(in));
+                return installPKGUrlRequest;
+            case INSTALL_MANIFEST_JSON_URL:
+                InstallManifestJSONUrlRequest installManifestJSONUrlRequest = new InstallManifestJSONUrlRequest();
+                installManifestJSONUrlRequest.setUrl(readString(in));
+                return installManifestJSONUrlRequest;
+            default:
+                throw new IOException("Unknown install request type " + type);
+        }
+    }
+
+    private static void writeTaskProgress(DataOutputStream out, TaskProgress task) throws IOException {
+        out.writeByte(task.getStatus() != null ? task.getStatus().ordinal() + 1 : 0);
+        out.writeInt(task.getError() != null ? task.getError() : Integer.MIN_VALUE);
+        writeString(out, task.getErrorCode());
+        out.writeInt(task.getBits());
+        out.writeLong(task.getLength());
+        out.writeLong(task.getTransferred());
+        out.writeLong(task.getLengthTotal());
+        out.writeLong(task.getTransferredTotal());
+        out.writeInt(task.getNumIndex());
+        out.writeInt(task.getNumTotal());
+        out.writeLong(task.getRestSec());
+        out.writeLong(task.getRestSecTotal());
+        out.writeInt(task.getPreparingPercent());
+        out.writeInt(task.getLocalCopyPercent());
+    }
+
+    private static TaskProgress readTaskProgress(DataInputStream in) throws IOException {
+        TaskProgress task = new TaskProgress();
+        int status = in.readByte();
+        task.setStatus(status > 0 ? APIResponse.Status.values()[status - 1] : null);
+        int error = in.readInt();
+        task.setError(error != Integer.MIN_VALUE ? error : null);
+        task.setErrorCode(readString(in));
+        task.setBits(in.readInt());
+        task.setLength(in.readLong());
+        task.setTransferred(in.readLong());
+        task.setLengthTotal(in.readLong());
+        task.setTransferredTotal(in.readLong());
+        task.setNumIndex(in.readInt());
+        task.setNumTotal(in.readInt());
+        task.setRestSec(in.readLong());
+        task.setRestSecTotal(in.readLong());
+        task.setPreparingPercent(in.readInt());
+        task.setLocalCopyPercent(in.readInt());
+        return task;
+    }
+
+    // Null as -1, writeUTF would limit paths and URLs to 64KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        String[] values = new String[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = readString(in);
+        }
+        return values;
+    }
+
+    private interface RecordWriter {
+
+        void write(DataOutputStream out) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,230 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import com.benjaminfaal.ps4remotepkginstaller.event.TaskProgressEvent;
+import com.benjaminfaal.ps4remotepkginstaller.event.TaskUpdateEvent;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+import com.benjaminfaal.ps4remotepkginstaller.service.RemotePKGInstallerConsoleService;
+import com.benjaminfaal.ps4remotepkginstaller.service.RemotePKGInstallerService;
+import com.benjaminfaal.ps4remotepkginstaller.service.TaskPollingService;
+import lombok.extern.apachecommons.CommonsLog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Polls every task at an interval that depends on its state, finished tasks are not polled anymore. Every console has
+// its own poller, so a console that is off doesn't hold up polling the others.
+@CommonsLog
+@Service
+public class TaskPollingServiceImpl implements TaskPollingService {
+
+    private static final long TICK_MILLIS = 250;
+
+    @Value("${tasks.poll.active:2s}")
+    private Duration activeInterval;
+
+    @Value("${tasks.poll.paused:30s}")
+    private Duration pausedInterval;
+
+    @Value("${tasks.poll.unknown:5s}")
+    private Duration unknownInterval;
+
+    @Value("${tasks.poll.max-backoff:1m}")
+    private Duration maxBackoff;
+
+    @Autowired
+    private RemotePKGInstallerService remotePKGInstallerService;
+
+    @Autowired
+    private ApplicationEventPublisher applicationEventPublisher;
+
+    // By host
+    private final Map<String, Poller> pollers = new ConcurrentHashMap<>();
+
+    private volatile boolean shutdown;
+
+    @PostConstruct
+    public void init() {
+        remotePKGInstallerService.getHosts().forEach(this::poller);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        shutdown = true;
+        pollers.values().forEach(poller -> poller.executor.shutdownNow());
+    }
+
+    // Tasks are modified or installed, so their state is about to change
+    @EventListener
+    public void onTaskUpdateEvent(TaskUpdateEvent event) {
+        poller(event.getHost()).pollNow(event.getTaskId());
+    }
+
+    // Of the selected console
+    @Override
+    public void pollNow(Integer taskId) {
+        String host = remotePKGInstallerService.getHost();
+        if (host != null) {
+            poller(host).pollNow(taskId);
+        }
+    }
+
+    // For example after switching consoles, also starts polling consoles that are new
+    @Override
+    public void pollAll() {
+        remotePKGInstallerService.getHosts().forEach(host -> poller(host).pollAll());
+    }
+
+    private Poller poller(String host) {
+        Poller poller = pollers.get(host);
+        if (poller != null) {
+            return poller;
+        }
+        // Outside of computeIfAbsent, the console may still have to be opened
+        RemotePKGInstallerConsoleService console = remotePKGInstallerService.forHost(host);
+        return pollers.computeIfAbsent(host, key -> {
+            Poller newPoller = new Poller(console);
+            if (shutdown) {
+                newPoller.executor.shutdownNow();
+            } else {
+                newPoller.executor.scheduleWithFixedDelay(newPoller::tick, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return newPoller;
+        });
+    }
+
+    private long getBackoff(int failures) {
+        return Math.min(unknownInterval.toNanos() << Math.min(failures - 1, 16), maxBackoff.toNanos());
+    }
+
+    private Duration getInterval(TaskProgress task) {
+        if (task.getState() == null) {
+            return unknownInterval;
+        }
+        switch (task.getState()) {
+            case DOWNLOADING:
+            case INSTALLING:
+                return activeInterval;
+            default:
+                return pausedInterval;
+        }
+    }
+
+    private class Poller {
+
+        private final RemotePKGInstallerConsoleService console;
+
+        private final ScheduledExecutorService executor;
+
+        // Task ID to System.nanoTime() of its next poll, tasks without one are polled on the next tick
+        private final Map<Integer, Long> nextPolls = new ConcurrentHashMap<>();
+
+        // Only touched by the poller thread
+        private int failures;
+
+        // Task ID to the number of failed calls in a row for that task
+        private final Map<Integer, Integer> taskFailures = new HashMap<>();
+
+        private long backoffUntil;
+
+        private Poller(RemotePKGInstallerConsoleService console) {
+            this.console = console;
+            this.executor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("task-poller-" + console.getHost() + "-"));
+        }
+
+        // Also polls a finished task, and skips the backoff since the user is waiting for it
+        private void pollNow(Integer taskId) {
+            execute(() -> {
+                backoffUntil = 0;
+                poll(taskId);
+            });
+        }
+
+        private void pollAll() {
+            execute(() -> {
+                backoffUntil = 0;
+                failures = 0;
+                nextPolls.clear();
+                tick();
+            });
+        }
+
+        // Late events and refreshes after the shutdown are ignored instead of failing their caller
+        private void execute(Runnable command) {
+            try {
+                executor.execute(command);
+            } catch (RejectedExecutionException e) {
+                log.debug("Not polling tasks of " + console.getHost() + ", polling was shut down");
+            }
+        }
+
+        private void tick() {
+            try {
+                long now = System.nanoTime();
+                if (now - backoffUntil < 0) {
+                    return;
+                }
+                List<Integer> taskIds = console.getTaskIds();
+                nextPolls.keySet().retainAll(taskIds);
+                taskFailures.keySet().retainAll(taskIds);
+                for (Integer taskId : taskIds) {
+                    TaskProgress cachedTask = console.getCachedTask(taskId);
+                    if (cachedTask != null && cachedTask.isFinished()) {
+                        continue;
+                    }
+                    Long nextPoll = nextPolls.get(taskId);
+                    if (nextPoll != null && now - nextPoll < 0) {
+                        continue;
+                    }
+                    if (!poll(taskId)) {
+                        return;
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.error("Error polling tasks of " + console.getHost(), e);
+            }
+        }
+
+        private boolean poll(Integer taskId) {
+            TaskProgress task;
+            try {
+                task = console.getTask(taskId);
+            } catch (RuntimeException e) {
+                // The console is off or the Remote PKG Installer is not running, so the other tasks would fail as well
+                failures++;
+                long backoff = getBackoff(failures);
+                backoffUntil = System.nanoTime() + backoff;
+                log.debug("Error polling task " + taskId + " of " + console.getHost() + ", retrying in " + Duration.ofNanos(backoff) + ": " + e.getMessage());
+                return false;
+            }
+            failures = 0;
+            if (!task.isSuccess()) {
+                // The console answered, so only this task backs off, the task itself is not finished by a failed call
+                long backoff = getBackoff(taskFailures.merge(taskId, 1, Integer::sum));
+                nextPolls.put(taskId, System.nanoTime() + backoff);
+                log.debug("Polling task " + taskId + " of " + console.getHost() + " failed with " + task.getErrorCode() + ", retrying in " + Duration.ofNanos(backoff));
+            } else {
+                taskFailures.remove(taskId);
+                nextPolls.put(taskId, System.nanoTime() + getInterval(task).toNanos());
+            }
+            applicationEventPublisher.publishEvent(new TaskProgressEvent(console.getHost(), task));
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,231 @@
+package com.benjaminfaal.ps4remotepkginstaller.service.impl;
+
+import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallRequest;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// Tasks are read far more often than they change: the poller, the install queue, the task list and serving PKGs read
+// them, only installs and removals change them. Every change publishes a new immutable snapshot with the IDs in order,
+// so reads never lock or sort, and everything read from one snapshot is consistent.
+public class TaskRegistry {
+
+    private volatile Snapshot snapshot = new Snapshot(new int[0], new InstallRequest[0]);
+
+    // Latest polled progress, only of registered tasks
+    private final Map<Integer, TaskProgress> progress = new ConcurrentHashMap<>();
+
+    // Installed and failed tasks, so they don't have to be polled again after a restart
+    private final Map<Integer, TaskProgress> finished = new ConcurrentHashMap<>();
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    public List<Integer> getTaskIds() {
+        return snapshot.getTaskIds();
+    }
+
+    public InstallRequest getInstallRequest(Integer id) {
+        return snapshot.getInstallRequest(id);
+    }
+
+    public boolean contains(Integer id) {
+        return snapshot.getInstallRequest(id) != null;
+    }
+
+    public int size() {
+        return snapshot.size();
+    }
+
+    // Changes are serialized, readers don't wait for them
+    public synchronized void put(Integer id, InstallRequest installRequest) {
+        Snapshot current = snapshot;
+        int index = Arrays.binarySearch(current.ids, id);
+        if (index >= 0) {
+            InstallRequest[] installRequests = current.installRequests.clone();
+            installRequests[index] = installRequest;
+            snapshot = new Snapshot(current.ids, installRequests);
+            return;
+        }
+        int insert = -index - 1;
+        int[] ids = new int[current.ids.length + 1];
+        InstallRequest[] installRequests = new InstallRequest[ids.length];
+        System.arraycopy(current.ids, 0, ids, 0, insert);
+        System.arraycopy(current.installRequests, 0, installRequests, 0, insert);
+        ids[insert] = id;
+        installRequests[insert] = installRequest;
+        System.arraycopy(current.ids, insert, ids, insert + 1, current.ids.length - insert);
+        System.arraycopy(current.installRequests, insert, installRequests, insert + 1, current.ids.length - insert);
+        snapshot = new Snapshot(ids, installRequests);
+    }
+
+    // Publishes a single snapshot, for loading many tasks at once
+    public synchronized void putAll(Map<Integer, InstallRequest> installRequests) {
+        TreeMap<Integer, InstallRequest> merged = new TreeMap<>(installRequests);
+        snapshot.forEach(merged::putIfAbsent);
+        int[] ids = new int[merged.size()];
+        InstallRequest[] mergedInstallRequests = new InstallRequest[ids.length];
+        int i = 0;
+        for (Map.Entry<Integer, InstallRequest> entry : merged.entrySet()) {
+            ids[i] = entry.getKey();
+            mergedInstallRequests[i++] = entry.getValue();
+        }
+        snapshot = new Snapshot(ids, mergedInstallRequests);
+    }
+
+    // Also forgets its progress, returns whether the task was registered
+    public synchronized boolean remove(Integer id) {
+        Snapshot current = snapshot;
+        int index = Arrays.binarySearch(current.ids, id);
+        if (index >= 0) {
+            int[] ids = new int[current.ids.length - 1];
+            InstallRequest[] installRequests = new InstallRequest[ids.length];
+            System.arraycopy(current.ids, 0, ids, 0, index);
+            System.arraycopy(current.installRequests, 0, installRequests, 0, index);
+            System.arraycopy(current.ids, index + 1, ids, index, ids.length - index);
+            System.arraycopy(current.installRequests, index + 1, installRequests, index, ids.length - index);
+            snapshot = new Snapshot(ids, installRequests);
+        }
+        // After publishing the snapshot, so a poll that answers meanwhile can't store progress of the removed task
+        progress.remove(id);
+        finished.remove(id);
+        return index >= 0;
+    }
+
+    public TaskProgress getProgress(Integer id) {
+        return progress.get(id);
+    }
+
+    // A poll may answer after the task was removed, its progress is dropped then. Returns whether it was stored.
+    public boolean putProgress(Integer id, TaskProgress task) {
+        boolean[] stored = {false};
+        progress.compute(id, (key, previous) -> {
+            if (!contains(key)) {
+                return null;
+            }
+            stored[0] = true;
+            return task;
+        });
+        return stored[0];
+    }
+
+    // Returns whether the task was not finished before
+    public boolean putFinished(Integer id, TaskProgress task) {
+        boolean[] added = {false};
+        finished.compute(id, (key, previous) -> {
+            if (!contains(key)) {
+                return null;
+            }
+            added[0] = previous == null;
+            return task;
+        });
+        return added[0];
+    }
+
+    // Returns whether the task was finished, like a failed task that is retried
+    public boolean removeFinished(Integer id) {
+        return finished.remove(id) != null;
+    }
+
+    // Also their last progress, for loading
+    public void putAllFinished(Map<Integer, TaskProgress> tasks) {
+        tasks.forEach((id, task) -> {
+            if (putFinished(id, task)) {
+                putProgress(id, task);
+            }
+        });
+    }
+
+    public Map<Integer, TaskProgress> getFinished() {
+        return Collections.unmodifiableMap(finished);
+    }
+
+    public static class Snapshot {
+
+        private final int[] ids;
+
+        private final InstallRequest[] installRequests;
+
+        private final TaskIds taskIds;
+
+        private Snapshot(int[] ids, InstallRequest[] installRequests) {
+            this.ids = ids;
+            this.installRequests = installRequests;
+            this.taskIds = new TaskIds(ids);
+        }
+
+        // In order, unmodifiable
+        public List<Integer> getTaskIds() {
+            return taskIds;
+        }
+
+        public InstallRequest getInstallRequest(Integer id) {
+            if (id == null) {
+                return null;
+            }
+            int index = Arrays.binarySearch(ids, id);
+            return index >= 0 ? installRequests[index] : null;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        public void forEach(BiConsumer<Integer, InstallRequest> action) {
+            for (int i = 0; i < ids.length; i++) {
+                action.accept(ids[i], installRequests[i]);
+            }
+        }
+
+    }
+
+    // Looks up by binary search instead of comparing every ID
+    private static class TaskIds extends AbstractList<Integer> implements RandomAccess {
+
+        private final int[] ids;
+
+        private TaskIds(int[] ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public Integer get(int index) {
+            return ids[index];
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            if (!(o instanceof Integer)) {
+                return -1;
+            }
+            int index = Arrays.binarySearch(ids, (Integer) o);
+            return index >= 0 ? index : -1;
+        }
+
+        @Override
+        public int lastIndexOf(Object o) {
+            return indexOf(o);
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
+
+    }
+
+}
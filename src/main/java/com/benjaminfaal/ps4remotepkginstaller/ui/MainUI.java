@@ -11,23 +11,35 @@ import com.benjaminfaal.ps4remotepkginstaller.Settings;
 import com.benjaminfaal.ps4remotepkginstaller.authentication.event.AuthenticatedEvent;
 import com.benjaminfaal.ps4remotepkginstaller.authentication.event.DeAuthenticatedEvent;
 import com.benjaminfaal.ps4remotepkginstaller.event.AuthenticatingStatusEvent;
-import com.benjaminfaal.ps4remotepkginstaller.event.TaskUpdateEvent;
+import com.benjaminfaal.ps4remotepkginstaller.event.QueuedInstallEvent;
+import com.benjaminfaal.ps4remotepkginstaller.event.TaskProgressEvent;
 import com.benjaminfaal.ps4remotepkginstaller.model.ManualConsole;
+import com.benjaminfaal.ps4remotepkginstaller.model.QueuedInstall;
 import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallManifestJSONUrlRequest;
 import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallPKGUrlRequest;
 import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallPackagesRequest;
 import com.benjaminfaal.ps4remotepkginstaller.model.api.request.InstallRequest;
 import com.benjaminfaal.ps4remotepkginstaller.model.api.response.InstallResponse;
+import com.benjaminfaal.ps4remotepkginstaller.model.api.response.ModifyTaskResponse;
 import com.benjaminfaal.ps4remotepkginstaller.model.api.response.TaskProgress;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGBandwidthScheduler;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.PKGServer;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.RARArchive;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.RARExtractionCache;
+import com.benjaminfaal.ps4remotepkginstaller.pkg.RARExtractor;
+import com.benjaminfaal.ps4remotepkginstaller.service.AsyncRemotePKGInstallerService;
 import com.benjaminfaal.ps4remotepkginstaller.service.AuthenticationService;
+import com.benjaminfaal.ps4remotepkginstaller.service.HeartbeatService;
+import com.benjaminfaal.ps4remotepkginstaller.service.InstallQueueService;
 import com.benjaminfaal.ps4remotepkginstaller.service.ManualConsoleService;
 import com.benjaminfaal.ps4remotepkginstaller.service.RemotePKGInstallerService;
-import com.benjaminfaal.ps4remotepkginstaller.util.Utils;
+import com.benjaminfaal.ps4remotepkginstaller.service.TaskPollingService;
 import com.github.junrar.Junrar;
 import lombok.extern.apachecommons.CommonsLog;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Profile;
 import org.springframework.context.event.EventListener;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.stereotype.Component;
@@ -47,22 +59,33 @@ import java.awt.*;
 import java.awt.event.ItemEvent;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.time.Duration;
 import java.time.LocalTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
-import java.util.function.Supplier;
+import java.util.function.BiConsumer;
+import java.util.function.DoubleConsumer;
 import java.util.stream.Collectors;
 
 @CommonsLog
 @Component
+// Left out when running without a display, like the download benchmark
+@Profile("!headless")
 public class MainUI extends JFrame {
 
     private static final int DISCOVER_TIMEOUT = 5000;
@@ -110,6 +133,9 @@ public class MainUI extends JFrame {
     @Autowired
     private RemotePKGInstallerService remotePKGInstallerService;
 
+    @Autowired
+    private AsyncRemotePKGInstallerService asyncRemotePKGInstallerService;
+
     @Autowired
     private Settings settings;
 
@@ -122,8 +148,29 @@ public class MainUI extends JFrame {
     @Autowired
     private ApplicationContext applicationContext;
 
+    @Autowired
+    private PKGBandwidthScheduler pkgBandwidthScheduler;
+
+    @Autowired
+    private RARExtractor rarExtractor;
+
+    @Autowired
+    private RARExtractionCache rarExtractionCache;
+
+    @Autowired
+    private TaskPollingService taskPollingService;
+
+    @Autowired
+    private InstallQueueService installQueueService;
+
+    @Autowired
+    private HeartbeatService heartbeatService;
+
     private PS4CompanionAppConnection connection;
 
+    // Consoles the previous tasks don't belong to, only touched on the EDT
+    private final Set<String> previousTasksDeclined = new HashSet<>();
+
     public void init() {
         setContentPane(contentPane);
 
@@ -229,12 +276,42 @@ public class MainUI extends JFrame {
     private void handleConnect(Console console) {
         btnAuthenticate.setText(authenticationService.isAuthenticated(console) ? "Deauthenticate" : "Authenticate");
         btnAuthenticate.setEnabled(true);
-        remotePKGInstallerService.setHost(console.getHost());
 
         boolean isManualConsole = console instanceof ManualConsole;
         btnEditConsole.setEnabled(isManualConsole);
         btnRemoveConsole.setEnabled(isManualConsole);
 
+        // Opening a console loads its tasks from disk, so it's opened in the background before it is selected
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                remotePKGInstallerService.forHost(console.getHost());
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    String message = "Error loading the tasks of " + console.getUserFriendlyName();
+                    log.error(message, cause);
+                    JOptionPane.showMessageDialog(MainUI.this, message + System.lineSeparator() + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                // Another console was selected meanwhile
+                if (cmbDiscoveredConsoles.getSelectedItem() != console) {
+                    return;
+                }
+                remotePKGInstallerService.setHost(console.getHost());
+                heartbeatService.checkNow();
+                discoverConsole(console);
+            }
+        }.execute();
+    }
+
+    private void discoverConsole(Console console) {
         new SwingWorker<Console, Void>() {
             @Override
             protected Console doInBackground() throws Exception {
@@ -254,10 +331,49 @@ public class MainUI extends JFrame {
                 } finally {
                     cmbDiscoveredConsoles.repaint();
 
-                    refreshTasks();
+                    showTasks();
+                    taskPollingService.pollAll();
+                    installQueueService.dispatch();
                     if (isRemoteControl()) {
                         connect(console);
                     }
+                    askPreviousTasksOwner(console);
+                }
+            }
+        }.execute();
+    }
+
+    // Previous versions saved the tasks of all consoles together, only the user knows which console they belong to
+    private void askPreviousTasksOwner(Console console) {
+        if (previousTasksDeclined.contains(console.getHost()) || !remotePKGInstallerService.hasPreviousTasks()) {
+            return;
+        }
+        int answer = JOptionPane.showConfirmDialog(this, "Tasks of a previous version were found, they were saved without their PS4." + System.lineSeparator()
+                + "Are they tasks of " + console.getUserFriendlyName() + "? Otherwise they are kept for another PS4.", "Previous tasks", JOptionPane.YES_NO_OPTION);
+        if (answer != JOptionPane.YES_OPTION) {
+            previousTasksDeclined.add(console.getHost());
+            return;
+        }
+
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                remotePKGInstallerService.movePreviousTasks(console.getHost());
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    String message = "Error moving the previous tasks to " + console.getUserFriendlyName();
+                    log.error(message, cause);
+                    JOptionPane.showMessageDialog(MainUI.this, message + System.lineSeparator() + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                } finally {
+                    showTasks();
+                    taskPollingService.pollAll();
                 }
             }
         }.execute();
@@ -391,21 +507,18 @@ public class MainUI extends JFrame {
 
         initTasksTablePopupMenu();
 
-        Timer refreshTasksTimer = new Timer(5000, e -> {
-            if (isWindowActive() && remotePKGInstallerService.countTasks() > 0 && isRemotePKGInstallerRunning()) {
-                refreshTasks();
-            }
-        });
-        refreshTasksTimer.setInitialDelay(0);
-        refreshTasksTimer.start();
+        showTasks();
     }
 
     private void updateSelectedTask(Integer taskId) {
         TaskProgress task = remotePKGInstallerService.getCachedTask(taskId);
+        if (task == null) {
+            return;
+        }
         TitledBorder border = (TitledBorder) selectedTaskPanel.getBorder();
         border.setTitle("Task " + task.getId());
 
-        int percentage = calculateTaskPercentage(task);
+        int percentage = task.getPercentage();
         selectedTaskProgressbar.setValue(percentage);
         selectedTaskProgressbar.setString(percentage + "%");
         selectedTaskProgressbar.setStringPainted(true);
@@ -427,9 +540,8 @@ public class MainUI extends JFrame {
 
         JMenuItem refreshMenuItem = new JMenuItem("Refresh");
         refreshMenuItem.addActionListener(e -> {
-            if (checkRemotePKGInstallerIsRunning()) {
-                getSelectedTaskIds().forEach(this::refreshTask);
-            }
+            List<Integer> taskIds = getSelectedTaskIds();
+            whenRemotePKGInstallerIsRunning(() -> taskIds.forEach(taskPollingService::pollNow));
         });
         taskPopupMenu.add(refreshMenuItem);
 
@@ -437,36 +549,110 @@ public class MainUI extends JFrame {
 
         JMenuItem pauseMenuItem = new JMenuItem("Pause");
         pauseMenuItem.addActionListener(e -> {
-            if (checkRemotePKGInstallerIsRunning()) {
-                getSelectedTaskIds().forEach(remotePKGInstallerService::pauseTask);
-            }
+            List<Integer> taskIds = getSelectedTaskIds();
+            whenRemotePKGInstallerIsRunning(() -> taskIds.forEach(taskId -> asyncRemotePKGInstallerService.pauseTask(taskId)
+                    .whenCompleteAsync(showModifyTaskError("pause", taskId), SwingUtilities::invokeLater)));
         });
         taskPopupMenu.add(pauseMenuItem);
 
         JMenuItem resumeMenuItem = new JMenuItem("Resume");
         resumeMenuItem.addActionListener(e -> {
-            if (checkRemotePKGInstallerIsRunning()) {
-                getSelectedTaskIds().forEach(remotePKGInstallerService::resumeTask);
-            }
+            List<Integer> taskIds = getSelectedTaskIds();
+            whenRemotePKGInstallerIsRunning(() -> taskIds.forEach(taskId -> asyncRemotePKGInstallerService.resumeTask(taskId)
+                    .whenCompleteAsync(showModifyTaskError("resume", taskId), SwingUtilities::invokeLater)));
         });
         taskPopupMenu.add(resumeMenuItem);
 
         JMenuItem stopMenuItem = new JMenuItem("Stop");
         stopMenuItem.addActionListener(e -> {
-            if (checkRemotePKGInstallerIsRunning()) {
-                getSelectedTaskIds().forEach(remotePKGInstallerService::stopTask);
-            }
+            List<Integer> taskIds = getSelectedTaskIds();
+            whenRemotePKGInstallerIsRunning(() -> taskIds.forEach(taskId -> asyncRemotePKGInstallerService.stopTask(taskId)
+                    .whenCompleteAsync(showModifyTaskError("stop", taskId), SwingUtilities::invokeLater)));
         });
         taskPopupMenu.add(stopMenuItem);
 
         taskPopupMenu.addSeparator();
 
+        // Priorities only take effect with a bandwidth limit, they divide the limit between the running downloads
+        JMenu priorityMenu = new JMenu("Priority");
+        JMenu consolePriorityMenu = new JMenu("Console priority");
+        addPriorityMenuItems(priorityMenu, weight -> {
+            String consoleAddress = getSelectedConsoleAddress();
+            if (consoleAddress != null) {
+                getSelectedTaskIds().forEach(taskId -> pkgBandwidthScheduler.setTaskWeight(consoleAddress, taskId, weight));
+            }
+        });
+        addPriorityMenuItems(consolePriorityMenu, weight -> {
+            String consoleAddress = getSelectedConsoleAddress();
+            if (consoleAddress != null) {
+                pkgBandwidthScheduler.setConsoleWeight(consoleAddress, weight);
+            }
+        });
+        taskPopupMenu.add(priorityMenu);
+        taskPopupMenu.add(consolePriorityMenu);
+
+        JMenuItem bandwidthLimitMenuItem = new JMenuItem("Bandwidth limit...");
+        bandwidthLimitMenuItem.addActionListener(e -> {
+            String currentLimit = String.valueOf(pkgBandwidthScheduler.getLimit() / 1024 / 1024);
+            String limit = (String) JOptionPane.showInputDialog(this, "Enter the bandwidth limit for all PKG downloads in MB/s, 0 is unlimited", "Bandwidth limit", JOptionPane.QUESTION_MESSAGE, null, null, currentLimit);
+            if (StringUtils.hasText(limit)) {
+                double megabytes;
+                try {
+                    megabytes = Double.parseDouble(limit.trim());
+                } catch (NumberFormatException ex) {
+                    megabytes = Double.NaN;
+                }
+                // Also rejects NaN
+                if (megabytes >= 0) {
+                    pkgBandwidthScheduler.setLimit((long) (megabytes * 1024 * 1024));
+                } else {
+                    JOptionPane.showMessageDialog(this, "Invalid bandwidth limit: " + limit, "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+        taskPopupMenu.add(bandwidthLimitMenuItem);
+
+        JMenuItem installOnConsolesMenuItem = new JMenuItem("Install on several PS4s...");
+        installOnConsolesMenuItem.setEnabled(isServerEnabled());
+        installOnConsolesMenuItem.addActionListener(e -> installOnConsoles());
+        taskPopupMenu.add(installOnConsolesMenuItem);
+
+        JMenuItem installQueueMenuItem = new JMenuItem("Install queue...");
+        installQueueMenuItem.addActionListener(e -> showInstallQueue());
+        taskPopupMenu.add(installQueueMenuItem);
+
+        JMenuItem maxActiveTasksMenuItem = new JMenuItem("Maximum active tasks...");
+        maxActiveTasksMenuItem.addActionListener(e -> {
+            String currentMaxActiveTasks = String.valueOf(installQueueService.getMaxActiveTasks());
+            String maxActiveTasks = (String) JOptionPane.showInputDialog(this, "Enter how many tasks the PS4 downloads or installs at the same time, further installs wait in the install queue, 0 is unlimited", "Maximum active tasks", JOptionPane.QUESTION_MESSAGE, null, null, currentMaxActiveTasks);
+            if (StringUtils.hasText(maxActiveTasks)) {
+                try {
+                    installQueueService.setMaxActiveTasks(Math.max(0, Integer.parseInt(maxActiveTasks.trim())));
+                } catch (NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(this, "Invalid maximum active tasks: " + maxActiveTasks, "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+        taskPopupMenu.add(maxActiveTasksMenuItem);
+
+        JMenuItem extractionCacheMenuItem = new JMenuItem("Extraction cache...");
+        extractionCacheMenuItem.addActionListener(e -> showExtractionCache());
+        taskPopupMenu.add(extractionCacheMenuItem);
+
+        taskPopupMenu.addSeparator();
+
         JMenuItem removeMenuItem = new JMenuItem("Remove");
         removeMenuItem.addActionListener(e -> {
-            if (checkRemotePKGInstallerIsRunning()) {
-                getSelectedTaskIds().forEach(remotePKGInstallerService::removeTask);
-                refreshTasks();
-            }
+            List<Integer> taskIds = getSelectedTaskIds();
+            String consoleAddress = getSelectedConsoleAddress();
+            whenRemotePKGInstallerIsRunning(() -> CompletableFuture.allOf(taskIds.stream()
+                    .map(taskId -> {
+                        pkgBandwidthScheduler.removeTask(consoleAddress, taskId);
+                        return asyncRemotePKGInstallerService.removeTask(taskId)
+                                .whenCompleteAsync(showModifyTaskError("remove", taskId), SwingUtilities::invokeLater);
+                    })
+                    .toArray(CompletableFuture[]::new))
+                    .whenCompleteAsync((result, ex) -> showTasks(), SwingUtilities::invokeLater));
         });
         taskPopupMenu.add(removeMenuItem);
 
@@ -495,87 +681,72 @@ public class MainUI extends JFrame {
         tblTasks.setComponentPopupMenu(taskPopupMenu);
     }
 
-    @EventListener
-    public void onTaskUpdateEvent(TaskUpdateEvent event) {
-        if (isWindowActive()) {
-            new SwingWorker<Boolean, Void>() {
-                @Override
-                protected Boolean doInBackground() throws Exception {
-                    return isRemotePKGInstallerRunning();
-                }
-
-                @Override
-                protected void done() {
-                    try {
-                        if (get()) {
-                            refreshTask(event.getTaskId());
-                        }
-                    } catch (Exception ignored) {
-                    }
-                }
-            }.execute();
+    // The PKG server tells consoles apart by their address
+    private String getSelectedConsoleAddress() {
+        Console console = (Console) cmbDiscoveredConsoles.getSelectedItem();
+        if (console == null) {
+            return null;
+        }
+        try {
+            return InetAddress.getByName(console.getHost()).getHostAddress();
+        } catch (UnknownHostException e) {
+            log.error("Error resolving " + console.getHost() + ": ", e);
+            return null;
         }
     }
 
-    private void refreshTasks() {
-        new SwingWorker<List<TaskProgress>, Void>() {
-            @Override
-            protected List<TaskProgress> doInBackground() throws Exception {
-                if (!isRemotePKGInstallerRunning()) {
-                    throw new IllegalStateException("Remote PKG Installer is not running");
-                }
-                return remotePKGInstallerService.getTasks();
-            }
+    private void addPriorityMenuItems(JMenu menu, DoubleConsumer setWeight) {
+        JMenuItem highMenuItem = new JMenuItem("High");
+        highMenuItem.addActionListener(e -> setWeight.accept(4));
+        menu.add(highMenuItem);
 
-            @Override
-            protected void done() {
-                try {
-                    List<TaskProgress> tasks = get();
-                    DefaultTableModel model = (DefaultTableModel) tblTasks.getModel();
-                    model.setRowCount(tasks.size());
-                    for (TaskProgress task : tasks) {
-                        updateTask(task, model, tasks.indexOf(task));
-                    }
-                } catch (Exception e) {
-                    log.error("Error refreshing tasks: ", e);
-                }
-            }
+        JMenuItem normalMenuItem = new JMenuItem("Normal");
+        normalMenuItem.addActionListener(e -> setWeight.accept(PKGBandwidthScheduler.DEFAULT_WEIGHT));
+        menu.add(normalMenuItem);
 
-        }.execute();
+        JMenuItem lowMenuItem = new JMenuItem("Low");
+        lowMenuItem.addActionListener(e -> setWeight.accept(0.25));
+        menu.add(lowMenuItem);
     }
 
-    private void refreshTask(Integer taskId) {
-        if (!remotePKGInstallerService.getTaskIds().contains(taskId)) {
-            return;
+    @EventListener
+    public void onTaskProgressEvent(TaskProgressEvent event) {
+        // Tasks of the other consoles are polled as well
+        if (event.getHost().equals(remotePKGInstallerService.getHost())) {
+            SwingUtilities.invokeLater(() -> showTask(event.getTask()));
         }
-        new SwingWorker<TaskProgress, Void>() {
-            @Override
-            protected TaskProgress doInBackground() throws Exception {
-                return remotePKGInstallerService.getTask(taskId);
-            }
-
-            @Override
-            protected void done() {
-                try {
-                    TaskProgress task = get();
-                    DefaultTableModel model = (DefaultTableModel) tblTasks.getModel();
+    }
 
-                    int index = remotePKGInstallerService.getTaskIds().indexOf(taskId);
-                    if (index != -1) {
-                        model.setRowCount(remotePKGInstallerService.countTasks());
-                        updateTask(task, model, index);
-                    }
-                } catch (Exception e) {
-                    log.error("Error refreshing task " + taskId, e);
-                }
+    // From the last polled progress, polling is done by the TaskPollingService
+    private void showTasks() {
+        DefaultTableModel model = (DefaultTableModel) tblTasks.getModel();
+        List<Integer> taskIds = remotePKGInstallerService.getTaskIds();
+        model.setRowCount(taskIds.size());
+        for (int index = 0; index < taskIds.size(); index++) {
+            Integer taskId = taskIds.get(index);
+            TaskProgress task = remotePKGInstallerService.getCachedTask(taskId);
+            if (task != null) {
+                updateTask(task, model, index);
+            } else {
+                model.setValueAt(taskId, index, 0);
+                model.setValueAt(installRequestToString(remotePKGInstallerService.getInstallRequest(taskId)), index, 1);
             }
-        }.execute();
+        }
+    }
+
+    private void showTask(TaskProgress task) {
+        int index = remotePKGInstallerService.getTaskIds().indexOf(task.getId());
+        if (index != -1) {
+            DefaultTableModel model = (DefaultTableModel) tblTasks.getModel();
+            model.setRowCount(remotePKGInstallerService.countTasks());
+            updateTask(task, model, index);
+        }
     }
 
     private void updateTask(TaskProgress task, DefaultTableModel model, int index) {
         model.setValueAt(task.getId(), index, 0);
         model.setValueAt(installRequestToString(remotePKGInstallerService.getInstallRequest(task.getId())), index, 1);
-        model.setValueAt(calculateTaskPercentage(task), index, 2);
+        model.setValueAt(task.getPercentage(), index, 2);
         model.setValueAt(formatTimeLeft(task), index, 3);
         model.setValueAt(getStatus(task), index, 4);
 
@@ -585,47 +756,23 @@ public class MainUI extends JFrame {
     }
 
     private String formatTimeLeft(TaskProgress task) {
-        if (calculateTaskPercentage(task) == 100) {
+        if (task.getPercentage() == 100 || task.getRestSecTotal() == 0) {
             return "∞";
         }
-        String timeLeft = "";
-        if (task.getRestSecTotal() != null) {
-            if (task.getRestSecTotal() == 0) {
-                timeLeft = "∞";
-            } else {
-                timeLeft = LocalTime.MIDNIGHT.plus(Duration.ofSeconds(task.getRestSecTotal())).format(DateTimeFormatter.ISO_LOCAL_TIME);
-            }
-        }
-        return timeLeft;
-    }
-
-    private int calculateTaskPercentage(TaskProgress task) {
-        if (task.getTransferredTotal() != null && task.getLengthTotal() != null) {
-            Long lengthTotal = Long.decode(task.getLengthTotal());
-            Long transferredTotal = Long.decode(task.getTransferredTotal());
-            if (lengthTotal > 0) {
-                return (int) ((transferredTotal * 100) / lengthTotal);
-            }
-        }
-        return 0;
+        return LocalTime.MIDNIGHT.plus(Duration.ofSeconds(task.getRestSecTotal())).format(DateTimeFormatter.ISO_LOCAL_TIME);
     }
 
     private String getStatus(TaskProgress task) {
-        String bits = task.getBits();
         if (task.getErrorCode() != null) {
             return taskErrorCodeToString(task.getErrorCode());
         } else if (!Objects.equals(task.getError(), 0)) {
             return taskErrorToString(task.getError());
-        } else if (bits == null) {
+        } else if (task.getBits() == 0) {
             return null;
+        } else if (task.getState() == null) {
+            return "Unknown 0x" + Integer.toHexString(task.getBits()).toUpperCase();
         }
-
-        Integer statusBits = Integer.decode(bits);
-        return Arrays.stream(TaskProgress.Status.values())
-                .filter(status -> (statusBits & status.getBits()) == status.getBits())
-                .findFirst()
-                .map(TaskProgress.Status::getDescription)
-                .orElse("Unknown " + bits);
+        return task.getState().getDescription();
     }
 
     private String taskErrorCodeToString(String errorCode) {
@@ -648,6 +795,19 @@ public class MainUI extends JFrame {
         return String.valueOf(error);
     }
 
+    private String queuedInstallToString(QueuedInstall queuedInstall) {
+        switch (queuedInstall.getType()) {
+            case FILES:
+                return String.join(", ", queuedInstall.getFiles());
+            case RAR_ENTRIES:
+                return queuedInstall.getRarFile() + ": " + String.join(", ", queuedInstall.getEntryNames());
+            case RAR_EXTRACTION:
+                return queuedInstall.getRarFile();
+            default:
+                return queuedInstall.getUrl();
+        }
+    }
+
     private String installRequestToString(InstallRequest installRequest) {
         if (installRequest instanceof InstallPackagesRequest) {
             return String.join(", ", ((InstallPackagesRequest) installRequest).getLocalFiles());
@@ -767,40 +927,109 @@ public class MainUI extends JFrame {
     }
 
     private boolean isServerEnabled() {
-        return applicationContext instanceof WebApplicationContext;
+        return applicationContext instanceof WebApplicationContext || applicationContext.getBeanNamesForType(PKGServer.class).length > 0;
     }
 
     private void initInstallPKGsButton() {
         btnInstallPKGs.setEnabled(isServerEnabled());
-        btnInstallPKGs.addActionListener(e -> {
-            if (!checkRemotePKGInstallerIsRunning()) {
-                return;
+        btnInstallPKGs.addActionListener(e -> whenRemotePKGInstallerIsRunning(() -> {
+            File[] selectedFiles = choosePKGFiles();
+            if (selectedFiles != null) {
+                installQueueService.enqueueFiles(selectedFiles);
             }
-            JFileChooser fileChooser = new JFileChooser();
-            fileChooser.setFileFilter(new FileNameExtensionFilter("PS4 PKG files", "pkg"));
-            fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
-            fileChooser.setMultiSelectionEnabled(true);
-            if (settings.containsKey("lastDirectory")) {
-                fileChooser.setCurrentDirectory(new File(settings.getProperty("lastDirectory")));
+        }));
+    }
+
+    // Null when nothing is selected
+    private File[] choosePKGFiles() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileFilter(new FileNameExtensionFilter("PS4 PKG files", "pkg", "000", "001"));
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+        fileChooser.setMultiSelectionEnabled(true);
+        if (settings.containsKey("lastDirectory")) {
+            fileChooser.setCurrentDirectory(new File(settings.getProperty("lastDirectory")));
+        }
+        if (fileChooser.showOpenDialog(rootPane) == JFileChooser.APPROVE_OPTION) {
+            File[] selectedFiles = fileChooser.getSelectedFiles();
+            if (selectedFiles.length > 0) {
+                for (File selectedFile : selectedFiles) {
+                    settings.setProperty("lastDirectory", selectedFile.getParent());
+                }
+                return selectedFiles;
             }
-            if (fileChooser.showOpenDialog(rootPane) == JFileChooser.APPROVE_OPTION) {
-                File[] selectedFiles = fileChooser.getSelectedFiles();
-                if (selectedFiles.length > 0) {
-                    for (File selectedFile : selectedFiles) {
-                        settings.setProperty("lastDirectory", selectedFile.getParent());
+        }
+        return null;
+    }
+
+    // Submits the same PKGs to all selected consoles at once, like when setting up a shelf of PS4s. Skips the install
+    // queue, which is per console.
+    private void installOnConsoles() {
+        DefaultComboBoxModel<Console> model = (DefaultComboBoxModel<Console>) cmbDiscoveredConsoles.getModel();
+        DefaultListModel<Console> consolesModel = new DefaultListModel<>();
+        for (int i = 0; i < model.getSize(); i++) {
+            consolesModel.addElement(model.getElementAt(i));
+        }
+        JList<Console> lstConsoles = new JList<>(consolesModel);
+        lstConsoles.setCellRenderer(cmbDiscoveredConsoles.getRenderer());
+        lstConsoles.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        lstConsoles.setSelectedValue(cmbDiscoveredConsoles.getSelectedItem(), false);
+        JScrollPane scrollPane = new JScrollPane(lstConsoles);
+        scrollPane.setPreferredSize(new Dimension(300, 200));
+        if (JOptionPane.showConfirmDialog(this, new Object[]{"Select the PS4s to install on", scrollPane}, "Install on several PS4s", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        List<Console> consoles = lstConsoles.getSelectedValuesList();
+        if (consoles.isEmpty()) {
+            return;
+        }
+        File[] selectedFiles = choosePKGFiles();
+        if (selectedFiles == null) {
+            return;
+        }
+
+        List<String> hosts = consoles.stream().map(Console::getHost).distinct().collect(Collectors.toList());
+        Map<String, CompletableFuture<InstallResponse>> responses = asyncRemotePKGInstallerService.installFiles(hosts, selectedFiles);
+        CompletableFuture.allOf(responses.values().toArray(new CompletableFuture[0]))
+                .whenCompleteAsync((result, e) -> showInstallOnConsolesResult(consoles, responses), SwingUtilities::invokeLater);
+    }
+
+    private void showInstallOnConsolesResult(List<Console> consoles, Map<String, CompletableFuture<InstallResponse>> responses) {
+        StringBuilder message = new StringBuilder();
+        boolean failed = false;
+        for (Map.Entry<String, CompletableFuture<InstallResponse>> entry : responses.entrySet()) {
+            String name = consoles.stream()
+                    .filter(console -> console.getHost().equals(entry.getKey()))
+                    .map(Console::getUserFriendlyName)
+                    .findFirst()
+                    .orElse(entry.getKey());
+            message.append(name).append(": ");
+            try {
+                InstallResponse response = entry.getValue().join();
+                if (response.isSuccess()) {
+                    message.append("task ").append(response.getTaskId());
+                } else {
+                    failed = true;
+                    if (response.getError() != null) {
+                        message.append(response.getError());
+                    } else if (response.getErrorCode() != null) {
+                        message.append(taskErrorCodeToString(response.getErrorCode())).append(" (").append(response.getErrorCode()).append(")");
                     }
-                    doInstallInBackground(() -> remotePKGInstallerService.installFiles(selectedFiles));
                 }
+            } catch (CompletionException | CancellationException e) {
+                failed = true;
+                Throwable cause = unwrap(e);
+                log.error("Error installing on " + entry.getKey(), cause);
+                message.append(cause.getMessage());
             }
-        });
+            message.append(System.lineSeparator());
+        }
+        JOptionPane.showMessageDialog(this, message.toString(), failed ? "Error installing" : "Installed", failed ? JOptionPane.ERROR_MESSAGE : JOptionPane.INFORMATION_MESSAGE);
+        showTasks();
     }
 
     private void initInstallPKGsFromRARButton() {
         btnInstallRAR.setEnabled(isServerEnabled());
-        btnInstallRAR.addActionListener(event -> {
-            if (!checkRemotePKGInstallerIsRunning()) {
-                return;
-            }
+        btnInstallRAR.addActionListener(event -> whenRemotePKGInstallerIsRunning(() -> {
             JFileChooser fileChooser = new JFileChooser();
             fileChooser.setFileFilter(new FileNameExtensionFilter("RAR files", "rar"));
             fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
@@ -816,145 +1045,257 @@ public class MainUI extends JFrame {
                     installRAR(rarFile);
                 }
             }
-        });
+        }));
     }
 
     private void installRAR(File rarFile) {
-        List<File> extracted;
+        // Stored PKGs are served straight from the archive, compressed ones still have to be extracted
+        try {
+            List<RARArchive.Entry> pkgEntries = RARArchive.read(rarFile).getEntries().stream()
+                    .filter(entry -> entry.getName().toLowerCase().endsWith(".pkg"))
+                    .collect(Collectors.toList());
+            if (!pkgEntries.isEmpty() && pkgEntries.stream().allMatch(RARArchive.Entry::isServable)) {
+                String[] entryNames = pkgEntries.stream().map(RARArchive.Entry::getName).toArray(String[]::new);
+                installQueueService.enqueueRAREntries(rarFile, entryNames);
+                return;
+            }
+        } catch (IOException e) {
+            log.debug("Not serving " + rarFile + " directly: " + e.getMessage());
+        }
+
         try {
             if (Junrar.getContentsDescription(rarFile).stream().noneMatch(contentDescription -> contentDescription.path.endsWith(".pkg"))) {
                 JOptionPane.showMessageDialog(this, rarFile + " does not contain any PKG files", "No PKG files", JOptionPane.ERROR_MESSAGE);
                 return;
             }
 
-            Path destinationFolder = Utils.getWorkingDirectory().resolve("rar").resolve(rarFile.getName());
-            if (!Files.exists(destinationFolder)) {
-                Files.createDirectories(destinationFolder);
+            // Extraction starts right away, the PKGs are served while they are being extracted or from the extraction cache
+            RARExtractor.Extraction extraction = rarExtractor.extract(rarFile);
+            if (extraction.getFiles().isEmpty()) {
+                JOptionPane.showMessageDialog(this, "No PKG files found inside " + rarFile);
+                return;
             }
-            Path extractedLockFile = destinationFolder.resolve(".extracted");
-            if (!Files.exists(extractedLockFile)) {
-                JOptionPane.showMessageDialog(this, "Extracting " + rarFile + " to " + destinationFolder);
-                extracted = Junrar.extract(rarFile, destinationFolder.toFile());
-                Files.createFile(extractedLockFile);
-            } else {
-                extracted = Files.list(destinationFolder).map(Path::toFile).collect(Collectors.toList());
+            QueuedInstall queuedInstall = installQueueService.enqueueExtraction(rarFile);
+            if (!extraction.isDone()) {
+                showExtractionProgress(extraction, queuedInstall);
             }
         } catch (Exception e) {
             log.error("Error extracting " + rarFile, e);
             JOptionPane.showMessageDialog(this, "Error extracting " + rarFile + System.lineSeparator() + e.getMessage(), "Error extracting " + rarFile, JOptionPane.ERROR_MESSAGE);
-            return;
-        }
-        File[] extractedPKGFiles = extracted.stream()
-                .filter(file -> new FileNameExtensionFilter("PS4 PKG files", "pkg").accept(file))
-                .toArray(File[]::new);
-        if (extractedPKGFiles.length == 0) {
-            JOptionPane.showMessageDialog(this, "No PKG files found inside " + rarFile);
-        } else {
-            doInstallInBackground(() -> remotePKGInstallerService.installFiles(extractedPKGFiles));
         }
     }
 
-    private void initInstallPKGUrlButton() {
-        btnInstallPKGUrl.addActionListener(e -> {
-            if (!checkRemotePKGInstallerIsRunning()) {
+    private void showExtractionProgress(RARExtractor.Extraction extraction, QueuedInstall queuedInstall) {
+        ProgressMonitor progressMonitor = new ProgressMonitor(this, "Extracting " + extraction.getRarFile().getName(), "", 0, 1000);
+        progressMonitor.setMillisToDecideToPopup(0);
+        progressMonitor.setMillisToPopup(0);
+        Timer progressTimer = new Timer(500, null);
+        progressTimer.addActionListener(e -> {
+            if (progressMonitor.isCanceled()) {
+                extraction.cancel();
+                installQueueService.remove(queuedInstall.getId());
+            }
+            if (extraction.isDone()) {
+                progressTimer.stop();
+                progressMonitor.close();
+                if (extraction.getFailure() != null && !progressMonitor.isCanceled()) {
+                    JOptionPane.showMessageDialog(this, "Error extracting " + extraction.getRarFile() + System.lineSeparator() + extraction.getFailure().getMessage(), "Error extracting " + extraction.getRarFile(), JOptionPane.ERROR_MESSAGE);
+                }
                 return;
             }
+            long extracted = extraction.getExtracted();
+            progressMonitor.setProgress((int) (extracted * 1000 / Math.max(extraction.getSize(), 1)));
+            progressMonitor.setNote((extracted / 1024 / 1024) + " of " + (extraction.getSize() / 1024 / 1024) + " MB");
+        });
+        progressTimer.start();
+    }
+
+    private void showExtractionCache() {
+        try {
+            List<RARExtractionCache.Entry> entries = rarExtractionCache.getEntries();
+            DefaultTableModel model = new DefaultTableModel(new Object[]{"Archive", "Size", "Last installed", "Status"}, 0) {
+                @Override
+                public boolean isCellEditable(int row, int column) {
+                    return false;
+                }
+            };
+            DateTimeFormatter formatter = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT).withZone(ZoneId.systemDefault());
+            entries.forEach(entry -> model.addRow(new Object[]{
+                    new File(entry.getArchive()).getName(),
+                    (entry.getSize() / 1024 / 1024) + " MB",
+                    formatter.format(entry.getLastInstalled()),
+                    StringUtils.capitalize(entry.getState().name().toLowerCase().replace('_', ' '))
+            }));
+            JTable table = new JTable(model);
+            JScrollPane scrollPane = new JScrollPane(table);
+            scrollPane.setPreferredSize(new Dimension(600, 200));
+
+            long used = entries.stream().mapToLong(RARExtractionCache.Entry::getSize).sum();
+            long size = rarExtractionCache.getSize().toBytes();
+            String usage = "Using " + (used / 1024 / 1024) + " MB" + (size > 0 ? " of " + (size / 1024 / 1024) + " MB" : "") + " in " + rarExtractionCache.getDirectory();
+
+            Object[] options = {"Remove unused", "Close"};
+            int option = JOptionPane.showOptionDialog(this, new Object[]{usage, scrollPane}, "Extraction cache", JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[1]);
+            if (option == 0) {
+                long removed = rarExtractionCache.removeUnused();
+                JOptionPane.showMessageDialog(this, "Removed " + (removed / 1024 / 1024) + " MB from the extraction cache");
+            }
+        } catch (IOException e) {
+            log.error("Error reading the extraction cache", e);
+            JOptionPane.showMessageDialog(this, "Error reading the extraction cache" + System.lineSeparator() + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void initInstallPKGUrlButton() {
+        btnInstallPKGUrl.addActionListener(e -> whenRemotePKGInstallerIsRunning(() -> {
             String pkgUrl = JOptionPane.showInputDialog("Enter PKG URL");
             if (StringUtils.hasText(pkgUrl)) {
-                doInstallInBackground(() -> remotePKGInstallerService.installPKGUrl(pkgUrl));
+                installQueueService.enqueuePKGUrl(pkgUrl);
             }
-        });
+        }));
     }
 
     private void initInstallManifestJSONUrlButton() {
-        btnInstallManifestJSON.addActionListener(e -> {
-            if (!checkRemotePKGInstallerIsRunning()) {
-                return;
-            }
+        btnInstallManifestJSON.addActionListener(e -> whenRemotePKGInstallerIsRunning(() -> {
             String manifestJSONUrl = JOptionPane.showInputDialog("Enter manifest JSON URL");
             if (StringUtils.hasText(manifestJSONUrl)) {
-                doInstallInBackground(() -> remotePKGInstallerService.installManifestJSONUrl(manifestJSONUrl));
+                installQueueService.enqueueManifestJSONUrl(manifestJSONUrl);
             }
-        });
+        }));
     }
 
-    private void doInstallInBackground(Supplier<InstallResponse> installResponseSupplier) {
-        if (!checkRemotePKGInstallerIsRunning()) {
-            return;
+    // Queued installs are submitted in the background, errors are shown once the PS4 answered
+    @EventListener
+    public void onQueuedInstallEvent(QueuedInstallEvent event) {
+        InstallResponse response = event.getResponse();
+        if (event.getError() != null || !response.isSuccess()) {
+            SwingUtilities.invokeLater(() -> showInstallError(event.getInstall(), response, event.getError()));
         }
-        new SwingWorker<InstallResponse, Void>() {
-            @Override
-            protected InstallResponse doInBackground() throws Exception {
-                return installResponseSupplier.get();
+    }
+
+    private void showInstallError(QueuedInstall queuedInstall, InstallResponse response, RuntimeException e) {
+        String message = "Error installing " + queuedInstallToString(queuedInstall) + ": " + System.lineSeparator();
+        if (e != null) {
+            log.error(message, e);
+            message += e.getMessage();
+        } else {
+            if (response.getError() != null) {
+                message += response.getError();
+            } else if (response.getErrorCode() != null) {
+                message += taskErrorCodeToString(response.getErrorCode()) + " (" + response.getErrorCode() + ")";
             }
+            log.error(message);
+        }
+        JOptionPane.showMessageDialog(this, message, "Error installing", JOptionPane.ERROR_MESSAGE);
+    }
 
+    private void showInstallQueue() {
+        List<QueuedInstall> queue = installQueueService.getQueue();
+        DefaultTableModel model = new DefaultTableModel(new Object[]{"Priority", "Install"}, 0) {
             @Override
-            protected void done() {
-                try {
-                    InstallResponse response = get();
-                    if (!response.isSuccess()) {
-                        String message = "Error installing: " + System.lineSeparator();
-                        if (response.getError() != null) {
-                            message += response.getError();
-                        } else if (response.getErrorCode() != null) {
-                            message += taskErrorCodeToString(response.getErrorCode()) + " (" + response.getErrorCode() + ")";
-                        }
-                        log.error(message);
-                        JOptionPane.showMessageDialog(MainUI.this, message, "Error installing", JOptionPane.ERROR_MESSAGE);
-                    }
-                } catch (Exception e) {
-                    log.error("Error installing: ", e);
-                    String message = "Error installing: " + System.lineSeparator() + e.getMessage();
-                    JOptionPane.showMessageDialog(MainUI.this, message, "Error installing", JOptionPane.ERROR_MESSAGE);
-                }
+            public boolean isCellEditable(int row, int column) {
+                return false;
             }
-        }.execute();
+        };
+        queue.forEach(queuedInstall -> model.addRow(new Object[]{
+                queuedInstall.getPriority() > QueuedInstall.NORMAL_PRIORITY ? "High" : queuedInstall.getPriority() < QueuedInstall.NORMAL_PRIORITY ? "Low" : "Normal",
+                queuedInstallToString(queuedInstall)
+        }));
+        JTable table = new JTable(model);
+        table.getColumnModel().getColumn(0).setMaxWidth(80);
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setPreferredSize(new Dimension(600, 200));
+
+        int maxActiveTasks = installQueueService.getMaxActiveTasks();
+        String usage = queue.size() + " queued, " + (maxActiveTasks > 0 ? "the next is installed when fewer than " + maxActiveTasks + " tasks are active" : "installed right away");
+
+        Object[] options = {"High priority", "Normal priority", "Low priority", "Remove", "Close"};
+        int option = JOptionPane.showOptionDialog(this, new Object[]{usage, scrollPane}, "Install queue", JOptionPane.DEFAULT_OPTION, JOptionPane.PLAIN_MESSAGE, null, options, options[4]);
+        for (int row : table.getSelectedRows()) {
+            long id = queue.get(row).getId();
+            switch (option) {
+                case 0:
+                    installQueueService.setPriority(id, QueuedInstall.HIGH_PRIORITY);
+                    break;
+                case 1:
+                    installQueueService.setPriority(id, QueuedInstall.NORMAL_PRIORITY);
+                    break;
+                case 2:
+                    installQueueService.setPriority(id, QueuedInstall.LOW_PRIORITY);
+                    break;
+                case 3:
+                    installQueueService.remove(id);
+                    break;
+            }
+        }
+    }
+
+    private BiConsumer<ModifyTaskResponse, Throwable> showModifyTaskError(String action, Integer taskId) {
+        return (response, e) -> {
+            if (e != null) {
+                Throwable cause = unwrap(e);
+                String message = "Error trying to " + action + " task " + taskId;
+                log.error(message, cause);
+                JOptionPane.showMessageDialog(this, message + System.lineSeparator() + cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        };
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
     }
 
-    private boolean checkRemotePKGInstallerIsRunning() {
-        if (isRemotePKGInstallerRunning()) {
-            return true;
-        } else if (isRemoteControl()) {
+    // Runs the action on the EDT once the Remote PKG Installer is running, the EDT doesn't wait for the PS4 meanwhile
+    private void whenRemotePKGInstallerIsRunning(Runnable action) {
+        isRemotePKGInstallerRunning().thenAcceptAsync(running -> {
+            if (running || !isRemoteControl()) {
+                //JOptionPane.showMessageDialog(this, "Remote PKG Installer is not running in the foreground. Please start it on the PS4.", "Start Remote PKG Installer", JOptionPane.INFORMATION_MESSAGE);
+                action.run();
+                return;
+            }
             String message = "Remote PKG Installer is not running in the foreground. Do you want to start Remote PKG Installer?";
             if (JOptionPane.showConfirmDialog(this, message, "Start Remote PKG Installer", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
-                try {
-                    boolean started = startRemotePKGInstaller();
-                    if (!started) {
-                        throw new IllegalStateException("Failed to start Remote PKG Installer, please check the PS4");
+                startRemotePKGInstaller().whenCompleteAsync((started, e) -> {
+                    if (e == null && started) {
+                        action.run();
+                        return;
                     }
-                    return true;
-                } catch (Exception e) {
+                    Throwable cause = e != null ? unwrap(e) : new IllegalStateException("Failed to start Remote PKG Installer, please check the PS4");
                     String errorMessage = "Error starting Remote PKG Installer please check the PS4";
-                    log.error(errorMessage, e);
-                    JOptionPane.showMessageDialog(this, errorMessage + System.lineSeparator() + e.getMessage(), "Error starting Remote PKG Installer", JOptionPane.ERROR_MESSAGE);
-                }
+                    log.error(errorMessage, cause);
+                    JOptionPane.showMessageDialog(this, errorMessage + System.lineSeparator() + cause.getMessage(), "Error starting Remote PKG Installer", JOptionPane.ERROR_MESSAGE);
+                }, SwingUtilities::invokeLater);
             }
-            return false;
-        } else {
-            //JOptionPane.showMessageDialog(this, "Remote PKG Installer is not running in the foreground. Please start it on the PS4.", "Start Remote PKG Installer", JOptionPane.INFORMATION_MESSAGE);
-            return true;
-        }
+        }, SwingUtilities::invokeLater);
     }
 
-    private boolean startRemotePKGInstaller() throws IOException, TimeoutException {
-        if (connection != null && (connection.startTitle("FLTZ00003").isSuccess() || 
-                                   connection.startTitle("KPBR01111").isSuccess() ||
-                                   connection.startTitle("RPIB00001").isSuccess())) {
-            long started = System.currentTimeMillis();
-            while (System.currentTimeMillis() - started < 3000 && !isRemotePKGInstallerRunning()) {
-            }
-            boolean running = isRemotePKGInstallerRunning();
-            if (!running) {
-                throw new TimeoutException("Failed to start Remote PKG Installer within 3 seconds");
+    private CompletableFuture<Boolean> startRemotePKGInstaller() {
+        PS4CompanionAppConnection connection = this.connection;
+        return asyncRemotePKGInstallerService.supply(() -> {
+            try {
+                if (connection != null && (connection.startTitle("FLTZ00003").isSuccess() ||
+                                           connection.startTitle("KPBR01111").isSuccess() ||
+                                           connection.startTitle("RPIB00001").isSuccess())) {
+                    if (!heartbeatService.whenRunning(Duration.ofSeconds(3)).get()) {
+                        throw new CompletionException(new TimeoutException("Failed to start Remote PKG Installer within 3 seconds"));
+                    }
+                    return true;
+                }
+                return false;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (ExecutionException e) {
+                throw new CompletionException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while starting Remote PKG Installer");
             }
-            return running;
-        }
-        return false;
+        }, Duration.ofSeconds(10));
     }
 
-    private boolean isRemotePKGInstallerRunning() {
+    private CompletableFuture<Boolean> isRemotePKGInstallerRunning() {
         if (cmbDiscoveredConsoles.getSelectedItem() == null) {
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
         /*try {
             Console selectedConsole = (Console) cmbDiscoveredConsoles.getSelectedItem();
@@ -965,16 +1306,14 @@ public class MainUI extends JFrame {
         } catch (Exception e) {
             log.error("Error checking whether Remote PKG Installer is running by DDP", e);
         }*/
-        try {
-            return remotePKGInstallerService.isRunning();
-        } catch (Exception e) {
-            log.error("Error checking whether Remote PKG Installer is running by REST", e);
+        // Checks again when the heartbeat doesn't know it's running, the user may have just started it on the PS4
+        if (heartbeatService.isRunning()) {
+            return CompletableFuture.completedFuture(true);
         }
-        return false;
-    }
-
-    private boolean isWindowActive() {
-        return getState() != Frame.ICONIFIED;
+        return heartbeatService.checkNow().exceptionally(e -> {
+            log.error("Error checking whether Remote PKG Installer is running by REST", unwrap(e));
+            return false;
+        });
     }
 
     private boolean isRemoteControl() {
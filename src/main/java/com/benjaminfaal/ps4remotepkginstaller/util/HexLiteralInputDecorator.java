@@ -0,0 +1,237 @@
+package com.benjaminfaal.ps4remotepkginstaller.util;
+
+import com.fasterxml.jackson.core.io.IOContext;
+import com.fasterxml.jackson.core.io.InputDecorator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+// The Remote PKG Installer API returns hexadecimal values (like error codes) without quotes which is invalid JSON.
+// Quotes them while Jackson reads the input, HexNumberModule decodes the quoted values into number fields.
+public class HexLiteralInputDecorator extends InputDecorator {
+
+    // Responses are a few hundred bytes
+    private static final int BUFFER_SIZE = 512;
+
+    @Override
+    public InputStream decorate(IOContext context, InputStream in) {
+        return new HexLiteralInputStream(in);
+    }
+
+    @Override
+    public InputStream decorate(IOContext context, byte[] src, int offset, int length) {
+        return new HexLiteralInputStream(new ByteArrayInputStream(src, offset, length));
+    }
+
+    @Override
+    public Reader decorate(IOContext context, Reader reader) {
+        return new HexLiteralReader(reader);
+    }
+
+    // Works on single bytes or chars, everything it looks at is ASCII so multi-byte UTF-8 sequences pass unchanged
+    private static class HexLiteralQuoter {
+
+        private final int[] pending = new int[3];
+
+        private int pendingStart;
+
+        private int pendingEnd;
+
+        private boolean inString;
+
+        private boolean escaped;
+
+        // A 0 that starts a value, which is a hexadecimal value if an x follows
+        private boolean zero;
+
+        private boolean inHex;
+
+        // Previous character was part of a literal, so a 0 does not start a value
+        private boolean inLiteral;
+
+        private boolean hasPending() {
+            return pendingStart < pendingEnd;
+        }
+
+        private int nextPending() {
+            return pending[pendingStart++];
+        }
+
+        private void accept(int c) {
+            pendingStart = 0;
+            pendingEnd = 0;
+            if (inString) {
+                emit(c);
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                }
+                return;
+            }
+            if (zero) {
+                zero = false;
+                if (c == 'x' || c == 'X') {
+                    inHex = true;
+                    emit('"');
+                    emit('0');
+                    emit(c);
+                    return;
+                }
+                emit('0');
+            } else if (inHex) {
+                if (Character.digit(c, 16) != -1) {
+                    emit(c);
+                    return;
+                }
+                inHex = false;
+                emit('"');
+            }
+
+            if (c == '"') {
+                inString = true;
+            } else if (c == '0' && !inLiteral) {
+                zero = true;
+                inLiteral = true;
+                return;
+            }
+            inLiteral = Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '+';
+            emit(c);
+        }
+
+        private void finish() {
+            pendingStart = 0;
+            pendingEnd = 0;
+            if (zero) {
+                zero = false;
+                emit('0');
+            } else if (inHex) {
+                inHex = false;
+                emit('"');
+            }
+        }
+
+        private void emit(int c) {
+            pending[pendingEnd++] = c;
+        }
+
+    }
+
+    private static class HexLiteralInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private final HexLiteralQuoter quoter = new HexLiteralQuoter();
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        private int position;
+
+        private int limit;
+
+        private boolean eof;
+
+        private HexLiteralInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int read = 0;
+            while (read < len) {
+                if (quoter.hasPending()) {
+                    b[off + read++] = (byte) quoter.nextPending();
+                } else if (position < limit) {
+                    quoter.accept(buffer[position++] & 0xFF);
+                } else if (eof) {
+                    break;
+                } else if (read > 0 && in.available() <= 0) {
+                    // Don't block for more input while there is something to return
+                    break;
+                } else {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit == -1) {
+                        limit = 0;
+                        eof = true;
+                        quoter.finish();
+                    }
+                }
+            }
+            return read == 0 ? -1 : read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+    private static class HexLiteralReader extends Reader {
+
+        private final Reader in;
+
+        private final HexLiteralQuoter quoter = new HexLiteralQuoter();
+
+        private final char[] buffer = new char[BUFFER_SIZE];
+
+        private int position;
+
+        private int limit;
+
+        private boolean eof;
+
+        private HexLiteralReader(Reader in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(char[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int read = 0;
+            while (read < len) {
+                if (quoter.hasPending()) {
+                    b[off + read++] = (char) quoter.nextPending();
+                } else if (position < limit) {
+                    quoter.accept(buffer[position++]);
+                } else if (eof) {
+                    break;
+                } else if (read > 0 && !in.ready()) {
+                    break;
+                } else {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit == -1) {
+                        limit = 0;
+                        eof = true;
+                        quoter.finish();
+                    }
+                }
+            }
+            return read == 0 ? -1 : read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+}
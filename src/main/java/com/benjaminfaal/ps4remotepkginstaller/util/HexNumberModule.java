@@ -0,0 +1,111 @@
+package com.benjaminfaal.ps4remotepkginstaller.util;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.deser.std.NumberDeserializers;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import java.io.IOException;
+
+// Decodes hexadecimal strings like "0x18A" into number fields, straight from the parser's buffer
+public class HexNumberModule extends SimpleModule {
+
+    public HexNumberModule() {
+        super("HexNumberModule");
+        addDeserializer(Long.class, new HexLongDeserializer(Long.class));
+        addDeserializer(Long.TYPE, new HexLongDeserializer(Long.TYPE));
+        addDeserializer(Integer.class, new HexIntegerDeserializer(Integer.class));
+        addDeserializer(Integer.TYPE, new HexIntegerDeserializer(Integer.TYPE));
+    }
+
+    // Checked on the parser's buffer without allocating a String
+    private static boolean isHex(JsonParser parser) throws IOException {
+        if (!parser.hasToken(JsonToken.VALUE_STRING) || parser.getTextLength() <= 2) {
+            return false;
+        }
+        char[] text = parser.getTextCharacters();
+        int offset = parser.getTextOffset();
+        return text[offset] == '0' && (text[offset + 1] == 'x' || text[offset + 1] == 'X');
+    }
+
+    private static long parseHex(JsonParser parser, DeserializationContext context, Class<?> type) throws IOException {
+        char[] text = parser.getTextCharacters();
+        int offset = parser.getTextOffset();
+        int length = parser.getTextLength();
+        if (length > 2 + 16) {
+            return ((Number) context.handleWeirdStringValue(type, parser.getText(), "too many hexadecimal digits")).longValue();
+        }
+        long value = 0;
+        for (int i = offset + 2; i < offset + length; i++) {
+            int digit = Character.digit(text[i], 16);
+            if (digit == -1) {
+                return ((Number) context.handleWeirdStringValue(type, parser.getText(), "not a valid hexadecimal value")).longValue();
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static class HexLongDeserializer extends JsonDeserializer<Long> {
+
+        private final Class<?> type;
+
+        private final JsonDeserializer<Long> delegate;
+
+        @SuppressWarnings("unchecked")
+        private HexLongDeserializer(Class<?> type) {
+            this.type = type;
+            this.delegate = (JsonDeserializer<Long>) NumberDeserializers.find(type, type.getName());
+        }
+
+        @Override
+        public Long deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            if (isHex(parser)) {
+                return parseHex(parser, context, type);
+            }
+            return delegate.deserialize(parser, context);
+        }
+
+        @Override
+        public Long getNullValue(DeserializationContext context) throws JsonMappingException {
+            return delegate.getNullValue(context);
+        }
+
+    }
+
+    private static class HexIntegerDeserializer extends JsonDeserializer<Integer> {
+
+        private final Class<?> type;
+
+        private final JsonDeserializer<Integer> delegate;
+
+        @SuppressWarnings("unchecked")
+        private HexIntegerDeserializer(Class<?> type) {
+            this.type = type;
+            this.delegate = (JsonDeserializer<Integer>) NumberDeserializers.find(type, type.getName());
+        }
+
+        @Override
+        public Integer deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            if (isHex(parser)) {
+                // Hexadecimal values are unsigned, error codes like 0x80990015 fit an int
+                long value = parseHex(parser, context, type);
+                if (value >>> 32 != 0) {
+                    return (Integer) context.handleWeirdStringValue(type, parser.getText(), "hexadecimal value does not fit an int");
+                }
+                return (int) value;
+            }
+            return delegate.deserialize(parser, context);
+        }
+
+        @Override
+        public Integer getNullValue(DeserializationContext context) throws JsonMappingException {
+            return delegate.getNullValue(context);
+        }
+
+    }
+
+}